@@ -13,6 +13,7 @@ import net.obsearch.exception.NotFrozenException;
 import net.obsearch.exception.OBException;
 import net.obsearch.exception.OutOfRangeException;
 import java.util.Iterator;
+import java.util.List;
 import net.obsearch.filter.Filter;
 
 
@@ -113,6 +114,40 @@ public interface Index${Type}<O extends OB${Type}> extends Index<O> {
             throws NotFrozenException,
             InstantiationException, IllegalIdException, IllegalAccessException, OutOfRangeException, OBException;
 
+		 /**
+         * Searches a batch of queries. The result of objects.get(i) is
+         * stored in results.get(i), exactly as if searchOB(objects.get(i), r,
+         * filter, results.get(i)) had been called for each query, but indexes
+         * may share work among the queries of the batch (read each bucket
+         * once, scan the sketches once, etc).
+         * @param objects
+         *            The objects that have to be searched
+         * @param r
+         *            The range to be used
+         * @param filter
+         *            Filter used to remove unwanted objects, can be null.
+         * @param results
+         *            One priority queue per object that will hold its result
+         * @throws NotFrozenException
+         *             if the index has not been frozen.
+         * @throws OBException
+         *             User generated exception or objects and results do not
+         *             have the same size.
+         * @throws IllegalAccessException
+         *             If there is a problem when instantiating objects O
+         * @throws InstantiationException
+         *             If there is a problem when instantiating objects O
+         * @throws IllegalIdException
+         *             This exception is left as a Debug flag.
+         * @throws OutOfRangeException
+         *             If the distance of any object to any other object exceeds
+         *             the range defined by the user.
+         */
+    
+    void searchOBBatch(List<O> objects, ${type} r, Filter<O> filter, List<OBPriorityQueue${Type}<O>> results)
+            throws NotFrozenException,
+            InstantiationException, IllegalIdException, IllegalAccessException, OutOfRangeException, OBException;
+
 		    
 /**
 	 * This method returns a list of all the distances of the query against  the DB.
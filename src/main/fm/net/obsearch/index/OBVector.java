@@ -23,9 +23,11 @@ package net.obsearch.index;
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 import java.io.IOException;
+import net.obsearch.BufferLoadable;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.exception.OBException;
 import net.obsearch.ob.OB${Type};
+import net.obsearch.ob.OBRaw${Type};
 import java.nio.ByteBuffer;
 import net.obsearch.utils.bytes.ByteBufferFactoryConversion;
 import java.util.Random;
@@ -36,7 +38,7 @@ import java.util.Arrays;
  *
  */
 <@gen_warning filename="OBVector.java "/>
-public class OBVector${Type} implements OB${Type} {
+public class OBVector${Type} implements OBRaw${Type}, BufferLoadable {
 	
 	private ${type}[] data;
 	
@@ -96,10 +98,34 @@ public class OBVector${Type} implements OB${Type} {
 		return res;
 	}
 
+	<@gen_warning filename="OBVector.java "/>
+	@Override
+	public ${type} distance(ByteBuffer in, int offset, int length) throws OBException {
+		assert in.getInt(offset) == data.length;
+		assert length == ByteConstants.${Type}.getSize() * data.length + ByteConstants.Int.getSize();
+		int position = offset + ByteConstants.Int.getSize();
+		${type} res = 0;
+		int i = 0;
+		while(i < data.length){
+			${type} v = in.get${BBType}(position);
+			assert (data[i] - v) >= <@min_value/> && (data[i] - v) <= ${ClassType}.MAX_VALUE : "a: " + data[i] + " b: "  + v ;
+			res += Math.abs(data[i] - v);
+			position += ByteConstants.${Type}.getSize();
+			i++;
+		}
+		return res;
+	}
+
 	<@gen_warning filename="OBVector.java "/>
 	@Override
 	public void load(byte[] input) throws OBException, IOException {
-		ByteBuffer in = ByteBufferFactoryConversion.createByteBuffer(input);
+		load(ByteBufferFactoryConversion.createByteBuffer(input));
+	}
+
+	<@gen_warning filename="OBVector.java "/>
+	@Override
+	public void load(ByteBuffer in) throws OBException, IOException {
+		in.order(ByteBufferFactoryConversion.ORDERING);
 		int size = in.getInt();
 		
 		data = new ${type}[size];
@@ -9,8 +9,11 @@ package net.obsearch.index.bucket.sleek;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.junit.Test;
 
@@ -24,8 +27,10 @@ import net.obsearch.exception.IllegalIdException;
 import net.obsearch.exception.OBException;
 import net.obsearch.filter.Filter;
 import net.obsearch.index.bucket.BucketContainer;
+import net.obsearch.index.bucket.BucketObject;
 import net.obsearch.index.bucket.impl.BucketObject${Type};
 import net.obsearch.ob.OB${Type};
+import net.obsearch.ob.OBRaw${Type};
 import net.obsearch.query.AbstractOBQuery;
 import net.obsearch.query.OBQuery${Type};
 import net.obsearch.stats.Statistics;
@@ -61,6 +66,45 @@ import net.obsearch.utils.bytes.ByteConversion;
  * unlike the bucket.* classes we now have something that partitions the data
  * properly.
  * 
+ * When all the objects have the same size (mode > 0) the objects that are not
+ * pivots are stored by columns: <ids of the objects> <smap vectors of the
+ * objects> <obj1> <obj2> ... with the objects stored one after another in one
+ * contiguous block. The flag {@link #COLUMNAR} is set in the object count so
+ * that buckets stored in the row format can still be read.
+ * 
+ * The objects that are not pivots are sorted by id and their ids are stored
+ * as varints of the difference with the previous id (flag
+ * {@link #SORTED_IDS}) in both formats.
+ * 
+ * Pivots are selected from the objects of the bucket when the bucket is
+ * serialized. Their number grows with the size of the bucket (one pivot for
+ * every {@link #OBJECTS_PER_PIVOT} objects) up to the pivot count of the
+ * bucket. Each object stores its distances to the pivots (its smap vector) so
+ * that searches discard the objects whose L-infinity lower bound is larger
+ * than the range of the query without calculating their distance. When the
+ * bucket has pivots the flag {@link #PIVOTS} is set in the object count and
+ * the number of pivots follows the mode.
+ * 
+ * Deleted objects are only marked (tombstones) and are removed from the bucket
+ * when more than 1 / {@link #TOMBSTONE_RATIO} of the objects are deleted, or
+ * when the bucket is serialized. A deleted pivot is still used to prune the
+ * search until the pivots are selected again. {@link #exists} and
+ * {@link #delete} find objects with an open addressing table of 64 bit
+ * fingerprints of the serialized objects, built the first time it is needed.
+ * 
+ * A bucket created from serialized data is a view of the data: only the
+ * pivots are loaded, the other objects are loaded one by one when a search
+ * needs them. If the query implements {@link OBRaw${Type}} distances are
+ * calculated on the serialized data and only the objects that enter the
+ * result are loaded. Objects inserted into a view are kept apart from the
+ * data until the bucket is serialized. Deletes that leave too many tombstones
+ * load all the objects.
+ * 
+ * Several threads can search the same bucket at the same time as long as no
+ * thread modifies it. The objects loaded by a search are published through an
+ * {@link AtomicReferenceArray}. A bucket that is being searched is modified
+ * through a {@link #copy()}.
+ * 
  * @author Arnoldo Jose Muller Molina
  */
 
@@ -72,9 +116,14 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	 */
 	private int count = 0;
 	/**
-	 * Number of pivotCount in the bucket.
+	 * Maximum number of pivots of the bucket.
 	 */
-	private final static int pivotCount = 0;
+	private int pivotCount;
+
+	/**
+	 * A bucket uses one pivot for every OBJECTS_PER_PIVOT objects.
+	 */
+	static final int OBJECTS_PER_PIVOT = 16;
 
 	/**
 	 * The list of pivot objects;
@@ -82,10 +131,81 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	private List<BucketObject${Type}<O>> pivots;
 
 	/**
-	 * The list of objects.
+	 * The list of objects, null while the bucket is a view of {@link #data}.
 	 */
 	private List<BucketObject${Type}<O>> objects;
 
+	/**
+	 * Objects inserted while the bucket is a view of {@link #data}, null if
+	 * the bucket is not a view. Their entries follow the ones of the data.
+	 */
+	private List<BucketObject${Type}<O>> appended;
+
+	/**
+	 * Serialized bucket, kept until the objects are loaded.
+	 */
+	private byte[] data;
+
+	/**
+	 * {@link #data} wrapped, only read with absolute gets.
+	 */
+	private ByteBuffer view;
+
+	/**
+	 * Position in {@link #data} of the smap vector of each object.
+	 */
+	private int[] records;
+
+	/**
+	 * Number of pivot distances stored for each object of {@link #data}.
+	 */
+	private int recordPivots;
+
+	/**
+	 * Position in {@link #data} of each serialized object.
+	 */
+	private int[] offsets;
+
+	/**
+	 * Size of each serialized object.
+	 */
+	private int[] lengths;
+
+	/**
+	 * Id of each object.
+	 */
+	private long[] ids;
+
+	/**
+	 * Objects loaded from {@link #data}, null if the object was not needed
+	 * yet. Searches of several threads may load objects at the same time.
+	 */
+	private AtomicReferenceArray<O> loaded;
+
+	/**
+	 * Entries of the bucket that were deleted. Entry e is the pivot e if e <
+	 * pivots.size(), otherwise the object e - pivots.size().
+	 */
+	private BitSet deleted = new BitSet();
+
+	/**
+	 * Number of bits set in {@link #deleted}.
+	 */
+	private int deletedCount = 0;
+
+	/**
+	 * Fingerprints of the entries, null until the first lookup. Lookups of
+	 * several threads may build the table at the same time, each of them
+	 * publishes a complete table.
+	 */
+	private volatile FingerprintTable table;
+
+	/**
+	 * The deleted objects are removed when they are more than 1 /
+	 * TOMBSTONE_RATIO of the bucket.
+	 */
+	static final int TOMBSTONE_RATIO = 4;
+
 	/**
 	 * Type of the object that is being stored.
 	 */
@@ -106,19 +226,73 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	/**
 	 * Create an empty, new bucket.
 	 * 
-	 * @param pivotCount
-	 *            number of pivotCount to use.
+	 * @param pivots
+	 *            maximum number of pivots to use.
 	 */
 	public SleekBucket${Type}(Class<O> type, int pivots) {
-		//this.pivotCount = pivots;
+		this.pivotCount = pivots;
 		this.type = type;
 		this.pivots = new ArrayList<BucketObject${Type}<O>>(pivotCount);
 		objects = new ArrayList<BucketObject${Type}<O>>(count);
 	}
 
 
+	/**
+	 * Load and return all the live objects of the bucket, pivots included.
+	 * The bucket is not modified, so it can be called while other threads
+	 * search the bucket. Changes to the returned list do not modify the
+	 * bucket.
+	 */
 	public List<BucketObject${Type}<O>> getObjects(){
-			return objects;
+			List<BucketObject${Type}<O>> res = new ArrayList<BucketObject${Type}<O>>(count);
+			try{
+					int total = entries();
+					int e = 0;
+					while (e < total) {
+						if (!deleted.get(e)) {
+							if (inData(e)) {
+								int i = e - pivots.size();
+								res.add(new BucketObject${Type}<O>(readSmap(i), ids[i], getObject(i)));
+							} else {
+								res.add(entry(e));
+							}
+						}
+						e++;
+					}
+			}catch(Exception e){
+					throw new IllegalArgumentException(e);
+			}
+			return res;
+	}
+
+	/**
+	 * Copy the bucket. The copy can be modified while other threads search
+	 * this bucket: the serialized data and the loaded objects are shared,
+	 * the lists, the tombstones and the fingerprint table are copied.
+	 * 
+	 * @return a copy of the bucket.
+	 */
+	public SleekBucket${Type}<O> copy() {
+		SleekBucket${Type}<O> res = new SleekBucket${Type}<O>(type, pivotCount);
+		res.count = count;
+		res.mode = mode;
+		res.modified = modified;
+		res.pivots = new ArrayList<BucketObject${Type}<O>>(pivots);
+		res.objects = objects == null ? null : new ArrayList<BucketObject${Type}<O>>(objects);
+		res.appended = appended == null ? null : new ArrayList<BucketObject${Type}<O>>(appended);
+		res.data = data;
+		res.view = view;
+		res.records = records;
+		res.recordPivots = recordPivots;
+		res.offsets = offsets;
+		res.lengths = lengths;
+		res.ids = ids;
+		res.loaded = loaded;
+		res.deleted = (BitSet) deleted.clone();
+		res.deletedCount = deletedCount;
+		FingerprintTable t = table;
+		res.table = t == null ? null : new FingerprintTable(t);
+		return res;
 	}
 
 	/**
@@ -140,8 +314,13 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	}
 
 	/**
-	 * Parses the data from the given byte array.
+	 * Parses the data from the given byte array. Only the pivots are loaded,
+	 * the position of every other object is recorded so that it can be
+	 * loaded when it is needed.
 	 * 
+	 * @param pivotCount
+	 *            maximum number of pivots of the bucket. The number of pivots
+	 *            stored in the data does not depend on this value.
 	 * @param data
 	 * @throws IllegalAccessException
 	 * @throws InstantiationException
@@ -151,27 +330,159 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	public void parseData(int pivotCount, byte[] data)
 			throws InstantiationException, IllegalAccessException, OBException,
 			IOException {
-		pivots = new ArrayList<BucketObject${Type}<O>>(pivotCount);
+		this.pivotCount = pivotCount;
 		ByteBuffer buf = ByteConversion.createByteBuffer(data);
 		// read the number of objects included in the bucket.
-		count = buf.getInt();
+		int header = buf.getInt();
+		boolean columnar = (header & COLUMNAR) != 0;
+		boolean sortedIds = (header & SORTED_IDS) != 0;
+		count = header & ~(COLUMNAR | PIVOTS | SORTED_IDS);
 		mode = buf.getInt();
-		objects = new ArrayList<BucketObject${Type}<O>>(count);
+		int storedPivots = 0;
+		if ((header & PIVOTS) != 0) {
+			storedPivots = buf.getInt();
+		}
+		pivots = new ArrayList<BucketObject${Type}<O>>(storedPivots);
 		// get the pivots!
 		int i = 0;
-		while (i < Math.min(pivotCount , count)) {			
+		while (i < storedPivots) {
 			pivots.add(readBucketObject(0, buf));
 			i++;
 		}
-		// now we can start getting objects.
-		// continue loading objects
-		while (i < count) {			
-			objects.add(readBucketObject(pivotCount, buf));
-			i++;
+		// now we record where the objects are.
+		int total = count - pivots.size();
+		records = new int[total];
+		offsets = new int[total];
+		lengths = new int[total];
+		ids = new long[total];
+		if (columnar) {
+			parseColumns(storedPivots, sortedIds, buf);
+		} else {
+			long previous = 0;
+			i = 0;
+			while (i < total) {
+				records[i] = buf.position();
+				buf.position(records[i] + (storedPivots * DISTANCE_SIZE));
+				if (sortedIds) {
+					ids[i] = previous + ByteConversion.getVarLong(buf);
+					previous = ids[i];
+				} else {
+					ids[i] = buf.getLong();
+				}
+				lengths[i] = getNextObjectSize(buf);
+				offsets[i] = buf.position();
+				buf.position(offsets[i] + lengths[i]);
+				i++;
+			}
 		}
-		assert count == (pivots.size() + objects.size());	
 		assert (! buf.hasRemaining()) : "Remaining: " + buf.remaining() + " Position: " + buf.position() + " capacity: " + buf.capacity() + " count: " + count;
-		
+		this.recordPivots = storedPivots;
+		this.data = data;
+		this.view = buf;
+		this.loaded = new AtomicReferenceArray<O>(total);
+		this.objects = null;
+		this.appended = new ArrayList<BucketObject${Type}<O>>();
+		this.deleted = new BitSet();
+		this.deletedCount = 0;
+		this.table = null;
+	}
+
+	/**
+	 * Record the position of the objects of a bucket stored by columns. The
+	 * buffer must be positioned at the ids block.
+	 */
+	private void parseColumns(int pivotCount, boolean sortedIds, ByteBuffer buf) {
+		assert mode > 0;
+		int total = ids.length;
+		long previous = 0;
+		int i = 0;
+		while (i < total) {
+			if (sortedIds) {
+				ids[i] = previous + ByteConversion.getVarLong(buf);
+				previous = ids[i];
+			} else {
+				ids[i] = buf.getLong();
+			}
+			i++;
+		}
+		int smaps = buf.position();
+		int values = smaps + (total * pivotCount * DISTANCE_SIZE);
+		i = 0;
+		while (i < total) {
+			records[i] = smaps + (i * pivotCount * DISTANCE_SIZE);
+			offsets[i] = values + (i * mode);
+			lengths[i] = mode;
+			i++;
+		}
+		buf.position(values + (total * mode));
+	}
+
+	/**
+	 * Read the smap vector stored for the ith object of {@link #data}.
+	 * 
+	 * @return null if the records of {@link #data} have no smap vector.
+	 */
+	private ${type}[] readSmap(int i) {
+		if (recordPivots == 0) {
+			return null;
+		}
+		${type}[] smap = new ${type}[recordPivots];
+		int cx = 0;
+		while (cx < recordPivots) {
+			smap[cx] = view.get${BBType}(records[i] + (cx * DISTANCE_SIZE));
+			cx++;
+		}
+		return smap;
+	}
+
+	/**
+	 * Return the ith object of {@link #data}, loading it if necessary.
+	 */
+	private O getObject(int i) throws InstantiationException,
+			IllegalAccessException, OBException {
+		O obj = loaded.get(i);
+		if (obj == null) {
+			obj = type.newInstance();
+			byte[] objectRawData = new byte[lengths[i]];
+			System.arraycopy(data, offsets[i], objectRawData, 0, lengths[i]);
+			try {
+				obj.load(objectRawData);
+			} catch (IOException e) {
+				throw new OBException(e);
+			}
+			// another search may have loaded the object first.
+			if (!loaded.compareAndSet(i, null, obj)) {
+				obj = loaded.get(i);
+			}
+		}
+		return obj;
+	}
+
+	/**
+	 * Load all the objects of {@link #data} into {@link #objects}. After this
+	 * call the bucket can be modified.
+	 */
+	private void materialize() throws InstantiationException,
+			IllegalAccessException, OBException {
+		if (objects != null) {
+			return;
+		}
+		List<BucketObject${Type}<O>> res = new ArrayList<BucketObject${Type}<O>>(ids.length + appended.size());
+		int i = 0;
+		while (i < ids.length) {
+			res.add(new BucketObject${Type}<O>(readSmap(i), ids[i], getObject(i)));
+			i++;
+		}
+		res.addAll(appended);
+		objects = res;
+		appended = null;
+		data = null;
+		view = null;
+		records = null;
+		offsets = null;
+		lengths = null;
+		ids = null;
+		loaded = null;
 	}
 	
 	/**
@@ -211,6 +522,8 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 			return false;
 		}
 		try {
+			compact();
+			another.compact();
 			for (BucketObject${Type}<O> p : pivots) {
 				if (! another.pivots.contains(p)) {
 					return false;
@@ -231,8 +544,15 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	}
 
 	private byte[] getNextObjectChunk(ByteBuffer buf) {
+		byte[] res = new byte[getNextObjectSize(buf)];
+		buf.get(res);
+		return res;
+	}
 
-		byte[] res;
+	/**
+	 * Read the size of the next object in the given buffer.
+	 */
+	private int getNextObjectSize(ByteBuffer buf) {
 		int size;
 		if (mode > 0) {
 			size = mode;
@@ -247,13 +567,11 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 				size = buf.getInt();
 			} else {
 					assert false ;
-				return null;
+				return -1;
 			}
 
 		}
-		res = new byte[size];
-		buf.get(res);
-		return res;
+		return size;
 	}
 
 	private void putNextObjectChunk(ByteBuffer buf, byte[] data) {
@@ -282,71 +600,27 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 
 	}
 
-	private void removeAll() {
-		pivots.clear();
-		objects.clear();
-		count = 0;
-	}
-	
-	/**
-	 * Remove the object if it is found in the list
-	 * @param list
-	 * @param object
-	 * @return the object removed or null otherwise
-	 */
-	private BucketObject${Type}<O> removeObject(List<BucketObject${Type}<O>> list, O object){
-		ListIterator<BucketObject${Type}<O>> it = list.listIterator();
-		while (it.hasNext()) {
-			BucketObject${Type}<O> b = it.next();
-			if (b.getObject().equals(object)) {
-				it.remove();
-				return b;
-			}
-		}
-		return null;
-	}
-
 	@Override
 	public OperationStatus delete(BucketObject${Type}<O> bucket, O object)
 			throws OBException, IllegalIdException, IllegalAccessException,
 			InstantiationException {
 		OperationStatus result = new OperationStatus();
 		result.setStatus(Status.NOT_EXISTS);
-		// if we have to remove a pivot we have to remove all objects,
-		// shuffle them and re-insert them again.
-		// start with the pivots.
-		BucketObject${Type}<O> removed = removeObject(pivots, object);
-		if (removed != null) {
-			
-			// removed one of the pivots, we have to re-build the container.
+		int e = find(object);
+		if (e != -1) {
+			// the entry is only marked, a deleted pivot keeps pruning the
+			// search until the pivots are selected again.
 			result.setStatus(Status.OK);
-			result.setId(removed.getId());
-			assert this.existsObjects(object, pivots) == null;
-			List<BucketObject${Type}<O>> objs = new ArrayList<BucketObject${Type}<O>>(count);
-			for (BucketObject${Type}<O> p : pivots) {
-				objs.add(p);
-			}
-			for (BucketObject${Type}<O> b : objects) {
-				objs.add(b);
-			}
-
-			removeAll(); // empty the bucket.
-			for (BucketObject${Type}<O> o : objs) {
-				insertBulk(o, o.getObject());
-			}
-		} else {
-			// bucket.
-			removed = removeObject(objects, object);
-			if(removed != null){
-				result.setStatus(Status.OK);
-				result.setId(removed.getId());
-			}
-		}
-		if(result.getStatus() == Status.OK){
+			result.setId(entryId(e));
+			deleted.set(e);
+			deletedCount++;
+			count--;
 			this.modified = true;
+			if (deletedCount * TOMBSTONE_RATIO > entries()) {
+				compact();
+			}
 		}
-		count = pivots.size() + objects.size();
-		assert count == (pivots.size() + objects.size());
+		assert count == entries() - deletedCount;
 		return result;
 	}
 	
@@ -359,32 +633,246 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 			throws OBException, IllegalIdException, IllegalAccessException,
 			InstantiationException {
 		OperationStatus res = new OperationStatus();
-		BucketObject${Type}<O> inPivots = existsObjects(object, pivots);
-		BucketObject${Type}<O> inObjects = existsObjects(object, objects);
-		if (inPivots != null || inObjects != null) {
+		int e = find(object);
+		if (e != -1) {
 			res.setStatus(Status.EXISTS);
-			if(inPivots != null){
-				res.setId(inPivots.getId());
-			}else if(inObjects != null){
-				res.setId(inObjects.getId());
-			}
+			res.setId(entryId(e));
 		} else {
 			res.setStatus(Status.NOT_EXISTS);
 		}
 		return res;
 	}
+
+	/**
+	 * @return number of entries (including the deleted ones) of the bucket.
+	 */
+	private int entries() {
+		return pivots.size()
+				+ (objects == null ? ids.length + appended.size() : objects
+						.size());
+	}
+
+	/**
+	 * @return true if the given entry is an object of {@link #data} that may
+	 *         not be loaded.
+	 */
+	private boolean inData(int e) {
+		int p = pivots.size();
+		return objects == null && e >= p && e - p < ids.length;
+	}
+
+	/**
+	 * @return the given entry, which must not be an object of
+	 *         {@link #data}.
+	 */
+	private BucketObject${Type}<O> entry(int e) {
+		int p = pivots.size();
+		if (e < p) {
+			return pivots.get(e);
+		}
+		return objects == null ? appended.get(e - p - ids.length) : objects
+				.get(e - p);
+	}
+
+	private long entryId(int e) {
+		return inData(e) ? ids[e - pivots.size()] : entry(e).getId();
+	}
+
+	private O entryObject(int e) throws InstantiationException,
+			IllegalAccessException, OBException {
+		return inData(e) ? getObject(e - pivots.size()) : entry(e).getObject();
+	}
+
+	/**
+	 * Fingerprint of the given entry. Objects of {@link #data} are not
+	 * loaded.
+	 */
+	private long entryFingerprint(int e) throws OBException {
+		if (inData(e)) {
+			int i = e - pivots.size();
+			return fingerprint(data, offsets[i], lengths[i]);
+		}
+		return fingerprint(entry(e).getObject());
+	}
+
+	private static long fingerprint(OB${Type} object) throws OBException {
+		try {
+			byte[] d = object.store();
+			return fingerprint(d, 0, d.length);
+		} catch (IOException e) {
+			throw new OBException(e);
+		}
+	}
+
 	/**
-	 * Check if the given object exists on the given list
-	 * @param object the object to search
-	 * @return the bucket if it exists otherwise null
+	 * 64 bit FNV-1a hash of data[offset, offset + length).
 	 */
-	private BucketObject${Type}<O> existsObjects(O object, List<BucketObject${Type}<O>> list){
-		for(BucketObject${Type}<O> o : list){
-			if( o.getObject().equals(object)){
-				return o;
+	private static long fingerprint(byte[] data, int offset, int length) {
+		long h = 0xCBF29CE484222325L;
+		int i = offset;
+		int max = offset + length;
+		while (i < max) {
+			h = (h ^ (data[i] & 0xFF)) * 0x100000001B3L;
+			i++;
+		}
+		return h;
+	}
+
+	/**
+	 * Find the given object.
+	 * 
+	 * @return the entry of the object or -1 if the object is not in the
+	 *         bucket.
+	 */
+	private int find(O object) throws InstantiationException,
+			IllegalAccessException, OBException {
+		FingerprintTable t = table;
+		if (t == null) {
+			t = buildTable();
+		}
+		long f = fingerprint(object);
+		int slot = t.slot(f);
+		while (t.slots[slot] != 0) {
+			int e = t.slots[slot] - 1;
+			if (t.fingerprints[e] == f && !deleted.get(e)
+					&& entryObject(e).equals(object)) {
+				return e;
 			}
+			slot = (slot + 1) & t.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Build the table of all the entries and publish it.
+	 */
+	private FingerprintTable buildTable() throws OBException {
+		int e = entries();
+		long[] fingerprints = new long[Math.max(e, 16)];
+		int i = 0;
+		while (i < e) {
+			fingerprints[i] = entryFingerprint(i);
+			i++;
 		}
-		return null;
+		FingerprintTable t = new FingerprintTable(fingerprints, e);
+		table = t;
+		return t;
+	}
+
+	/**
+	 * Add the last entry of the bucket to the table, if the table exists.
+	 */
+	private void addToTable(O object) throws OBException {
+		FingerprintTable t = table;
+		if (t == null) {
+			return;
+		}
+		int e = entries() - 1;
+		long[] fingerprints = t.fingerprints;
+		if (e == fingerprints.length) {
+			fingerprints = new long[fingerprints.length * 2];
+			System.arraycopy(t.fingerprints, 0, fingerprints, 0, e);
+		}
+		fingerprints[e] = fingerprint(object);
+		if ((e + 1) * 2L > t.slots.length || fingerprints != t.fingerprints) {
+			table = new FingerprintTable(fingerprints, e + 1);
+		} else {
+			t.put(e);
+		}
+	}
+
+	/**
+	 * Open addressing table of entries, entry + 1 or 0 for an empty slot.
+	 */
+	private static final class FingerprintTable {
+
+		/**
+		 * Fingerprint of each entry of the table.
+		 */
+		final long[] fingerprints;
+
+		final int[] slots;
+
+		/**
+		 * slots.length - 1
+		 */
+		final int mask;
+
+		/**
+		 * Copy the given table.
+		 */
+		FingerprintTable(FingerprintTable t) {
+			fingerprints = t.fingerprints.clone();
+			slots = t.slots.clone();
+			mask = t.mask;
+		}
+
+		/**
+		 * Put the first e entries of fingerprints in a new table.
+		 */
+		FingerprintTable(long[] fingerprints, int e) {
+			this.fingerprints = fingerprints;
+			int size = 16;
+			while (size < e * 2L && size < (1 << 30)) {
+				size <<= 1;
+			}
+			slots = new int[size];
+			mask = size - 1;
+			int i = 0;
+			while (i < e) {
+				put(i);
+				i++;
+			}
+		}
+
+		int slot(long fingerprint) {
+			return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+		}
+
+		void put(int e) {
+			int slot = slot(fingerprints[e]);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = e + 1;
+		}
+	}
+
+	/**
+	 * Load all the objects and remove the deleted ones from the bucket. The
+	 * pivots are selected again if a pivot was deleted.
+	 */
+	private void compact() throws InstantiationException,
+			IllegalAccessException, OBException {
+		materialize();
+		if (deletedCount == 0) {
+			return;
+		}
+		int p = pivots.size();
+		List<BucketObject${Type}<O>> livePivots = new ArrayList<BucketObject${Type}<O>>(p);
+		List<BucketObject${Type}<O>> liveObjects = new ArrayList<BucketObject${Type}<O>>(count);
+		int e = 0;
+		for (BucketObject${Type}<O> b : pivots) {
+			if (!deleted.get(e)) {
+				livePivots.add(b);
+			}
+			e++;
+		}
+		for (BucketObject${Type}<O> b : objects) {
+			if (!deleted.get(e)) {
+				liveObjects.add(b);
+			}
+			e++;
+		}
+		pivots = livePivots;
+		objects = liveObjects;
+		deleted.clear();
+		deletedCount = 0;
+		table = null;
+		if (pivots.size() != p) {
+			selectPivots(targetPivots(count));
+		}
+		assert count == pivots.size() + objects.size();
 	}
 
 	@Override
@@ -410,32 +898,27 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 			throws OBException, IllegalIdException, IllegalAccessException,
 			InstantiationException {
 		OperationStatus res = new OperationStatus();
-		if (pivots.size() < pivotCount) { // not enough pivots? we add it to the
-			// pivots.
-			//OBAsserts.chkAssert(bucket.getObject().equals(object), "Both objects should be the same");
-			bucket.setObject(object);
-			
-			pivots.add(bucket);
-			res.setStatus(Status.OK);
-		} else {
-			// enough pivots, we calculate the pivot vector
-			objects.add(createBucket(bucket, object));
-			res.setStatus(Status.OK);
-		}
+		// pivots are selected when the bucket is serialized, we calculate the
+		// pivot vector with the current pivots.
+		bucket.setObject(object);
+		// a view keeps the new object apart, the data is not loaded.
+		(objects == null ? appended : objects).add(createBucket(bucket, object));
+		addToTable(object);
+		res.setStatus(Status.OK);
 		modified = true;
 		if(res.getStatus() == Status.OK){
 			// inserted, update id
 			res.setId(bucket.getId());
 		}
 		count++;
-		assert count == pivots.size() + objects.size();
+		assert count == entries() - deletedCount;
 		return res;
 	}
 
 	private BucketObject${Type}<O> createBucket(BucketObject${Type}<O> bucket, O object) throws OBException {
-		${type}[] pivotVector = new ${type}[pivotCount];
+		${type}[] pivotVector = new ${type}[pivots.size()];
 		int i = 0;
-		while (i < pivotCount) {
+		while (i < pivotVector.length) {
 			pivotVector[i] = object.distance(pivots.get(i).getObject());
 			i++;
 		}
@@ -443,6 +926,94 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 		return bucket;
 	}
 
+	/**
+	 * Number of pivots a bucket of the given size should have.
+	 */
+	private int targetPivots(int size) {
+		return Math.min(pivotCount, size / OBJECTS_PER_PIVOT);
+	}
+
+	/**
+	 * Select again the pivots of the bucket if the bucket has grown or shrunk
+	 * enough to use a different number of pivots.
+	 */
+	private void adjustPivots() throws OBException {
+		int target = targetPivots(size());
+		if (target != pivots.size()) {
+			selectPivots(target);
+		}
+	}
+
+	/**
+	 * Select the given number of pivots from all the objects of the bucket
+	 * and calculate the smap vector of the other objects. Pivots are selected
+	 * with the farthest-first traversal: each new pivot is the object whose
+	 * closest pivot is the farthest away. The distances calculated for the
+	 * traversal are the smap vectors of the objects.
+	 * 
+	 * @param target
+	 *            number of pivots, smaller than the size of the bucket.
+	 */
+	private void selectPivots(int target) throws OBException {
+		List<BucketObject${Type}<O>> all = new ArrayList<BucketObject${Type}<O>>(size());
+		all.addAll(pivots);
+		all.addAll(objects);
+		int n = all.size();
+		assert target < n || target == 0;
+		${type}[][] distances = new ${type}[target][];
+		${type}[] closest = new ${type}[n];
+		boolean[] selected = new boolean[n];
+		int[] selection = new int[target];
+		int next = 0;
+		int p = 0;
+		while (p < target) {
+			selection[p] = next;
+			selected[next] = true;
+			O pivot = all.get(next).getObject();
+			distances[p] = new ${type}[n];
+			next = -1;
+			int i = 0;
+			while (i < n) {
+				if (!selected[i]) {
+					${type} d = all.get(i).getObject().distance(pivot);
+					distances[p][i] = d;
+					if (p == 0 || d < closest[i]) {
+						closest[i] = d;
+					}
+					if (next == -1 || closest[i] > closest[next]) {
+						next = i;
+					}
+				}
+				i++;
+			}
+			p++;
+		}
+		// new bucket objects, the old ones may be shared with a copy of the
+		// bucket.
+		pivots = new ArrayList<BucketObject${Type}<O>>(target);
+		for (int s : selection) {
+			BucketObject${Type}<O> b = all.get(s);
+			pivots.add(new BucketObject${Type}<O>(null, b.getId(), b.getObject()));
+		}
+		objects = new ArrayList<BucketObject${Type}<O>>(n - target);
+		int i = 0;
+		while (i < n) {
+			if (!selected[i]) {
+				${type}[] smap = new ${type}[target];
+				p = 0;
+				while (p < target) {
+					smap[p] = distances[p][i];
+					p++;
+				}
+				BucketObject${Type}<O> b = all.get(i);
+				objects.add(new BucketObject${Type}<O>(smap, b.getId(), b.getObject()));
+			}
+			i++;
+		}
+		table = null;
+		assert count == pivots.size() + objects.size();
+	}
+
 	@Override
 	public void search(AbstractOBQuery<O> q, BucketObject${Type}<O> bucket,
 			Filter<O> filter, Statistics stats) throws IllegalAccessException,
@@ -465,22 +1036,49 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 		// must add also the pivots.
 		
 		int i = 0;
-		${type}[] pivotVector = new ${type}[pivotCount];
-		while (i < pivotCount) {
+		${type}[] pivotVector = new ${type}[pivots.size()];
+		while (i < pivotVector.length) {
 			BucketObject${Type}<O> p = pivots.get(i); // get the pivot.
 			${type} distance = query.getObject().distance(p.getObject());
-			query.add(p.getId(), p.getObject(), distance);
+			if (!deleted.get(i)
+					&& (filter == null || filter.accept(p.getObject(), query.getObject()))) {
+				query.add(p.getId(), p.getObject(), distance);
+			}
 			pivotVector[i] = distance;
 			stats.incDistanceCount();
 			i++;
 		}
-		this.createBucket(bucket, query.getObject());		
+		bucket.setSmapVector(pivotVector);
 		BucketObject${Type}<O> b = new BucketObject${Type}<O>(pivotVector, -1,
 				query.getObject());
 		// now we can match the remaining of the objects.
-		for (BucketObject${Type}<O> db : objects) {
+		if (objects == null) {
+			searchView(query, pivotVector, filter, stats);
+			searchObjects(query, b, appended, pivots.size() + ids.length,
+					filter, stats);
+		} else {
+			searchObjects(query, b, objects, pivots.size(), filter, stats);
+		}
+	}
+
+	/**
+	 * Match the given loaded objects.
+	 * 
+	 * @param b
+	 *            the query with its pivot vector.
+	 * @param e
+	 *            entry of the first object.
+	 */
+	private void searchObjects(OBQuery${Type}<O> query,
+			BucketObject${Type}<O> b, List<BucketObject${Type}<O>> list, int e,
+			Filter<O> filter, Statistics stats) throws IllegalAccessException,
+			OBException, InstantiationException, IllegalIdException {
+		for (BucketObject${Type}<O> db : list) {
+			if (deleted.get(e++)) {
+				continue;
+			}
 			${type} lowerBound;
-			if(pivotCount > 0){
+			if(pivots.size() > 0){
 				lowerBound = b.lInf(db);
 			}else{
 				lowerBound = 0;
@@ -494,6 +1092,71 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 		}
 	}
 
+	/**
+	 * Match the objects of {@link #data} without loading the ones that cannot
+	 * enter the result.
+	 */
+	private void searchView(OBQuery${Type}<O> query, ${type}[] pivotVector,
+			Filter<O> filter, Statistics stats) throws IllegalAccessException,
+			OBException, InstantiationException, IllegalIdException {
+		O q = query.getObject();
+		OBRaw${Type} raw = q instanceof OBRaw${Type} ? (OBRaw${Type}) q : null;
+		int i = 0;
+		int p = pivots.size();
+		while (i < ids.length) {
+			if (deleted.get(p + i)) {
+				i++;
+				continue;
+			}
+			${type} lowerBound;
+			if(pivotVector.length > 0){
+				lowerBound = lInf(pivotVector, i);
+			}else{
+				lowerBound = 0;
+			}
+			stats.incSmapCount();
+			if (query.isCandidate(lowerBound)) {
+				if (raw != null) {
+					${type} distance = raw.distance(view, offsets[i], lengths[i]);
+					stats.incDistanceCount();
+					if (query.isCandidate(distance)) {
+						O obj = getObject(i);
+						if (filter == null || filter.accept(obj, q)) {
+							query.add(ids[i], obj, distance);
+						}
+					}
+				} else {
+					O obj = getObject(i);
+					if (filter == null || filter.accept(obj, q)) {
+						${type} distance = q.distance(obj);
+						stats.incDistanceCount();
+						query.add(ids[i], obj, distance);
+					}
+				}
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * L-infinity distance between the given pivot vector and the smap vector
+	 * stored for the ith object of {@link #data}.
+	 */
+	private ${type} lInf(${type}[] pivotVector, int i) {
+		${type} max = 0;
+		int position = records[i];
+		int cx = 0;
+		while (cx < pivotVector.length) {
+			${type} t = (${type}) Math.abs(pivotVector[cx]
+					- view.get${BBType}(position + (cx * DISTANCE_SIZE)));
+			if (t > max) {
+				max = t;
+			}
+			cx++;
+		}
+		return max;
+	}
+
 	private int objectsCount(){
 		return objects.size();
 	}
@@ -511,6 +1174,20 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	 */
 	public byte[] serialize() throws OBException {
 		//OBAsserts.chkAssert(size() > 0, "Do not serialize an empty bucket");
+		if (objects == null && deletedCount == 0 && appended.isEmpty()) {
+			// the bucket was not modified.
+			return data;
+		}
+		try {
+			compact();
+		} catch (InstantiationException e) {
+			throw new OBException(e);
+		} catch (IllegalAccessException e) {
+			throw new OBException(e);
+		}
+		adjustPivots();
+		Collections.sort(objects, ID_ORDER);
+		table = null;
 		
 		ArrayList<byte[]> serializedPivots = new ArrayList<byte[]>(pivotsCount());
 		ArrayList<byte[]> serializedObjects = new ArrayList<byte[]>(objectsCount());
@@ -550,12 +1227,37 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 			miniHeaders = getAppropiate(Math.abs(mode)).getSize()
 					* size();
 		}
-		int bufferSize = HEADER_SIZE + objectBytes
-				+ (objectsCount() * pivotCount * DISTANCE_SIZE)
-				+ miniHeaders + (Index.ID_SIZE * size());
+		int header = HEADER_SIZE;
+		if (pivotsCount() > 0) {
+			header += ByteConstants.Int.getSize();
+		}
+		int idBytes = Index.ID_SIZE * pivotsCount();
+		long previous = 0;
+		for (BucketObject${Type}<O> b : objects) {
+			idBytes += ByteConversion.varLongSize(b.getId() - previous);
+			previous = b.getId();
+		}
+		int bufferSize = header + objectBytes
+				+ (objectsCount() * pivotsCount() * DISTANCE_SIZE)
+				+ miniHeaders + idBytes;
+		// objects of the same size are stored by columns.
+		boolean columnar = mode > 0 && objectsCount() > 0;
 		ByteBuffer buf = ByteConversion.createByteBuffer(bufferSize);
-		buf.putInt(size()); // write size
+		int flags = 0;
+		if (columnar) {
+			flags |= COLUMNAR;
+		}
+		if (pivotsCount() > 0) {
+			flags |= PIVOTS;
+		}
+		if (objectsCount() > 0) {
+			flags |= SORTED_IDS;
+		}
+		buf.putInt(size() | flags); // write size
 		buf.putInt(mode);
+		if (pivotsCount() > 0) {
+			buf.putInt(pivotsCount());
+		}
 
 		// write the pivots:
 
@@ -569,17 +1271,69 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 		}
 
 		// write the rest of the objects.
-		i = 0;
-		while (i < serializedObjects.size()) {
-			BucketObject${Type}<O> b = objects.get(i);
-			putObject(b, serializedObjects.get(i), buf);
-			i++;
+		if (columnar) {
+			putColumns(serializedObjects, buf);
+		} else {
+			previous = 0;
+			i = 0;
+			while (i < serializedObjects.size()) {
+				BucketObject${Type}<O> b = objects.get(i);
+				byte[] object = serializedObjects.get(i);
+				OBAsserts.chkAssert(object.length > 0, "Cannot store empty objects");
+				putSmap(b, buf);
+				ByteConversion.putVarLong(buf, b.getId() - previous);
+				previous = b.getId();
+				putNextObjectChunk(buf, object);
+				i++;
+			}
 		}
 		assert count == pivots.size() + objects.size();
-		//assert buf.remaining() == 0 : "Remaining: " + buf.remaining();
+		assert buf.remaining() == 0 : "Remaining: " + buf.remaining();
 		return buf.array();
 	}
 	
+	/**
+	 * Write the objects of the bucket by columns: ids, smap vectors and the
+	 * objects data.
+	 * 
+	 * @param serializedObjects
+	 *            data of each object, all of them of size mode.
+	 * @param buf
+	 *            the buffer in which we will write everything
+	 */
+	private void putColumns(List<byte[]> serializedObjects, ByteBuffer buf)
+			throws OBException {
+		long previous = 0;
+		for (BucketObject${Type}<O> b : objects) {
+			ByteConversion.putVarLong(buf, b.getId() - previous);
+			previous = b.getId();
+		}
+		for (BucketObject${Type}<O> b : objects) {
+			putSmap(b, buf);
+		}
+		for (byte[] object : serializedObjects) {
+			OBAsserts.chkAssert(object.length > 0, "Cannot store empty objects");
+			assert object.length == mode;
+			buf.put(object);
+		}
+	}
+
+	/**
+	 * Write the smap vector of the given object.
+	 */
+	private void putSmap(BucketObject${Type}<O> b, ByteBuffer buf)
+			throws OBException {
+		${type}[] smap = b.getSmapVector();
+		int size = smap == null ? 0 : smap.length;
+		OBAsserts.chkAssert(size == pivotsCount(),
+				"All the smap vectors must have the same size");
+		int cx = 0;
+		while (cx < size) {
+			buf.put${BBType}(smap[cx]);
+			cx++;
+		}
+	}
+
 	/**
 	 * Write the given bucket and object data into buf
 	 * @param b bucket
@@ -598,6 +1352,28 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 	 * Header size
 	 */
 	final int HEADER_SIZE = ByteConstants.Int.getSize() * 2;
+	/**
+	 * Set in the object count of buckets whose objects are stored by columns.
+	 */
+	static final int COLUMNAR = Integer.MIN_VALUE;
+	/**
+	 * Set in the object count of buckets that have pivots.
+	 */
+	static final int PIVOTS = 1 << 30;
+	/**
+	 * Set in the object count of buckets whose objects are sorted by id and
+	 * store their ids as varints.
+	 */
+	static final int SORTED_IDS = 1 << 29;
+
+	/**
+	 * Order of the objects in the serialized bucket.
+	 */
+	private static final Comparator<BucketObject<?>> ID_ORDER = new Comparator<BucketObject<?>>() {
+		public int compare(BucketObject<?> a, BucketObject<?> b) {
+			return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+		}
+	};
 	final int DISTANCE_SIZE = ByteConstants.${Type}.getSize();
 
 	@Override
@@ -607,7 +1383,8 @@ public class SleekBucket${Type}<O extends OB${Type}> implements
 
 	@Override
 	public void setPivots(int pivots) {
-			//this.pivotCount = pivots;
+		// the pivots are selected again when the bucket is serialized.
+		this.pivotCount = pivots;
 	}
 
 	@Override
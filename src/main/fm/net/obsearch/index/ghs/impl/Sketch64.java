@@ -6,19 +6,36 @@
 <@pp.changeOutputFile name="Sketch64${Type}.java" />
 package net.obsearch.index.ghs.impl;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
+import cern.colt.list.IntArrayList;
+
 import net.obsearch.index.ghs.CBitVector;
 import net.obsearch.index.Commons${Type};
 import net.obsearch.AbstractOBResult;
 import net.obsearch.asserts.OBAsserts;
+import net.obsearch.cache.ByteArrayKey;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.exception.IllegalIdException;
 import net.obsearch.exception.NotFrozenException;
@@ -31,6 +48,7 @@ import net.obsearch.index.Index${Type};
 import net.obsearch.index.bucket.impl.BucketObject${Type};
 import net.obsearch.index.bucket.sleek.SleekBucket${Type};
 import net.obsearch.index.ghs.AbstractSketch64;
+import net.obsearch.index.ghs.FastPriorityQueueInt;
 import net.obsearch.ob.OB${Type};
 import net.obsearch.pivots.IncrementalPairPivotSelector;
 import net.obsearch.pivots.IncrementalPivotSelector;
@@ -41,6 +59,11 @@ import net.obsearch.result.OBResultInvertedByte;
 import net.obsearch.result.OBResultInverted${Type};
 import net.obsearch.result.OBResult${Type};
 import net.obsearch.index.ghs.SketchProjection;
+import net.obsearch.index.utils.ByteArrayComparator;
+import net.obsearch.stats.Statistics;
+import net.obsearch.storage.CloseIterator;
+import net.obsearch.storage.TupleBytes;
+import net.obsearch.utils.bytes.ByteConversion;
 
 public final class Sketch64${Type}<O extends OB${Type}> extends AbstractSketch64<O, BucketObject${Type}<O>, OBQuery${Type}<O>, SleekBucket${Type}<O>>
 implements Index${Type}<O> {
@@ -49,13 +72,30 @@ implements Index${Type}<O> {
 	
 	private static final transient Logger logger = Logger
 	.getLogger(Sketch64${Type}.class.getName());
+
+	/**
+	 * Buckets with more objects than this value are split in parts when the
+	 * index is frozen, 0 if the buckets are not split.
+	 */
+	private int maxBucketSize = 0;
+
+	/**
+	 * Split buckets by bucket address, read from {@link #bucketSplits} when
+	 * they are first needed.
+	 */
+	private transient volatile Map<ByteArrayKey, BucketSplit> splits;
+
+	/**
+	 * Last object routed by each thread to a part of a split bucket.
+	 */
+	private transient volatile ThreadLocal<Route> routes;
 	
 	/**
-	 * Create a new Sketch64${Type} with m bytes. 
+	 * Create a new Sketch64${Type} with m bytes. The buckets do not use
+	 * pivots.
 	 * @param type Type of object that will be stored
 	 * @param pivotSelector Pivot selection strategy to be employed.
 	 * @param m The number of bits
-	 * @param bucketPivotCount Number of pivots per bucket
 	 * @throws OBStorageException
 	 * @throws OBException
 	 * @throws IOException
@@ -65,7 +105,26 @@ implements Index${Type}<O> {
 			)												
 			throws OBStorageException, OBException, IOException {
 		
-		super(type, pivotSelector,  m, 0);
+		this(type, pivotSelector,  m, 0);
+		
+	}
+
+	/**
+	 * Create a new Sketch64${Type} with m bytes. 
+	 * @param type Type of object that will be stored
+	 * @param pivotSelector Pivot selection strategy to be employed.
+	 * @param m The number of bits
+	 * @param bucketPivotCount Maximum number of pivots per bucket
+	 * @throws OBStorageException
+	 * @throws OBException
+	 * @throws IOException
+	 */
+	public Sketch64${Type}(Class<O> type,
+			IncrementalPairPivotSelector<O> pivotSelector, int m,
+			int bucketPivotCount)
+			throws OBStorageException, OBException, IOException {
+		
+		super(type, pivotSelector,  m, bucketPivotCount);
 		
 	}
 
@@ -90,14 +149,15 @@ implements Index${Type}<O> {
 		int i = 0;
 		CBitVector res = new CBitVector(m);
 		double[] lowerBounds = new double[m];
+		${type}[] distances = pivotDistances(bucket.getObject());
 		while(i < m){
-				${type} distanceA = pivotGrid[i][0].distance(bucket.getObject());
-				${type} distanceB = pivotGrid[i][1].distance(bucket.getObject());
+				${type} distanceA = distances[i * 2];
+				${type} distanceB = distances[(i * 2) + 1];
 			if(distanceA > distanceB ){
 					res.set(i);
-				distortionStats[i][1]++;
+				distortionStats[i].incrementAndGet(1);
 			}else{
-				distortionStats[i][0]++;
+				distortionStats[i].incrementAndGet(0);
 			}
 			// update the lower bounds:
 			lowerBounds[i] = Math.max(((double)Math.abs(distanceA - distanceB)) / 2, 0);
@@ -120,6 +180,55 @@ implements Index${Type}<O> {
 		return result;
 	}
 
+
+	/**
+	 * Compute the distances between the object and the pivot grid,
+	 * distances[i * 2] and distances[(i * 2) + 1] hold the distances to
+	 * pivotGrid[i][0] and pivotGrid[i][1] respectively. The distance to each
+	 * pivot of the pivot pool is computed once.
+	 */
+	private ${type}[] pivotDistances(final O object) throws OBException {
+		final O[] pool = getPivotPool();
+		final ${type}[] poolDistances = new ${type}[pool.length];
+		if(! isParallelProjection()){
+				long time = System.nanoTime();
+				pivotDistances(object, pool, poolDistances, 0, pool.length);
+				recordProjectionCost(System.nanoTime() - time);
+		}else{
+				int tasks = Math.min(getProjectionTasks(), pool.length);
+				List<Callable<Long>> work = new ArrayList<Callable<Long>>(tasks);
+				int i = 0;
+				while(i < tasks){
+						final int from = (int)(((long) pool.length) * i / tasks);
+						final int to = (int)(((long) pool.length) * (i + 1) / tasks);
+						work.add(new Callable<Long>(){
+										public Long call() throws OBException {
+												long time = System.nanoTime();
+												pivotDistances(object, pool, poolDistances, from, to);
+												return System.nanoTime() - time;
+										}
+								});
+						i++;
+				}
+				recordProjectionCost(invokeProjection(work));
+		}
+		int[] pairs = getPivotPairs();
+		${type}[] distances = new ${type}[pairs.length];
+		int i = 0;
+		while(i < pairs.length){
+				distances[i] = poolDistances[pairs[i]];
+				i++;
+		}
+		return distances;
+	}
+
+	private void pivotDistances(O object, O[] pool, ${type}[] distances, int from, int to) throws OBException {
+		int i = from;
+		while(i < to){
+				distances[i] = pool[i].distance(object);
+				i++;
+		}
+	}
 	
 	@Override
 	protected SleekBucket${Type}<O> instantiateBucketContainer(
@@ -135,6 +244,11 @@ implements Index${Type}<O> {
 		
 		}
 	}
+
+	@Override
+	protected SleekBucket${Type}<O> copyBucketContainer(SleekBucket${Type}<O> bc) {
+		return bc.copy();
+	}
 	
 	@Override
 	protected int primitiveDataTypeSize() {
@@ -180,13 +294,124 @@ implements Index${Type}<O> {
 		int kEstimation = estimateK(result.getK());
 		stats.addExtraStats("K-estimation", kEstimation);
 		long time = System.currentTimeMillis();
-		List<SketchProjection> sortedBuckets = searchBuckets(query, kEstimation);
+		FastPriorityQueueInt ranked = searchBucketOrdinals(query, getBucketLimit(kEstimation));
+		int[] sortedBuckets = ranked.get();
 		getStats().addExtraStats("Buckets_search_time", System.currentTimeMillis() - time);
-		for(SketchProjection bucket: sortedBuckets){
-				SleekBucket${Type}<O> container = this.bucketCache.get(bucket.getAddress());
+		if(isBoundedProbing()){
+				searchBounded(q, b, filter, query, sortedBuckets, ranked.getDistances());
+				return;
+		}
+		int kIndex = kIndex(result.getK());
+		if(isAdaptiveBudget(kIndex)){
+				searchAdaptive(q, b, filter, sortedBuckets, ranked.getDistances(), kIndex, budgetClass(query));
+				return;
+		}
+		for(int bucket: sortedBuckets){
         //SleekBucket${Type}<O> container = this.instantiateBucketContainer(this.Buckets.getValue(bucket.getAddress()), bucket.getAddress());
-			stats.incBucketsRead();
-			container.search(q, b, filter, getStats());															
+			searchBucket(sketches.getAddress(bucket), q, b, filter, getStats(), null);
+		}
+	}
+
+	/**
+	 * Read the buckets in hamming order until {@link #stopReading(int, int, int, int)}
+	 * decides that the result will not improve.
+	 */
+	private void searchAdaptive(OBQuery${Type}<O> q, BucketObject${Type}<O> b, Filter<O> filter, int[] sortedBuckets, int[] hamming, int kIndex, int queryClass) throws NotFrozenException, InstantiationException,
+			IllegalIdException, IllegalAccessException, OutOfRangeException,
+			OBException {
+		int stall = 0;
+		int i = 0;
+		while(i < sortedBuckets.length){
+				if(q.isFull() && stopReading(kIndex, queryClass, hamming[i] - hamming[0], stall)){
+						stats.incExtra("Adaptive_stop");
+						break;
+				}
+				int size = q.getResult().getSize();
+				${type} range = q.getDistance();
+				searchBucket(sketches.getAddress(sortedBuckets[i]), q, b, filter, getStats(), null);
+				if(q.getResult().getSize() != size || q.updatedRange(range)){
+						stall = 0;
+				}else{
+						stall++;
+				}
+				i++;
+		}
+	}
+
+	/**
+	 * Class of the given query sketch for the adaptive budget: how many
+	 * standard deviations its number of set bits is away from m / 2, the
+	 * expected value when each bit is equally likely. Sketches with many
+	 * equal bits are far from most of the pivot pairs and usually need a
+	 * different number of buckets than balanced sketches.
+	 */
+	private int budgetClass(SketchProjection query) {
+		int card = query.getCompactRepresentation().cardinality();
+		// |card - m/2| / (sqrt(m) / 2)
+		int z = (int) (Math.abs(2 * card - m) / Math.sqrt(m));
+		return Math.min(z, BUDGET_CLASSES - 1);
+	}
+
+	/**
+	 * Read the buckets in hamming order until no remaining bucket can contain
+	 * an object within the range of the query.
+	 */
+	private void searchBounded(OBQuery${Type}<O> q, BucketObject${Type}<O> b, Filter<O> filter, SketchProjection query, int[] sortedBuckets, int[] hamming) throws NotFrozenException, InstantiationException,
+			IllegalIdException, IllegalAccessException, OutOfRangeException,
+			OBException {
+		double[] bounds = hammingLowerBounds(query);
+		long[] tmp = new long[sketches.getWordsPerSketch()];
+		int i = 0;
+		while(i < sortedBuckets.length){
+				if(bounds[hamming[i]] > q.getDistance()){
+						break; // the remaining buckets are farther.
+				}
+				if(bucketLowerBound(query, sortedBuckets[i], tmp) > q.getDistance()){
+						stats.incExtra("Buckets_skipped");
+				}else{
+						searchBucket(sketches.getAddress(sortedBuckets[i]), q, b, filter, getStats(), null);
+				}
+				i++;
+		}
+	}
+
+	/**
+	 * Searches a batch of queries. The sketch set is scanned once for the
+	 * whole batch and each bucket is read once for all the queries that need
+	 * it.
+	 */
+	@Override
+	public void searchOBBatch(List<O> objects, ${type} r, Filter<O> filter,
+			List<OBPriorityQueue${Type}<O>> results) throws NotFrozenException,
+			InstantiationException, IllegalIdException, IllegalAccessException,
+			OutOfRangeException, OBException {
+		OBAsserts.chkAssert(objects.size() == results.size(), "There must be one result per query");
+		List<BucketObject${Type}<O>> bs = new ArrayList<BucketObject${Type}<O>>(objects.size());
+		List<OBQuery${Type}<O>> qs = new ArrayList<OBQuery${Type}<O>>(objects.size());
+		List<SketchProjection> projections = new ArrayList<SketchProjection>(objects.size());
+		int[] kEstimation = new int[objects.size()];
+		int i = 0;
+		while(i < objects.size()){
+				BucketObject${Type}<O> b = getBucket(objects.get(i));
+				bs.add(b);
+				qs.add(new OBQuery${Type}<O>(objects.get(i), r, results.get(i), b
+																				.getSmapVector()));
+				projections.add(this.getProjection(b));
+				kEstimation[i] = estimateK(results.get(i).getK());
+				stats.addExtraStats("K-estimation", kEstimation[i]);
+				i++;
+		}
+		long time = System.currentTimeMillis();
+		SortedMap<byte[], IntArrayList> buckets = groupBuckets(projections, kEstimation);
+		getStats().addExtraStats("Buckets_search_time", System.currentTimeMillis() - time);
+		for(Map.Entry<byte[], IntArrayList> bucket : buckets.entrySet()){
+				IntArrayList queries = bucket.getValue();
+				int cx = 0;
+				while(cx < queries.size()){
+						int q = queries.get(cx);
+						searchBucket(bucket.getKey(), qs.get(q), bs.get(q), filter, getStats(), null);
+						cx++;
+				}
 		}
 	}
 
@@ -229,20 +454,15 @@ implements Index${Type}<O> {
 							BucketObject${Type}<O> b = getBucket(sl.getObjects().get(0).getObject());
 							SketchProjection query = getProjection(b);
 							List<SketchProjection> sortedBuckets = searchBuckets(query, kEstimation);
-							List<SleekBucket${Type}<O>> buckets = new ArrayList<SleekBucket${Type}<O>>(sortedBuckets.size());
-							buckets.add(sl); // add also our current bucket!
-							for(SketchProjection sp : sortedBuckets){
-									SleekBucket${Type}<O> container = bucketCache.get(sp.getAddress());
-									buckets.add(container);
-							}							
 							// process the result.
 						  next = new ArrayList<OBQuery${Type}<O>>(sl.getObjects().size());
 							for (BucketObject${Type}<O> o : sl.getObjects()) {
 									OBPriorityQueue${Type}<O> result = new OBPriorityQueue${Type}<O>(k);
 									OBQuery${Type}<O> q = new OBQuery${Type}<O>(o.getObject(), range, result, null);
-									// search all the buckets!
-									for(SleekBucket${Type}<O> cont : buckets){
-											cont.search(q, b,  new FilterNonEquals(), getStats());		
+									// search all the buckets, our current bucket too!
+									sl.search(q, b,  new FilterNonEquals(), getStats());
+									for(SketchProjection sp : sortedBuckets){
+											searchBucket(sp.getAddress(), q, b, new FilterNonEquals(), getStats(), null);
 									}
 									next.add(q);
 							}
@@ -272,6 +492,643 @@ implements Index${Type}<O> {
 	
 
 	
+	/**
+	 * Number of source buckets processed by each k-nn graph task.
+	 */
+	private static final int KNN_BLOCK = 64;
+
+	/**
+	 * Build the k nearest neighbor graph of the whole database and stream it
+	 * to the given file. The buckets are split in blocks of {@link #KNN_BLOCK}
+	 * consecutive sketches and each block is processed by a task of the
+	 * executor: the closest buckets of the whole block are found with one
+	 * pass over the sketch set and each neighbor bucket is loaded once for all
+	 * the source buckets of the block that need it. Buckets are read directly
+	 * from the storage, the bucket cache is not used.
+	 *
+	 * The file is a sequence of edges (long id, long neighbor id, ${type}
+	 * distance) written with {@link DataOutputStream}. Blocks are written in
+	 * sketch order, the edges of an object are consecutive.
+	 *
+	 * @param k
+	 *            number of neighbors of each object.
+	 * @param r
+	 *            range of the searches.
+	 * @param out
+	 *            file that will hold the edges.
+	 * @param executor
+	 *            executor that runs the tasks.
+	 * @param tasks
+	 *            number of tasks that run at the same time.
+	 * @return the number of edges written.
+	 */
+	public long knnGraph(final int k, final ${type} r, File out,
+			ExecutorService executor, int tasks) throws OBException,
+			InstantiationException, IllegalAccessException {
+		OBAsserts.chkAssert(tasks > 0, "At least one task is needed");
+		loadMasks();
+		final int kEstimation = estimateK(k);
+		final int total = sketches.size();
+		LinkedList<Future<KnnBlock>> pending = new LinkedList<Future<KnnBlock>>();
+		long edges = 0;
+		long time = System.currentTimeMillis();
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(out), 1 << 16));
+			try {
+				int from = 0;
+				while (from < total || !pending.isEmpty()) {
+					if (from < total && pending.size() < tasks * 2) {
+						final int blockFrom = from;
+						final int blockTo = Math.min(from + KNN_BLOCK, total);
+						pending.add(executor.submit(new Callable<KnnBlock>() {
+								public KnnBlock call() throws Exception {
+									return knnBlock(blockFrom, blockTo, k, r, kEstimation);
+								}
+							}));
+						from = blockTo;
+					} else {
+						KnnBlock block = pending.removeFirst().get();
+						output.write(block.data);
+						edges += block.edges;
+						stats.incBucketsRead(block.stats.getBucketsRead());
+						stats.incDistanceCount(block.stats.getDistanceCount());
+						stats.incSmapCount(block.stats.getSmapCount());
+					}
+				}
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			throw new OBException(e);
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof OBException) {
+				throw (OBException) e.getCause();
+			}
+			throw new OBException(e);
+		} finally {
+			for (Future<KnnBlock> f : pending) {
+				f.cancel(true);
+			}
+		}
+		logger.info("Knn graph: " + edges + " edges in "
+				+ (System.currentTimeMillis() - time) + " msec");
+		return edges;
+	}
+
+	/**
+	 * Edges of a block of source buckets.
+	 */
+	private static final class KnnBlock {
+		private byte[] data;
+		private int edges;
+		private Statistics stats;
+	}
+
+	/**
+	 * Compute the edges of the objects stored in the buckets of the sketches
+	 * [from, to).
+	 */
+	private KnnBlock knnBlock(int from, int to, int k, ${type} r,
+			int kEstimation) throws OBException, InstantiationException,
+			IllegalAccessException, IllegalIdException, IOException {
+		Statistics blockStats = new Statistics();
+		List<SketchProjection> sources = new ArrayList<SketchProjection>(to - from);
+		int[] maxF = new int[to - from];
+		int i = from;
+		while (i < to) {
+			sources.add(new SketchProjection(null, sketches.getSketch(i), -1, null));
+			maxF[i - from] = kEstimation;
+			i++;
+		}
+		SortedMap<byte[], IntArrayList> neighbors = groupBuckets(sources, maxF);
+		// buckets loaded by this block, each one is read once.
+		Map<byte[], SleekBucket${Type}<O>> loaded = new TreeMap<byte[], SleekBucket${Type}<O>>(
+				new ByteArrayComparator());
+		List<List<OBQuery${Type}<O>>> queries = new ArrayList<List<OBQuery${Type}<O>>>(to - from);
+		List<List<BucketObject${Type}<O>>> queryBuckets = new ArrayList<List<BucketObject${Type}<O>>>(to - from);
+		i = from;
+		while (i < to) {
+			List<OBQuery${Type}<O>> qs = new ArrayList<OBQuery${Type}<O>>();
+			List<BucketObject${Type}<O>> bs = new ArrayList<BucketObject${Type}<O>>();
+			for (byte[] part : getBucketParts(sketches.getAddress(i))) {
+				SleekBucket${Type}<O> source = getContainer(part, loaded);
+				for (BucketObject${Type}<O> o : source.getObjects()) {
+					qs.add(new OBQuery${Type}<O>(o.getObject(), r,
+							new OBPriorityQueue${Type}<O>(k), null));
+					BucketObject${Type}<O> b = getBucket(o.getObject());
+					b.setId(o.getId());
+					bs.add(b);
+				}
+			}
+			queries.add(qs);
+			queryBuckets.add(bs);
+			i++;
+		}
+		Filter<O> filter = new FilterNonEquals<O>();
+		for (Map.Entry<byte[], IntArrayList> neighbor : neighbors.entrySet()) {
+			IntArrayList users = neighbor.getValue();
+			int cx = 0;
+			while (cx < users.size()) {
+				int s = users.get(cx);
+				List<OBQuery${Type}<O>> qs = queries.get(s);
+				List<BucketObject${Type}<O>> bs = queryBuckets.get(s);
+				int q = 0;
+				while (q < qs.size()) {
+					searchBucket(neighbor.getKey(), qs.get(q), bs.get(q), filter,
+							blockStats, loaded);
+					q++;
+				}
+				cx++;
+			}
+		}
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(data);
+		KnnBlock result = new KnnBlock();
+		int s = 0;
+		while (s < queries.size()) {
+			List<BucketObject${Type}<O>> bs = queryBuckets.get(s);
+			int q = 0;
+			while (q < bs.size()) {
+				for (OBResult${Type}<O> res : queries.get(s).get(q).getResult()
+						.getSortedElements()) {
+					out.writeLong(bs.get(q).getId());
+					out.writeLong(res.getId());
+					out.write${Type}(res.getDistance());
+					result.edges++;
+				}
+				q++;
+			}
+			s++;
+		}
+		out.close();
+		result.data = data.toByteArray();
+		result.stats = blockStats;
+		return result;
+	}
+
+	/**
+	 * Read a bucket from the storage unless it was already loaded. If loaded
+	 * is null the bucket is taken from the bucket cache.
+	 */
+	private SleekBucket${Type}<O> getContainer(byte[] address,
+			Map<byte[], SleekBucket${Type}<O>> loaded) throws OBException,
+			InstantiationException, IllegalAccessException {
+		if (loaded == null) {
+			return getBucketContainer(address);
+		}
+		SleekBucket${Type}<O> res = loaded.get(address);
+		if (res == null) {
+			res = readBucket(address);
+			loaded.put(address, res);
+		}
+		return res;
+	}
+
+	/**
+	 * Search the bucket of the given address. The parts of a split bucket
+	 * are read from the closest center to the farthest one, parts that cannot
+	 * hold an object within the range of the query are skipped.
+	 * 
+	 * @param loaded
+	 *            buckets already read (see
+	 *            {@link #getContainer(byte[], Map)}).
+	 */
+	private void searchBucket(byte[] address, OBQuery${Type}<O> q,
+			BucketObject${Type}<O> b, Filter<O> filter, Statistics stats,
+			Map<byte[], SleekBucket${Type}<O>> loaded) throws OBException,
+			InstantiationException, IllegalAccessException,
+			IllegalIdException {
+		BucketSplit split = getSplit(address);
+		if (split == null) {
+			stats.incBucketsRead();
+			getContainer(address, loaded).search(q, b, filter, stats);
+			return;
+		}
+		${type}[] distances = split.distances(q.getObject());
+		stats.incDistanceCount(distances.length);
+		for (int i : split.order(distances)) {
+			if (distances[i] - split.radius[i] > q.getDistance()) {
+				stats.incExtra("Parts_skipped");
+				continue;
+			}
+			stats.incBucketsRead();
+			getContainer(split.getPart(i), loaded).search(q, b, filter, stats);
+		}
+	}
+
+	/**
+	 * Return the keys of the buckets that hold the objects of the given
+	 * address: the parts of the bucket if it was split, the address
+	 * otherwise.
+	 */
+	private byte[][] getBucketParts(byte[] address) throws OBException {
+		BucketSplit split = getSplit(address);
+		if (split == null) {
+			return new byte[][] { address };
+		}
+		byte[][] res = new byte[split.centers.length][];
+		int i = 0;
+		while (i < res.length) {
+			res[i] = split.getPart(i);
+			i++;
+		}
+		return res;
+	}
+
+	/**
+	 * Split the buckets with more than the given number of objects when the
+	 * index is frozen. Centers are selected among the objects of the bucket
+	 * (each one the farthest object from the previous centers) and each
+	 * object is stored in the part of its closest center. Parts with more
+	 * than maxSize objects get more centers until they fit; objects at
+	 * distance 0 of their center that do not fit are stored in extra parts
+	 * with the same center. Searches compute the distance to the centers and
+	 * skip the parts whose covering radius is out of the range of the query.
+	 * Right after the freeze no part holds more than maxSize objects, the
+	 * objects inserted later are appended to the part of their closest
+	 * center.
+	 * 
+	 * @param maxSize
+	 *            maximum number of objects of a bucket, 0 (the default)
+	 *            disables the splits.
+	 * @throws OBException
+	 */
+	public void setMaxBucketSize(int maxSize) throws OBException {
+		OBAsserts.chkAssert(!isFrozen(),
+				"The buckets are split when the index is frozen");
+		OBAsserts.chkAssert(maxSize >= 0, "Invalid bucket size");
+		this.maxBucketSize = maxSize;
+	}
+
+	public int getMaxBucketSize() {
+		return maxBucketSize;
+	}
+
+	@Override
+	protected int storeBucket(byte[] address, SleekBucket${Type}<O> bc)
+			throws OBException, InstantiationException, IllegalAccessException {
+		if (maxBucketSize <= 0 || bc.size() <= maxBucketSize) {
+			return super.storeBucket(address, bc);
+		}
+		List<BucketObject${Type}<O>> objects = bc.getObjects();
+		int total = objects.size();
+		int parts = (total + maxBucketSize - 1) / maxBucketSize;
+		// distance of each object to its closest center.
+		${type}[] closest = new ${type}[total];
+		int[] owner = new int[total];
+		List<O> centers = new ArrayList<O>(parts);
+		int next = 0;
+		while (centers.size() < parts) {
+			next = addCenter(objects, next, centers, closest, owner);
+			if (closest[next] == 0) {
+				break; // the remaining objects are copies of the centers.
+			}
+		}
+		// the farthest object of each part that is too large becomes a new
+		// center.
+		int[] sizes;
+		boolean added;
+		do {
+			int n = centers.size();
+			sizes = new int[n];
+			int[] farthest = new int[n];
+			int i = 0;
+			while (i < total) {
+				int o = owner[i];
+				if (sizes[o] == 0 || closest[i] > closest[farthest[o]]) {
+					farthest[o] = i;
+				}
+				sizes[o]++;
+				i++;
+			}
+			added = false;
+			int c = 0;
+			while (c < n) {
+				if (sizes[c] > maxBucketSize && closest[farthest[c]] > 0) {
+					addCenter(objects, farthest[c], centers, closest, owner);
+					added = true;
+				}
+				c++;
+			}
+		} while (added);
+		// the objects of the parts that are still too large are at distance 0
+		// of their center, the ones that do not fit go to extra parts with
+		// the same center.
+		int n = centers.size();
+		int[] seen = new int[n];
+		int[] extra = new int[n];
+		int i = 0;
+		while (i < total) {
+			int o = owner[i];
+			if (seen[o] >= maxBucketSize) {
+				if (seen[o] % maxBucketSize == 0) {
+					extra[o] = centers.size();
+					centers.add(centers.get(o));
+				}
+				owner[i] = extra[o];
+			}
+			seen[o]++;
+			i++;
+		}
+		int c = centers.size();
+		BucketSplit split = new BucketSplit(address, centers
+				.toArray(emptyPivotsArray(c)));
+		List<SleekBucket${Type}<O>> containers = new ArrayList<SleekBucket${Type}<O>>(c);
+		i = 0;
+		while (i < c) {
+			containers.add(instantiateBucketContainer(null, split.getPart(i)));
+			i++;
+		}
+		i = 0;
+		while (i < total) {
+			BucketObject${Type}<O> o = objects.get(i);
+			containers.get(owner[i]).insertBulk(o, o.getObject());
+			split.radius[owner[i]] = (${type}) Math.max(split.radius[owner[i]],
+					closest[i]);
+			i++;
+		}
+		i = 0;
+		while (i < c) {
+			Buckets.put(split.getPart(i), encodeBucket(containers.get(i)
+					.serialize()));
+			i++;
+		}
+		bucketSplits.put(address, split.serialize());
+		loadSplits().put(new ByteArrayKey(address), split);
+		return c;
+	}
+
+	/**
+	 * Add objects[next] to the centers of a split and move to its part the
+	 * objects that are closer to it than to their center.
+	 * 
+	 * @return the object farthest from its center.
+	 */
+	private int addCenter(List<BucketObject${Type}<O>> objects, int next,
+			List<O> centers, ${type}[] closest, int[] owner) throws OBException {
+		O center = objects.get(next).getObject();
+		int c = centers.size();
+		centers.add(center);
+		int farthest = 0;
+		int i = 0;
+		while (i < closest.length) {
+			${type} d = center.distance(objects.get(i).getObject());
+			if (c == 0 || d < closest[i]) {
+				closest[i] = d;
+				owner[i] = c;
+			}
+			if (closest[i] > closest[farthest]) {
+				farthest = i;
+			}
+			i++;
+		}
+		return farthest;
+	}
+
+	/**
+	 * Objects of a split bucket are stored in the part of their closest
+	 * center.
+	 */
+	@Override
+	protected byte[] getBucketAddress(byte[] address, O object)
+			throws OBException {
+		BucketSplit split = getSplit(address);
+		if (split == null) {
+			return address;
+		}
+		return split.getPart(route(split, object).part);
+	}
+
+	/**
+	 * The objects at distance 0 of a center can be stored in any of the parts
+	 * of the center, all the parts of the closest centers are returned.
+	 */
+	@Override
+	protected byte[][] getBucketAddresses(byte[] address, O object)
+			throws OBException {
+		BucketSplit split = getSplit(address);
+		if (split == null) {
+			return new byte[][] { address };
+		}
+		Route r = route(split, object);
+		List<byte[]> res = new ArrayList<byte[]>(1);
+		res.add(split.getPart(r.part));
+		int i = r.part + 1;
+		while (i < r.distances.length) {
+			if (r.distances[i] == r.distance) {
+				res.add(split.getPart(i));
+			}
+			i++;
+		}
+		return res.toArray(new byte[res.size()][]);
+	}
+
+	/**
+	 * Inserted objects grow the radius of their part so the searches do not
+	 * skip them.
+	 */
+	@Override
+	protected void prepareBucketInsert(byte[] address, O object)
+			throws OBException {
+		BucketSplit split = getSplit(address);
+		if (split == null) {
+			return;
+		}
+		Route r = route(split, object);
+		synchronized (split) {
+			if (r.distance > split.radius[r.part]) {
+				split.radius[r.part] = r.distance;
+				bucketSplits.put(address, split.serialize());
+			}
+		}
+	}
+
+	/**
+	 * Find the part of the given split that holds the given object. The
+	 * last route of each thread is kept: an insert routes its object to check
+	 * that the object does not exist and again to store it.
+	 */
+	private Route route(BucketSplit split, O object) throws OBException {
+		ThreadLocal<Route> last = routes;
+		if (last == null) {
+			synchronized (this) {
+				if (routes == null) {
+					routes = new ThreadLocal<Route>();
+				}
+				last = routes;
+			}
+		}
+		Route r = last.get();
+		if (r != null && r.split == split && r.object == object) {
+			return r;
+		}
+		${type}[] distances = split.distances(object);
+		int best = 0;
+		int i = 1;
+		while (i < distances.length) {
+			if (distances[i] < distances[best]) {
+				best = i;
+			}
+			i++;
+		}
+		r = new Route(split, object, best, distances);
+		last.set(r);
+		return r;
+	}
+
+	/**
+	 * Closest part of a split bucket to an object.
+	 */
+	private final class Route {
+		private final BucketSplit split;
+		private final O object;
+		private final int part;
+		private final ${type} distance;
+		/**
+		 * Distance of the object to each center.
+		 */
+		private final ${type}[] distances;
+
+		private Route(BucketSplit split, O object, int part, ${type}[] distances) {
+			this.split = split;
+			this.object = object;
+			this.part = part;
+			this.distance = distances[part];
+			this.distances = distances;
+		}
+	}
+
+	/**
+	 * @return the split bucket of the given address or null if the bucket
+	 *         was not split.
+	 */
+	private BucketSplit getSplit(byte[] address) throws OBException {
+		if (maxBucketSize <= 0) {
+			return null;
+		}
+		return loadSplits().get(new ByteArrayKey(address));
+	}
+
+	private Map<ByteArrayKey, BucketSplit> loadSplits() throws OBException {
+		Map<ByteArrayKey, BucketSplit> res = splits;
+		if (res == null) {
+			synchronized (this) {
+				res = splits;
+				if (res == null) {
+					res = new HashMap<ByteArrayKey, BucketSplit>();
+					CloseIterator<TupleBytes> it = bucketSplits.processAll();
+					while (it.hasNext()) {
+						TupleBytes t = it.next();
+						res.put(new ByteArrayKey(t.getKey()), new BucketSplit(t
+								.getKey(), t.getValue()));
+					}
+					it.closeCursor();
+					splits = res;
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * A bucket stored in several parts. Part i holds the objects whose
+	 * closest center is centers[i], all of them within radius[i] of the
+	 * center. Part i is stored under the address of the bucket followed by i.
+	 */
+	private final class BucketSplit {
+		private final byte[] address;
+		private final O[] centers;
+		private final ${type}[] radius;
+
+		private BucketSplit(byte[] address, O[] centers) {
+			this.address = address;
+			this.centers = centers;
+			this.radius = new ${type}[centers.length];
+		}
+
+		/**
+		 * Read a split stored by {@link #serialize()}.
+		 */
+		private BucketSplit(byte[] address, byte[] data) throws OBException {
+			this.address = address;
+			ByteBuffer buf = ByteConversion.createByteBuffer(data);
+			int parts = buf.getInt();
+			centers = emptyPivotsArray(parts);
+			radius = new ${type}[parts];
+			int i = 0;
+			try {
+				while (i < parts) {
+					radius[i] = buf.get${BBType}();
+					byte[] center = new byte[buf.getInt()];
+					buf.get(center);
+					centers[i] = bytesToObject(center);
+					i++;
+				}
+			} catch (InstantiationException e) {
+				throw new OBException(e);
+			} catch (IllegalAccessException e) {
+				throw new OBException(e);
+			}
+		}
+
+		private byte[] serialize() throws OBException {
+			List<byte[]> data = new ArrayList<byte[]>(centers.length);
+			int size = ByteConstants.Int.getSize();
+			for (O center : centers) {
+				byte[] d = objectToBytes(center);
+				data.add(d);
+				size += ByteConstants.${Type}.getSize()
+						+ ByteConstants.Int.getSize() + d.length;
+			}
+			ByteBuffer buf = ByteConversion.createByteBuffer(size);
+			buf.putInt(centers.length);
+			int i = 0;
+			while (i < centers.length) {
+				buf.put${BBType}(radius[i]);
+				buf.putInt(data.get(i).length);
+				buf.put(data.get(i));
+				i++;
+			}
+			return buf.array();
+		}
+
+		private byte[] getPart(int i) {
+			return ByteBuffer.allocate(address.length + 4).put(address)
+					.putInt(i).array();
+		}
+
+		private ${type}[] distances(O object) throws OBException {
+			${type}[] res = new ${type}[centers.length];
+			int i = 0;
+			while (i < centers.length) {
+				res[i] = centers[i].distance(object);
+				i++;
+			}
+			return res;
+		}
+
+		/**
+		 * @return the parts sorted by the given distances.
+		 */
+		private int[] order(${type}[] distances) {
+			int[] res = new int[distances.length];
+			int i = 0;
+			while (i < res.length) {
+				int j = i;
+				while (j > 0 && distances[res[j - 1]] > distances[i]) {
+					res[j] = res[j - 1];
+					j--;
+				}
+				res[j] = i;
+				i++;
+			}
+			return res;
+		}
+	}
+
 	/**
 	 * This method returns a list of all the distances of the query against  the DB.
 	 * This helps to calculate EP values in a cheaper way. results that are equal to the original object are added
@@ -308,8 +1165,11 @@ implements Index${Type}<O> {
 
 		${type} [] sortedList = fullMatchLite( object, true);
 		//`calculate the AVG distance between the sample and the DB.
-		for(${type} t : sortedList){
-				getStats().addExtraStats("GENERAL_DISTANCE", t);
+		Statistics sampleStats = new Statistics();
+		synchronized(getStats()){
+				for(${type} t : sortedList){
+						getStats().addExtraStats("GENERAL_DISTANCE", t);
+				}
 		}
 		// we now calculate the buckets and we sort them
 		// according to the distance of the query.
@@ -338,14 +1198,26 @@ implements Index${Type}<O> {
 			// get the query for the
 			AbstractOBQuery<O> queryAbst = getKQuery(object, userK[i]);
 			OBQuery${Type}<O> query = (OBQuery${Type}<O>) queryAbst;
-			
+			// features for the adaptive budget.
+			int stall = 0;
+			int maxStall = 0;
 			for (SketchProjection result : sortedBuckets) {
 				
-					SleekBucket${Type}<O> container = this.bucketCache.get(result.getAddress());
 					//SleekBucket${Type}<O> container = this.instantiateBucketContainer(this.Buckets.getValue(result.getAddress()), result.getAddress());
-				// search the objects
-				assert container != null : "Problem while loading: " + result.getSketch();
-				container.search(query, b, fne, getStats());
+				int size = query.getResult().getSize();
+				${type} range = query.getDistance();
+				// search the objects of all the parts of the bucket.
+				for (byte[] part : getBucketParts(result.getAddress())) {
+					SleekBucket${Type}<O> container = getEstimationBucket(part);
+					assert container != null : "Problem while loading: " + result.getSketch();
+					container.search(query, b, fne, sampleStats);
+				}
+				if(query.getResult().getSize() != size || query.updatedRange(range)){
+						maxStall = Math.max(maxStall, stall);
+						stall = 0;
+				}else{
+						stall++;
+				}
 				// calculate the ep of the query and the DB.
 				if (query.isFull() ||  (query.getResult().getSize() >= (databaseSize() -1)) ) { // only if the query is full of items.
 					ep = query.approx(sortedList);
@@ -358,7 +1230,8 @@ implements Index${Type}<O> {
 					// goodK buckets required to retrieve with k==i.
 						logger.info("Found result after reading: " + goodK + " buckets " + " current error: " + ep + " <= expected error: " + this.getExpectedEP());
 						logger.info("CARD" + result.getCompactRepresentation().cardinality() + " CARD_Q: " + longAddr.getCompactRepresentation().cardinality());
-					kEstimators[i].add(goodK);
+					addKSample(i, goodK);
+					addBudgetSample(i, budgetClass(longAddr), result.getDistance() - sortedBuckets.get(0).getDistance(), maxStall);
            logger.info("Distance best found: " + query.getResult().getSortedElements().get(0).getDistance());
            logger.info("Distance real: " + sortedList[0]);
 					 logger.info("Query: " + object);
@@ -370,7 +1243,7 @@ implements Index${Type}<O> {
 			}
 			i++;
 		}
-
+		mergeEstimationStats(sampleStats);
 	}
 	
 	
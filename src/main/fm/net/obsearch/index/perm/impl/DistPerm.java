@@ -11,8 +11,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.logging.Logger;
 
+import cern.colt.list.IntArrayList;
+
 import net.obsearch.OB;
 import net.obsearch.OperationStatus;
 import net.obsearch.asserts.OBAsserts;
@@ -34,6 +38,7 @@ import net.obsearch.ob.OB${Type};
 import net.obsearch.pivots.IncrementalPivotSelector;
 import net.obsearch.query.AbstractOBQuery;
 import net.obsearch.query.OBQuery${Type};
+import net.obsearch.stats.Statistics;
 import net.obsearch.result.OBPriorityQueue${Type};
 import net.obsearch.index.perm.CompactPerm;
 
@@ -127,8 +132,11 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 
 		${type} [] sortedList = fullMatchLite( object, true);
 		//`calculate the AVG distance between the sample and the DB.
-		for(${type} t : sortedList){
-				getStats().addExtraStats("GENERAL_DISTANCE", t);
+		Statistics sampleStats = new Statistics();
+		synchronized(getStats()){
+				for(${type} t : sortedList){
+						getStats().addExtraStats("GENERAL_DISTANCE", t);
+				}
 		}
 		// we now calculate the buckets and we sort them
 		// according to the distance of the query.
@@ -161,10 +169,10 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 			
 			for (PermProjection result : sortedBuckets) {
 				
-				SleekBucket${Type}<O> container = this.bucketCache.get(result.getAddress());
+				SleekBucket${Type}<O> container = getEstimationBucket(result.getAddress());
 				// search the objects
 				assert container != null : "Problem while loading bucket " ;
-				container.search(query, b, fne, getStats());
+				container.search(query, b, fne, sampleStats);
 				// calculate the ep of the query and the DB.
 				if (query.isFull()) { // only if the query is full of items.
 					ep = query.ep(sortedList);
@@ -176,7 +184,7 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 					// add the information to the stats:
 					// goodK buckets required to retrieve with k==i.
 						logger.info("Found result after reading: " + goodK + " buckets ");
-					kEstimators[i].add(goodK);
+					addKSample(i, goodK);
 					// store the distance of the best object and the real-best object
 					${type} difference = (${type})Math.abs(sortedList[0] - query.getResult().getSortedElements().get(0).getDistance());
 
@@ -185,7 +193,7 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 			}
 			i++;
 		}
-		
+		mergeEstimationStats(sampleStats);
 	}
 	
 	@Override
@@ -210,6 +218,11 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 		}
 	}
 
+	@Override
+	protected SleekBucket${Type}<O> copyBucketContainer(SleekBucket${Type}<O> bc) {
+		return bc.copy();
+	}
+
 	
 	@Override
 	protected int primitiveDataTypeSize() {
@@ -235,11 +248,53 @@ public class DistPerm${Type}<O extends OB${Type}> extends AbstractDistPerm<O, Bu
 		List<PermProjection> sortedBuckets = searchBuckets(query, kEstimation);
 		getStats().addExtraStats("Buckets_search_time", System.currentTimeMillis() - time);
 		for(PermProjection bucket: sortedBuckets){
-				SleekBucket${Type}<O> container = this.bucketCache.get(bucket.getAddress());
+				SleekBucket${Type}<O> container = getBucketContainer(bucket.getAddress());
 			stats.incBucketsRead();
 			container.search(q, b, filter, getStats());															
 		}
 	}
+
+	/**
+	 * Searches a batch of queries. The sketch set is scanned once for the
+	 * whole batch and each bucket is read once for all the queries that need
+	 * it.
+	 */
+	@Override
+	public void searchOBBatch(List<O> objects, ${type} r, Filter<O> filter,
+			List<OBPriorityQueue${Type}<O>> results) throws NotFrozenException,
+			InstantiationException, IllegalIdException, IllegalAccessException,
+			OutOfRangeException, OBException {
+		OBAsserts.chkAssert(objects.size() == results.size(), "There must be one result per query");
+		List<BucketObject${Type}<O>> bs = new ArrayList<BucketObject${Type}<O>>(objects.size());
+		List<OBQuery${Type}<O>> qs = new ArrayList<OBQuery${Type}<O>>(objects.size());
+		List<PermProjection> projections = new ArrayList<PermProjection>(objects.size());
+		int[] kEstimation = new int[objects.size()];
+		int i = 0;
+		while(i < objects.size()){
+				BucketObject${Type}<O> b = getBucket(objects.get(i));
+				bs.add(b);
+				qs.add(new OBQuery${Type}<O>(objects.get(i), r, results.get(i), b
+																				.getSmapVector()));
+				projections.add(this.getProjection(b));
+				kEstimation[i] = estimateK(results.get(i).getK());
+				stats.addExtraStats("K-estimation", kEstimation[i]);
+				i++;
+		}
+		long time = System.currentTimeMillis();
+		SortedMap<byte[], IntArrayList> buckets = groupBuckets(projections, kEstimation);
+		getStats().addExtraStats("Buckets_search_time", System.currentTimeMillis() - time);
+		for(Map.Entry<byte[], IntArrayList> bucket : buckets.entrySet()){
+				SleekBucket${Type}<O> container = getBucketContainer(bucket.getKey());
+				IntArrayList queries = bucket.getValue();
+				int cx = 0;
+				while(cx < queries.size()){
+						int q = queries.get(cx);
+						stats.incBucketsRead();
+						container.search(qs.get(q), bs.get(q), filter, getStats());
+						cx++;
+				}
+		}
+	}
 	
 	@Override
 	public void searchOB(O object, ${type} r, OBPriorityQueue${Type}<O> result)
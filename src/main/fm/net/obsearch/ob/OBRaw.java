@@ -0,0 +1,58 @@
+<@pp.dropOutputFile />
+<#list types as t>
+<#assign type = t.name>
+<#assign Type = t.name?cap_first>
+<@pp.changeOutputFile name="OBRaw"+Type+".java" />
+
+package net.obsearch.ob;
+import java.nio.ByteBuffer;
+
+import net.obsearch.exception.OBException;
+
+/*
+    OBSearch: a distributed similarity search engine
+    This project is to similarity search what 'bit-torrent' is to downloads.
+    Copyright (C)  2007 Arnoldo Jose Muller Molina
+
+  	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Optional extension of OB${Type} for objects that can calculate their
+ * distance to a serialized object without loading it. Buckets use it to
+ * compare a query against the objects of a bucket without creating them.
+ * @author Arnoldo Jose Muller Molina
+ */
+
+public interface OBRaw${Type} extends OB${Type} {
+
+    /**
+     * Calculates the distance between "this" and the object serialized in
+     * data[offset, offset + length). The bytes are exactly the ones returned
+     * by store(). The buffer is shared: implementations must only use
+     * absolute reads and must not change the position, limit or order of
+     * the buffer. The buffer has the byte order of ByteConversion.
+     * @param data
+     *            buffer that holds the serialized object.
+     * @param offset
+     *            first byte of the object.
+     * @param length
+     *            number of bytes of the object.
+     * @return the distance, the same value distance(OB${Type}) would return
+     *         for the loaded object.
+     * @throws OBException
+     *             User generated exception
+     */
+    ${type} distance(ByteBuffer data, int offset, int length) throws OBException;
+}
+</#list>
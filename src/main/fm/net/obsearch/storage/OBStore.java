@@ -55,6 +55,20 @@ public interface OBStore${Type} extends OBStore<Tuple${Type}> {
      *                 the nature of the error.
      */
     byte[] getValue(${type}  key) throws IllegalArgumentException, OBStorageException;
+
+    /**
+     * Returns a read only view of the value of the given key. Storage
+     * systems that keep their data in memory mapped files return a view of
+     * the mapped pages, so no copy is made. The view is positioned at the
+     * beginning of the value and must not be kept after the key is
+     * modified.
+     * @param key the key that will be searched.
+     * @return the value of key, or null if the key does not exist.
+     * @throws IllegalArgumentException If the underlying storage system can hold multiple keys.
+     * @throws OBStorageException
+     *                 If an exception occurs at the underlying storage system.
+     */
+    ByteBuffer getValueBuffer(${type} key) throws IllegalArgumentException, OBStorageException;
     
     /**
      * Process the given range of items (from low to high), including low and high. The TupleProcessor's process
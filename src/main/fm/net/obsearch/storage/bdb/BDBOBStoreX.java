@@ -46,6 +46,7 @@ import com.sleepycat.${bdb}.DatabaseException;
 import com.sleepycat.${bdb}.OperationStatus;
 import java.nio.ByteBuffer;
 import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.utils.bytes.ByteConversion;
 
 /** 
 	*  BDBOBStore${Type} is a wrapper for Berkeley indexes that assumes
@@ -104,6 +105,17 @@ public final class BDBOBStore${Bdb}${Type}
         return super.getValue(getBytes(key));
     }
 
+    public ByteBuffer getValueBuffer(${type} key) throws IllegalArgumentException,
+            OBStorageException {
+        byte[] value = getValue(key);
+        if (value == null) {
+            return null;
+        }
+        // views do not keep the byte order.
+        return ByteConversion.createByteBuffer(value).asReadOnlyBuffer()
+                .order(ByteConversion.ORDERING);
+    }
+
     public net.obsearch.OperationStatus put(${type} key, byte[] value) throws IllegalArgumentException,
             OBStorageException {
         return super.put(getBytes(key), value);
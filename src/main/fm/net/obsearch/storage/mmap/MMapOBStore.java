@@ -0,0 +1,151 @@
+<@pp.dropOutputFile />
+<#include "/@inc/ob.ftl">
+<#list types as t>
+<@type_info t=t/>
+<@pp.changeOutputFile name="MMapOBStore${Type}.java" />
+package net.obsearch.storage.mmap;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.storage.CloseIterator;
+import net.obsearch.storage.OBStorageConfig;
+import net.obsearch.storage.OBStore${Type};
+import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.storage.Tuple${Type};
+
+/**
+ * MMapOBStore${Type} is a memory mapped storage device whose keys are
+ * ${type}s.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class MMapOBStore${Type} extends AbstractMMapOBStore<Tuple${Type}>
+		implements OBStore${Type} {
+
+<#if t.name != "float" && t.name != "double">
+	/**
+	 * Not null if the records are kept in an array indexed by the keys. The
+	 * keys are then used directly, without serializing them.
+	 */
+	private final FixedRecordArray records;
+
+</#if>
+	MMapOBStore${Type}(String name, MMapStorage storage, OBStoreFactory fact,
+			OBStorageConfig conf) {
+		super(name, storage, fact, conf);
+<#if t.name != "float" && t.name != "double">
+		records = storage instanceof FixedRecordArray ? (FixedRecordArray) storage
+				: null;
+</#if>
+	}
+
+	/**
+	 * Converts the given value to an array of bytes.
+	 *
+	 * @param value
+	 *            the value to be converted.
+	 * @return An array of bytes with the given value encoded.
+	 */
+	private byte[] getBytes(${type} value) {
+		return fact.serialize${Type}(value);
+	}
+
+	/**
+	 * Converts the value of the given entry into its primitive type.
+	 *
+	 * @param entry
+	 *            The place where we will put the entry.
+	 */
+	public ${type} bytesToValue(byte[] entry) {
+		return fact.deSerialize${Type}(entry);
+	}
+
+	public byte[] getValue(${type} key) throws IllegalArgumentException,
+			OBStorageException {
+<#if t.name != "float" && t.name != "double">
+		if (records != null) {
+			return toBytes(records.get(key));
+		}
+</#if>
+		return super.getValue(getBytes(key));
+	}
+
+	public ByteBuffer getValueBuffer(${type} key)
+			throws IllegalArgumentException, OBStorageException {
+<#if t.name != "float" && t.name != "double">
+		if (records != null) {
+			return records.get(key);
+		}
+</#if>
+		return storage.get(getBytes(key));
+	}
+
+	public net.obsearch.OperationStatus put(${type} key, byte[] value)
+			throws OBStorageException {
+<#if t.name != "float" && t.name != "double">
+		if (records != null) {
+			checkFixedRecord(value);
+			records.put(key, value);
+			return status(true);
+		}
+</#if>
+		return super.put(getBytes(key), value);
+	}
+
+	public net.obsearch.OperationStatus delete(${type} key)
+			throws OBStorageException {
+<#if t.name != "float" && t.name != "double">
+		if (records != null) {
+			return status(records.delete(key));
+		}
+</#if>
+		return super.delete(getBytes(key));
+	}
+
+	public CloseIterator<Tuple${Type}> processRange(${type} low, ${type} high)
+			throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public CloseIterator<Tuple${Type}> processRangeReverse(${type} low,
+			${type} high) throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public CloseIterator<Tuple${Type}> processAll() throws OBStorageException {
+		return new ${Type}Iterator();
+	}
+
+	private final class ${Type}Iterator extends CursorIterator<Tuple${Type}> {
+
+		private ${Type}Iterator() throws OBStorageException {
+			super();
+		}
+
+		protected Tuple${Type} createTuple(byte[] key, byte[] value) {
+			return new Tuple${Type}(bytesToValue(key), value);
+		}
+	}
+
+}
+</#list>
@@ -51,6 +51,52 @@ public class ByteConversion {
 				res.order(ORDERING);
         return res;
     }
+
+    /**
+     * Number of bytes used by {@link #putVarLong(ByteBuffer, long)} to
+     * write the given value.
+     * @param v value to write.
+     * @return size in bytes of the encoded value.
+     */
+    public static int varLongSize(long v){
+        int size = 1;
+        while((v & ~0x7FL) != 0){
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write the given value as an unsigned varint: seven bits per byte, the
+     * highest bit of each byte is set if more bytes follow.
+     * @param out buffer in which the value will be written.
+     * @param v value to write.
+     */
+    public static void putVarLong(ByteBuffer out, long v){
+        while((v & ~0x7FL) != 0){
+            out.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte)v);
+    }
+
+    /**
+     * Read a value written by {@link #putVarLong(ByteBuffer, long)}.
+     * @param in buffer positioned at the value.
+     * @return the value.
+     */
+    public static long getVarLong(ByteBuffer in){
+        long res = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = in.get();
+            res |= ((long)(b & 0x7F)) << shift;
+            shift += 7;
+        }while((b & 0x80) != 0);
+        return res;
+    }
 		
 		<#list types as t>
 		<@type_info t=t/>
@@ -0,0 +1,43 @@
+package net.obsearch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.obsearch.exception.OBException;
+
+/*
+ * OBSearch: a distributed similarity search engine This project is to
+ * similarity search what 'bit-torrent' is to downloads. Copyright (C) 2009
+ * Arnoldo Jose Muller Molina This program is free software: you can
+ * redistribute it and/or modify it under the terms of the GNU General Public
+ * License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details. You should have received
+ * a copy of the GNU General Public License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+/**
+ * Objects that implement this interface can be loaded directly from the
+ * storage pages (see
+ * {@link net.obsearch.storage.OBStoreLong#getValueBuffer(long)}), which avoids
+ * copying each object into a new byte array. Indexes fall back to
+ * {@link Storable#load(byte[])} for objects that do not implement it.
+ * @author Arnoldo Jose Muller Molina
+ */
+public interface BufferLoadable extends Storable {
+
+    /**
+     * Populates the object's internal properties from the given buffer. The
+     * buffer holds the bytes returned by {@link Storable#store()} between its
+     * position and its limit. The method may change the position and the
+     * byte order of the buffer, but it must not keep a reference to it: the
+     * buffer may be a view of pages that will be reused.
+     * @param input
+     *            buffer from where we will load data.
+     * @throws OBException
+     *             if the data cannot be loaded.
+     */
+    void load(ByteBuffer input) throws OBException, IOException;
+}
@@ -0,0 +1,45 @@
+package net.obsearch.ambient.mmap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import net.obsearch.Index;
+import net.obsearch.OB;
+import net.obsearch.ambient.AbstractAmbient;
+import net.obsearch.exception.NotFrozenException;
+import net.obsearch.exception.OBException;
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.storage.mmap.MMapFactory;
+
+/**
+ * Ambient that stores the indexes in memory mapped files (see
+ * {@link MMapFactory}).
+ */
+public class AmbientMMap<O extends OB, I extends Index<O>> extends AbstractAmbient<O, I> {
+	/**
+     * @see net.obsearch.result.ambient.AbstractAmbient#AbstractAmbient(I index, File directory)
+     */
+    public AmbientMMap(I index, File directory) throws FileNotFoundException, OBStorageException,
+    NotFrozenException, IllegalAccessException, InstantiationException,
+    OBException, IOException{
+        super(index,directory);
+    }
+
+    /**
+     * @see net.obsearch.result.ambient.AbstractAmbient#AbstractAmbient(File directory)
+     */
+    public AmbientMMap(File directory) throws FileNotFoundException, OBStorageException,
+    NotFrozenException, IllegalAccessException, InstantiationException,
+    OBException, IOException{
+        super(directory);
+    }
+
+    /* (non-Javadoc)
+     * @see net.obsearch.ambient.AbstractAmbient#createFactory(java.io.File)
+     */
+    @Override
+    protected MMapFactory createFactory(File factoryDirectory) throws OBStorageException{
+        return new MMapFactory(factoryDirectory);
+    }
+}
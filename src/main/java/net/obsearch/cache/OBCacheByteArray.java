@@ -86,6 +86,17 @@ public final class OBCacheByteArray < O > extends AbstractOBCache<ByteArrayKey,
 	        return obj;
 	    }
 	    
+	    /**
+	     * Gets the given object if it is in the cache, the object is not
+	     * loaded.
+	     * @param id
+	     *                internal id.
+	     * @return null if the object is not in the cache
+	     */
+	    public O getIfCached(byte[] id){
+	    	return super.get(new ByteArrayKey(id));
+	    }
+	    
 	    public boolean exists(byte[] id){
 	    	ByteArrayKey realId = new ByteArrayKey(id);
 	    	return super.containsKey(realId);
@@ -7,10 +7,11 @@ import java.nio.ShortBuffer;
 import net.obsearch.asserts.OBAsserts;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.exception.OBException;
+import net.obsearch.ob.OBRawShort;
 import net.obsearch.ob.OBShort;
 import net.obsearch.utils.bytes.ByteConversion;
 
-public class L1 implements OBShort {
+public class L1 implements OBRawShort {
 	
 	private short[] vector;
 	
@@ -51,6 +52,20 @@ public class L1 implements OBShort {
 		return (short)res; 
 	}
 
+	@Override
+	public short distance(ByteBuffer data, int offset, int length)
+			throws OBException {
+		OBAsserts.chkAssert(vector.length * ByteConstants.Short.getSize() == length, "Vector size mismatch");
+		int i = 0;
+		int res = 0;
+		while(i < vector.length){
+			res += Math.abs(vector[i] - data.getShort(offset + (i * ByteConstants.Short.getSize())));
+			i++;
+		}
+		OBAsserts.chkAssert(res <= Short.MAX_VALUE, "short max value exceeded");
+		return (short)res;
+	}
+
 	@Override
 	public void load(byte[] input) throws OBException, IOException {
 		ShortBuffer s = ByteConversion.createByteBuffer(input).asShortBuffer();
@@ -6,6 +6,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.Arrays;
 
@@ -13,10 +14,11 @@ import net.obsearch.asserts.OBAsserts;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.exception.OBException;
 import net.obsearch.ob.OBInt;
+import net.obsearch.ob.OBRawShort;
 import net.obsearch.ob.OBShort;
 
 
-public class L1 implements OBShort {
+public class L1 implements OBRawShort {
 	
 	private short[] vector;
 	
@@ -61,6 +63,29 @@ public class L1 implements OBShort {
 		return (short)res; 
 	}
 
+	/**
+	 * Objects are stored in big endian, the values are swapped if the
+	 * given buffer uses a different order.
+	 */
+	@Override
+	public short distance(ByteBuffer data, int offset, int length)
+			throws OBException {
+		OBAsserts.chkAssert(vector.length * ByteConstants.Short.getSize() == length, "Vector size mismatch");
+		boolean swap = data.order() != ByteOrder.BIG_ENDIAN;
+		int i = 0;
+		int res = 0;
+		while(i < vector.length){
+			short v = data.getShort(offset + (i * ByteConstants.Short.getSize()));
+			if(swap){
+				v = Short.reverseBytes(v);
+			}
+			res += Math.abs(vector[i] - v);
+			i++;
+		}
+		OBAsserts.chkAssert(res <= Short.MAX_VALUE, "max value exceeded");
+		return (short)res;
+	}
+
 	@Override
 	public void load(byte[] input) throws OBException, IOException {
 		ShortBuffer s = ByteBuffer.wrap(input).asShortBuffer();
@@ -19,11 +19,12 @@ import net.obsearch.exception.OBException;
 import net.obsearch.ob.OBFloat;
 import net.obsearch.ob.OBInt;
 import net.obsearch.ob.OBLong;
+import net.obsearch.ob.OBRawFloat;
 import net.obsearch.ob.OBShort;
 import net.obsearch.utils.bytes.ByteConversion;
 
 
-public class L1Float implements OBFloat {
+public class L1Float implements OBRawFloat {
 	
 	private float[] vector;
 	
@@ -68,6 +69,20 @@ public class L1Float implements OBFloat {
 		return res; 
 	}
 
+	@Override
+	public float distance(ByteBuffer data, int offset, int length)
+			throws OBException {
+		OBAsserts.chkAssert(vector.length * ByteConstants.Float.getSize() == length, "Vector size mismatch");
+		int i = 0;
+		float res = 0;
+		while(i < vector.length){
+			res += Math.abs(vector[i] - data.getFloat(offset + (i * ByteConstants.Float.getSize())));
+			i++;
+		}
+		OBAsserts.chkAssert(res <= Long.MAX_VALUE, "max value exceeded");
+		return res;
+	}
+
 	@Override
 	public void load(byte[] input) throws OBException, IOException {
 		FloatBuffer s = ByteConversion.createByteBuffer(input).asFloatBuffer();
@@ -36,6 +36,7 @@ import java.util.Random;
 import java.util.logging.Logger;
 
 
+import net.obsearch.BufferLoadable;
 import net.obsearch.Index;
 import net.obsearch.OB;
 import net.obsearch.OperationStatus;
@@ -270,7 +271,7 @@ public abstract class AbstractOBIndex<O extends OB> implements Index<O> {
 		public O loadObject(long i) throws OBException, InstantiationException,
 				IllegalAccessException, IllegalIdException {
 
-			byte[] data = A.getValue(i);
+			ByteBuffer data = A.getValueBuffer(i);
 			if (data == null) {
 				throw new IllegalIdException(i);
 			}
@@ -286,17 +287,43 @@ public abstract class AbstractOBIndex<O extends OB> implements Index<O> {
 	}
 	
 	/**
-	 * Loads object i into the given object
+	 * Loads object i into the given object. If the object implements
+	 * {@link BufferLoadable} it is loaded without copying the data of A.
 	 * @param i The object to load.
 	 * @param object Where we will upload the data.
 	 * @throws IOException 
 	 * @throws OBException 
 	 */
 	public void loadObject(long i, O object) throws OBException {
-		try{
-		byte[] data = A.getValue(i);
-		object.load(data);
-		}catch(IOException e){
+		ByteBuffer data = A.getValueBuffer(i);
+		if (data == null) {
+			throw new IllegalIdException(i);
+		}
+		load(object, data);
+	}
+
+	/**
+	 * Loads the given data into object. Objects that implement
+	 * {@link BufferLoadable} read the buffer directly, the data is copied
+	 * for the rest.
+	 * @param object Where we will upload the data.
+	 * @param data Serialized object.
+	 * @throws OBException
+	 */
+	protected void load(O object, ByteBuffer data) throws OBException {
+		try {
+			if (object instanceof BufferLoadable) {
+				((BufferLoadable) object).load(data);
+			} else if (data.hasArray() && data.arrayOffset() == 0
+					&& data.position() == 0
+					&& data.limit() == data.array().length) {
+				object.load(data.array());
+			} else {
+				byte[] copy = new byte[data.remaining()];
+				data.get(copy);
+				object.load(copy);
+			}
+		} catch (IOException e) {
 			throw new OBStorageException(e);
 		}
 	}
@@ -372,7 +399,9 @@ public abstract class AbstractOBIndex<O extends OB> implements Index<O> {
 	 */
 	protected O bytesToObject(ByteBuffer data) throws OBException,
 			InstantiationException, IllegalAccessException, IllegalIdException {
-		return bytesToObject(data.array());
+		O res = type.newInstance();
+		load(res, data);
+		return res;
 	}
 
 	/**
@@ -348,6 +348,20 @@ public class AesaFloat<O extends OBFloat> extends AbstractAESA<O> implements Ind
 		
 	}
 
+	@Override
+	public void searchOBBatch(List<O> objects, float r, Filter<O> filter,
+			List<OBPriorityQueueFloat<O>> results) throws NotFrozenException,
+			InstantiationException, IllegalIdException, IllegalAccessException,
+			OutOfRangeException, OBException {
+		OBAsserts.chkAssert(objects.size() == results.size(),
+				"There must be one result per query");
+		int i = 0;
+		while (i < objects.size()) {
+			searchOB(objects.get(i), r, filter, results.get(i));
+			i++;
+		}
+	}
+
 	@Override
 	public void close() throws OBException {
 		// TODO Auto-generated method stub
@@ -71,6 +71,12 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 	 */
 	protected transient OBStore<TupleBytes> Buckets;
 
+	/**
+	 * Codec applied to the buckets stored in {@link #Buckets}. Null if the
+	 * buckets are stored as they are serialized.
+	 */
+	private BucketCodec bucketCodec;
+
 	public AbstractBucketIndex(Class<O> type,
 			IncrementalPivotSelector<O> pivotSelector, int pivotCount)
 			throws OBStorageException, OBException {
@@ -110,6 +116,44 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 
 	}
 	
+	/**
+	 * Set the codec applied to the buckets before they are stored. The codec
+	 * cannot be changed once the index is frozen.
+	 * 
+	 * @param codec
+	 *            the codec or null to store the buckets without encoding.
+	 * @throws OBException
+	 */
+	public void setBucketCodec(BucketCodec codec) throws OBException {
+		OBAsserts.chkAssert(!isFrozen(),
+				"Cannot change the bucket codec of a frozen index");
+		this.bucketCodec = codec;
+	}
+
+	public BucketCodec getBucketCodec() {
+		return bucketCodec;
+	}
+
+	/**
+	 * Encode a serialized bucket before it is written to {@link #Buckets}.
+	 */
+	protected byte[] encodeBucket(byte[] bucket) throws OBException {
+		if (bucketCodec == null || bucket == null) {
+			return bucket;
+		}
+		return bucketCodec.encode(bucket);
+	}
+
+	/**
+	 * Decode a bucket read from {@link #Buckets}.
+	 */
+	protected byte[] decodeBucket(byte[] data) throws OBException {
+		if (bucketCodec == null || data == null) {
+			return data;
+		}
+		return bucketCodec.decode(data);
+	}
+
 	/**
 	 * Useful iterator for buckets.
 	 * @return
@@ -138,7 +182,7 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 		public BC next() {
 			TupleBytes t = iter.next();
 			try{
-				BC bc = instantiateBucketContainer(t.getValue(), t.getKey());
+				BC bc = instantiateBucketContainer(decodeBucket(t.getValue()), t.getKey());
 				if(! iter.hasNext()){ // close the cursor.
 					iter.closeCursor();
 				}
@@ -215,7 +259,7 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 			IllegalAccessException, InstantiationException,
 			OutOfRangeException, OBException {
 		// get the bucket id.
-		byte[] bucketId = getAddress(b);
+		byte[] bucketId = getBucketAddress(getAddress(b), object);
 		// if the bucket is the exclusion bucket
 		// get the bucket container from the cache.
 		BC bc = getBucketContainer(bucketId);
@@ -248,7 +292,7 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 			IllegalAccessException, InstantiationException,
 			OutOfRangeException, OBException {
 		// get the bucket id.
-		byte[] bucketId = getAddress(b);
+		byte[] bucketId = getBucketAddress(getAddress(b), object);
 		// if the bucket is the exclusion bucket
 		// get the bucket container from the cache.
 		BC bc = getBucketContainer(bucketId);
@@ -262,9 +306,16 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 		OperationStatus res = new OperationStatus();
 		res.setStatus(Status.NOT_EXISTS);
 		B b = getBucket(object);
-		byte[] bucketId = getAddress(b);
-		BC bc = getBucketContainer(bucketId);
-		res = bc.exists(b, object);
+		for (byte[] bucketId : getBucketAddresses(getAddress(b), object)) {
+			BC bc = getBucketContainer(bucketId);
+			if (bc != null) {
+				// the bucket does not exist until an object is inserted in it.
+				res = bc.exists(b, object);
+				if (res.getStatus() == Status.EXISTS) {
+					break;
+				}
+			}
+		}
 		return res;
 	}
 
@@ -297,12 +348,9 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 		long max = databaseSize();
 		logger.info("Database Size" + max);
 		O o = type.newInstance();
-		try{
 		while(i < max){
 			//O o = getObject(i);
-			byte[] val = A.getValue(i);
-			OBAsserts.chkAssert(val != null, "Object loaded from: " + i + " is null!");
-			o.load(val);
+			loadObject(i, o);
 			B b = getBucket(o);
 			b.setId(i);
 			this.insertBucketBulk(b, o);
@@ -320,9 +368,6 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 			
 			i++;
 		}
-		}catch(IOException e){
-			throw new OBException(e);
-		}
 		
 	}
 
@@ -344,6 +389,41 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 	 */
 	public abstract byte[] getAddress(B bucket) throws OBException;
 
+	/**
+	 * Return the key of the bucket that holds the given object. It is the
+	 * address of the object unless the index stores the bucket of the
+	 * address in several parts.
+	 * 
+	 * @param address
+	 *            address of the object (see {@link #getAddress(BucketObject)}).
+	 * @param object
+	 *            An object.
+	 * @return The key of the bucket of the object in {@link #Buckets}.
+	 * @throws OBException
+	 */
+	protected byte[] getBucketAddress(byte[] address, O object)
+			throws OBException {
+		return address;
+	}
+
+	/**
+	 * Return the keys of the buckets that may hold the given object. The
+	 * first one is {@link #getBucketAddress(byte[], OB)}, indexes that store
+	 * objects equal to each other in several parts of a bucket return all of
+	 * these parts.
+	 * 
+	 * @param address
+	 *            address of the object (see {@link #getAddress(BucketObject)}).
+	 * @param object
+	 *            An object.
+	 * @return The keys of the buckets that may hold the object.
+	 * @throws OBException
+	 */
+	protected byte[][] getBucketAddresses(byte[] address, O object)
+			throws OBException {
+		return new byte[][] { getBucketAddress(address, object) };
+	}
+
 	protected void bucketStats() throws OBStorageException, IllegalIdException,
 			IllegalAccessException, InstantiationException, OBException{
 
@@ -386,7 +466,7 @@ public abstract class AbstractBucketIndex<O extends OB, B extends BucketObject,
 		OperationStatus res = new OperationStatus();
 		res.setStatus(Status.OK);
 		B b = getBucket(object);
-		byte[] bucketId = getAddress(b);
+		byte[] bucketId = getBucketAddress(getAddress(b), object);
 		BC bc = getBucketContainer(bucketId);
 		if (bc == null) {
 			res.setStatus(Status.NOT_EXISTS);
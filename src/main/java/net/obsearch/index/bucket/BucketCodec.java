@@ -0,0 +1,53 @@
+package net.obsearch.index.bucket;
+
+import net.obsearch.exception.OBException;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * BucketCodec transforms serialized buckets before they are written to the
+ * storage device and after they are read from it. Codecs must be stateless or
+ * thread safe because buckets are read by several threads.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public interface BucketCodec {
+
+	/**
+	 * Encode a serialized bucket.
+	 *
+	 * @param bucket
+	 *            the serialized bucket.
+	 * @return the bytes that will be stored.
+	 * @throws OBException
+	 */
+	byte[] encode(byte[] bucket) throws OBException;
+
+	/**
+	 * Decode the bytes returned by {@link #encode(byte[])}.
+	 *
+	 * @param data
+	 *            the stored bytes.
+	 * @return the serialized bucket.
+	 * @throws OBException
+	 */
+	byte[] decode(byte[] data) throws OBException;
+
+}
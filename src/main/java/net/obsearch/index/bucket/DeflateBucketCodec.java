@@ -0,0 +1,153 @@
+package net.obsearch.index.bucket;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.obsearch.asserts.OBAsserts;
+import net.obsearch.constants.ByteConstants;
+import net.obsearch.exception.OBException;
+import net.obsearch.utils.bytes.ByteConversion;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * DeflateBucketCodec compresses buckets with java.util.zip. The encoded bucket
+ * starts with the size of the serialized bucket followed by the compressed
+ * data. Buckets that do not become smaller are stored as they are, with
+ * {@link #RAW} as size. The deflaters, inflaters and compression buffers are
+ * kept per thread and reused.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public class DeflateBucketCodec implements BucketCodec {
+
+	/**
+	 * Size written before buckets that are not compressed.
+	 */
+	private static final int RAW = -1;
+
+	private static final int HEADER_SIZE = ByteConstants.Int.getSize();
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>();
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[1024];
+		}
+	};
+
+	/**
+	 * Compression level of the deflater.
+	 */
+	private int level;
+
+	/**
+	 * Create a codec that uses the fastest compression level.
+	 */
+	public DeflateBucketCodec() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * Create a codec with the given compression level.
+	 *
+	 * @param level
+	 *            compression level (0-9).
+	 */
+	public DeflateBucketCodec(int level) {
+		this.level = level;
+	}
+
+	public byte[] encode(byte[] bucket) throws OBException {
+		Deflater deflater = deflaters.get();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			deflaters.set(deflater);
+		} else {
+			deflater.reset();
+			deflater.setLevel(level);
+		}
+		deflater.setInput(bucket);
+		deflater.finish();
+		byte[] buffer = buffers.get();
+		if (buffer.length < bucket.length) {
+			buffer = new byte[bucket.length];
+			buffers.set(buffer);
+		}
+		// only compressed data smaller than the bucket is useful.
+		int size = 0;
+		while (!deflater.finished() && size < bucket.length) {
+			size += deflater.deflate(buffer, size, bucket.length - size);
+		}
+		ByteBuffer res;
+		if (deflater.finished() && size + HEADER_SIZE < bucket.length) {
+			res = ByteConversion.createByteBuffer(HEADER_SIZE + size);
+			res.putInt(bucket.length);
+			res.put(buffer, 0, size);
+		} else {
+			res = ByteConversion.createByteBuffer(HEADER_SIZE + bucket.length);
+			res.putInt(RAW);
+			res.put(bucket);
+		}
+		return res.array();
+	}
+
+	public byte[] decode(byte[] data) throws OBException {
+		ByteBuffer in = ByteConversion.createByteBuffer(data);
+		int size = in.getInt();
+		if (size == RAW) {
+			byte[] res = new byte[data.length - HEADER_SIZE];
+			in.get(res);
+			return res;
+		}
+		// buckets keep a reference to their data so the result is not
+		// reused.
+		byte[] res = new byte[size];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+		try {
+			int read = 0;
+			while (read < size && !inflater.finished()) {
+				int n = inflater.inflate(res, read, size - read);
+				OBAsserts.chkAssert(n > 0 || !inflater.needsInput(),
+						"Truncated bucket");
+				read += n;
+			}
+			OBAsserts.chkAssert(read == size, "Corrupted bucket");
+		} catch (DataFormatException e) {
+			throw new OBException(e);
+		}
+		return res;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+}
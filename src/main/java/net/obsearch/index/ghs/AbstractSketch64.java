@@ -3,6 +3,7 @@ package net.obsearch.index.ghs;
 import hep.aida.bin.StaticBin1D;
 import it.unimi.dsi.io.InputBitStream;
 
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Array;
@@ -12,20 +13,34 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.logging.Logger;
 
 import cern.colt.bitvector.BitVector;
+import cern.colt.list.IntArrayList;
 
 import net.obsearch.AbstractOBResult;
+import net.obsearch.Index;
 import net.obsearch.OB;
 import net.obsearch.OperationStatus;
 import net.obsearch.Status;
+import net.obsearch.asserts.OBAsserts;
 import net.obsearch.cache.OBCacheByteArray;
 import net.obsearch.cache.OBCacheHandlerByteArray;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.constants.OBSearchProperties;
+import net.obsearch.dimension.AbstractDimension;
 import net.obsearch.exception.AlreadyFrozenException;
 import net.obsearch.exception.IllegalIdException;
 import net.obsearch.exception.OBException;
@@ -36,6 +51,7 @@ import net.obsearch.filter.FilterNonEquals;
 import net.obsearch.index.bucket.BucketContainer;
 import net.obsearch.index.bucket.BucketObject;
 import net.obsearch.index.sorter.AbstractBucketSorter;
+import net.obsearch.index.utils.ByteArrayComparator;
 import net.obsearch.pivots.IncrementalPairPivotSelector;
 import net.obsearch.pivots.IncrementalPivotSelector;
 import net.obsearch.pivots.PivotPairResult;
@@ -45,6 +61,7 @@ import net.obsearch.result.OBResultInt;
 import net.obsearch.result.OBResultInvertedByte;
 import net.obsearch.storage.CloseIterator;
 import net.obsearch.storage.OBStorageConfig;
+import net.obsearch.storage.OBStore;
 import net.obsearch.storage.OBStoreFactory;
 import net.obsearch.storage.OBStoreLong;
 import net.obsearch.storage.TupleBytes;
@@ -108,15 +125,139 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 	protected O[][] pivotGrid;
 
 	/**
-	 * Distortion stats
+	 * Distortion stats, one pair of counters per bit of the sketch. The
+	 * counters are atomic because the objects are projected concurrently by
+	 * the freeze workers and the k estimation threads.
 	 */
-	protected int[][] distortionStats;
+	protected AtomicIntegerArray[] distortionStats;
 
 	/**
 	 * Pivot selector for the masks.
 	 */
 	protected IncrementalPairPivotSelector<O> maskPivotSelector;
 
+	/**
+	 * Number of distinct pivots the pivot pairs are drawn from, 0 if each
+	 * pair has its own pivots.
+	 */
+	private int pivotPoolSize = 0;
+
+	/**
+	 * Number of objects used to choose the pairs of the pivot pool.
+	 */
+	private static final int POOL_SAMPLE = 1000;
+
+	/**
+	 * Distinct pivots of {@link #pivotGrid}.
+	 */
+	private transient volatile O[] pivotPool;
+
+	/**
+	 * pivotGrid[i][j] == pivotPool[pivotPairs[i * 2 + j]]
+	 */
+	private transient int[] pivotPairs;
+
+	/**
+	 * Sketch set of the index, one row per bucket. It replaces the list of
+	 * CBitVectors kept by {@link AbstractBucketSorter}.
+	 */
+	protected transient volatile SketchMatrix sketches;
+
+	/**
+	 * Keeps {@link #sketches} free of duplicates so that new buckets can be
+	 * appended without reloading the sketch set.
+	 */
+	private transient SketchHashSet sketchSet;
+
+	/**
+	 * Name of the file (in the factory location) that holds a copy of
+	 * {@link #sketches}.
+	 */
+	private static final String SKETCH_FILE = "sketches.bin";
+
+	/**
+	 * True if {@link #sketches} changed after the sketch file was written.
+	 */
+	private transient boolean sketchFileDirty = false;
+
+	/**
+	 * Key of {@link #generation} in {@link #sketchMeta}.
+	 */
+	private static final byte[] GENERATION_KEY = "generation".getBytes();
+
+	/**
+	 * Holds {@link #generation}.
+	 */
+	private transient OBStore<TupleBytes> sketchMeta;
+
+	/**
+	 * Incremented and stored by every insertion and deletion. The sketch file
+	 * is stamped with it, so a file written before any change is not mapped.
+	 */
+	private transient long generation;
+
+	/**
+	 * Multi-index over {@link #sketches}, null if buckets are found by
+	 * scanning.
+	 */
+	protected transient volatile MultiIndexHash multiIndex;
+
+	/**
+	 * Number of substrings used by {@link #multiIndex}, 0 disables the
+	 * multi-index.
+	 */
+	private int multiIndexSubstrings = 0;
+
+	/**
+	 * Maximum number of buckets read by a query in bounded probing mode, 0
+	 * if bounded probing is disabled.
+	 */
+	private int boundedProbingLimit = 0;
+
+	/**
+	 * Executor used to compute the pivot distances of a projection in
+	 * parallel. If null projections are sequential.
+	 */
+	private transient ExecutorService projectionExecutor;
+
+	/**
+	 * Number of tasks a parallel projection is split into.
+	 */
+	private transient int projectionTasks;
+
+	/**
+	 * Projections that cost less than this (in nanoseconds of distance
+	 * computations) are computed sequentially.
+	 */
+	private transient long projectionCutover;
+
+	/**
+	 * Moving average of the cost of a projection in nanoseconds, -1 if
+	 * unknown.
+	 */
+	private transient volatile long projectionCost = -1;
+
+	/**
+	 * Executor used to scan {@link #sketches} in parallel. If null the scan is
+	 * sequential.
+	 */
+	private transient ExecutorService scanExecutor;
+
+	/**
+	 * True if {@link #scanExecutor} was created by this index.
+	 */
+	private transient boolean ownScanExecutor = false;
+
+	/**
+	 * Number of ranges the sketch set is split into for a parallel scan.
+	 */
+	private int scanTasks = 1;
+
+	/**
+	 * Minimum number of sketches scanned by each parallel task.
+	 */
+	private int scanGrain = 65536;
+
 	public AbstractSketch64(){
 		super();
 	}
@@ -128,7 +269,12 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 
 		this.maskPivotSelector = pivotSelector;
 		pivotGrid = (O[][]) Array.newInstance(type, m, HEIGHT);
-		distortionStats = new int[m][HEIGHT];
+		distortionStats = new AtomicIntegerArray[m];
+		int i = 0;
+		while (i < m) {
+			distortionStats[i] = new AtomicIntegerArray(HEIGHT);
+			i++;
+		}
 	}
 
 	protected  byte[] compactRepresentationToBytes(CBitVector cp){
@@ -155,15 +301,20 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 		 * i++; }
 		 */
 
-		PivotPairResult<O> pivots = maskPivotSelector.generatePivotsPair(m,
-				null, this);
-		// fill the pivots in the grid.
-		i = 0;
-		for (Pair<O, O> p : pivots.getPairs()) {
-			pivotGrid[i][0] = p.getA();
-			pivotGrid[i][1] = p.getB();
-			i++;
+		if (pivotPoolSize > 0) {
+			selectPooledPairs();
+		} else {
+			PivotPairResult<O> pivots = maskPivotSelector.generatePivotsPair(
+					m, null, this);
+			// fill the pivots in the grid.
+			i = 0;
+			for (Pair<O, O> p : pivots.getPairs()) {
+				pivotGrid[i][0] = p.getA();
+				pivotGrid[i][1] = p.getB();
+				i++;
+			}
 		}
+		pivotPool = null;
 
 		logger.info("Moving objects to the buckets...");
 		freezeDefault();
@@ -171,6 +322,8 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 		// test the mask thing.
 		logger.info("Loading masks...");
 		loadMasks();
+		nextGeneration();
+		writeSketchFile();
 		logger.info("Calculating estimators...");
 		calculateEstimators();
 		logger.info("Index stats...");
@@ -210,6 +363,826 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 		f.close();
 	}
 	
+	/**
+	 * Load the sketches from the storage device into {@link #sketches}.
+	 * 
+	 * @throws OBException
+	 */
+	@Override
+	protected void loadMasks() throws OBException {
+		if (sketches != null) {
+			return;
+		}
+		synchronized (this) {
+			if (sketches == null) {
+				loadMasksAux();
+			}
+		}
+	}
+
+	private void loadMasksAux() throws OBException {
+		logger.info("Loading masks!");
+		OBAsserts.chkAssert(projectionStorage.size() <= Integer.MAX_VALUE,
+				"Exceeded allowed sketch set size");
+		SketchMatrix matrix = new SketchMatrix(m, (int) Buckets.size());
+		SketchHashSet set = new SketchHashSet(matrix, (int) Buckets.size());
+		CloseIterator<TupleLong> it = projectionStorage.processAll();
+		while (it.hasNext()) {
+			TupleLong t = it.next();
+			set.add(bytesToCompactRepresentation(t.getValue()).elements());
+		}
+		it.closeCursor();
+		matrix.trim();
+		sketchSet = set;
+		sketches = matrix;
+		logger.info("Loaded: " + sketches.size() + " masks");
+		sketchFileDirty = true; // the sketch file is missing or out of date.
+		buildMultiIndex();
+	}
+
+	private void buildMultiIndex() {
+		if (multiIndexSubstrings > 0 && sketches != null) {
+			multiIndex = new MultiIndexHash(sketches, multiIndexSubstrings);
+			logger.info("Multi-index substrings: "
+					+ multiIndex.getSubstrings());
+		} else {
+			multiIndex = null;
+		}
+	}
+
+	@Override
+	protected synchronized void invalidateMasks() {
+		super.invalidateMasks();
+		sketches = null;
+		sketchSet = null;
+		multiIndex = null;
+	}
+
+	/**
+	 * Append the sketch of a new bucket to {@link #sketches} (and
+	 * {@link #multiIndex}) instead of reloading the whole sketch set. If the
+	 * sketch set is not loaded yet, nothing has to be done. Searches may run
+	 * while the sketch is appended, see {@link SketchMatrix} and
+	 * {@link MultiIndexHash}.
+	 */
+	@Override
+	protected synchronized void addMask(byte[] bucketId) throws OBException {
+		nextGeneration();
+		if (sketches == null) {
+			return;
+		}
+		sketchFileDirty = true;
+		if (sketchSet == null) {
+			// the sketches were mapped from the sketch file.
+			sketchSet = new SketchHashSet(sketches, sketches.size());
+		}
+		if (sketchSet.add(bytesToCompactRepresentation(bucketId).elements())
+				&& multiIndex != null) {
+			multiIndex.update();
+		}
+	}
+
+	/**
+	 * Find the closest buckets with a multi-index hash of the sketches instead
+	 * of a linear scan (see {@link MultiIndexHash}). Each sketch is split into
+	 * the given number of substrings; substrings of about log2(number of
+	 * buckets) bits give the best results. The search returns the same
+	 * buckets as the scan. Pass 0 to go back to the scan.
+	 * 
+	 * @param substrings
+	 *            number of substrings, 0 disables the multi-index.
+	 */
+	public synchronized void setMultiIndexHashing(int substrings) {
+		this.multiIndexSubstrings = substrings;
+		buildMultiIndex();
+	}
+
+	/**
+	 * Draw the m pivot pairs from a pool of poolSize distinct pivots instead
+	 * of using 2 * m different pivots. A projection then computes poolSize
+	 * distances instead of 2 * m. Must be called before freezing the index.
+	 * 
+	 * @param poolSize
+	 *            number of distinct pivots (an even number, with poolSize *
+	 *            (poolSize - 1) / 2 >= m), 0 to use 2 * m pivots.
+	 * @throws OBException
+	 *             if the pool cannot produce m different pairs.
+	 */
+	public void setPivotPool(int poolSize) throws OBException {
+		OBAsserts.chkAssert(poolSize == 0
+				|| (poolSize >= 2 && poolSize % 2 == 0 && poolSize <= 2 * m && ((long) poolSize)
+						* (poolSize - 1) / 2 >= m),
+				"A pool of " + poolSize + " pivots cannot produce " + m
+						+ " pairs");
+		this.pivotPoolSize = poolSize;
+	}
+
+	/**
+	 * Select the pivot pairs from a pool of {@link #pivotPoolSize} pivots.
+	 * The pool is made of the pivots of pivotPoolSize / 2 pairs chosen by
+	 * {@link #maskPivotSelector}; those pairs are kept and the remaining
+	 * pairs are chosen greedily among all the pairs of the pool so that
+	 * their bits are balanced and independent on a sample of the database.
+	 */
+	private void selectPooledPairs() throws OBException,
+			IllegalAccessException, InstantiationException,
+			PivotsUnavailableException {
+		PivotPairResult<O> seed = maskPivotSelector.generatePivotsPair(
+				pivotPoolSize / 2, null, this);
+		List<O> pool = new ArrayList<O>(pivotPoolSize);
+		for (Pair<O, O> p : seed.getPairs()) {
+			pool.add(p.getA());
+			pool.add(p.getB());
+		}
+		int p = pool.size();
+		// distances of the pool to a sample of the database.
+		int sampleSize = (int) Math.min(POOL_SAMPLE, databaseSize());
+		long[] sample = AbstractDimension.select(sampleSize, new Random(),
+				null, (Index) this, null);
+		double[][] d = new double[p][sample.length];
+		int s = 0;
+		for (long id : sample) {
+			O o = getObject(id);
+			int a = 0;
+			while (a < p) {
+				d[a][s] = distance(pool.get(a), o);
+				a++;
+			}
+			s++;
+		}
+		// candidate pairs with their bits on the sample.
+		int words = (sample.length + 63) / 64;
+		List<int[]> candidates = new ArrayList<int[]>(p * (p - 1) / 2);
+		List<long[]> columns = new ArrayList<long[]>(p * (p - 1) / 2);
+		int a = 0;
+		while (a < p) {
+			int b = a + 1;
+			while (b < p) {
+				long[] col = new long[words];
+				s = 0;
+				while (s < sample.length) {
+					if (d[a][s] > d[b][s]) {
+						col[s >>> 6] |= 1L << s;
+					}
+					s++;
+				}
+				candidates.add(new int[] { a, b });
+				columns.add(col);
+				b++;
+			}
+			a++;
+		}
+		// score = imbalance + worst dependency with the chosen pairs.
+		double half = sample.length / 2d;
+		double[] imbalance = new double[candidates.size()];
+		double[] dependency = new double[candidates.size()];
+		boolean[] chosen = new boolean[candidates.size()];
+		int c = 0;
+		while (c < candidates.size()) {
+			imbalance[c] = Math.abs(bitCount(columns.get(c)) - half);
+			c++;
+		}
+		int i = 0;
+		while (i < m) {
+			int best = -1;
+			if (i < p / 2) {
+				// keep the pairs of the selector: pivots 2i, 2i + 1
+				best = candidateIndex(2 * i, 2 * i + 1, p);
+			} else {
+				c = 0;
+				while (c < candidates.size()) {
+					if (!chosen[c]
+							&& (best == -1 || imbalance[c] + dependency[c] < imbalance[best]
+									+ dependency[best])) {
+						best = c;
+					}
+					c++;
+				}
+			}
+			chosen[best] = true;
+			pivotGrid[i][0] = pool.get(candidates.get(best)[0]);
+			pivotGrid[i][1] = pool.get(candidates.get(best)[1]);
+			long[] col = columns.get(best);
+			c = 0;
+			while (c < candidates.size()) {
+				if (!chosen[c]) {
+					double dep = Math.abs(hamming(col, columns.get(c)) - half);
+					dependency[c] = Math.max(dependency[c], dep);
+				}
+				c++;
+			}
+			i++;
+		}
+		logger.info("Selected " + m + " pairs from a pool of " + p
+				+ " pivots");
+	}
+
+	/**
+	 * Position of the pair (a, b), a < b, in the candidates of
+	 * {@link #selectPooledPairs()}.
+	 */
+	private static int candidateIndex(int a, int b, int p) {
+		// pairs of the rows before a, then the offset in row a.
+		return a * p - (a * (a + 1)) / 2 + (b - a - 1);
+	}
+
+	private static int bitCount(long[] v) {
+		int res = 0;
+		for (long l : v) {
+			res += Long.bitCount(l);
+		}
+		return res;
+	}
+
+	private static int hamming(long[] a, long[] b) {
+		return Hamming.distance(a, b);
+	}
+
+	/**
+	 * Distinct pivots of the pivot grid. Pivots shared by several pairs
+	 * (see {@link #setPivotPool(int)}) appear once, so a projection computes
+	 * each distance once.
+	 * 
+	 * @return the distinct pivots of {@link #pivotGrid}.
+	 */
+	protected O[] getPivotPool() {
+		if (pivotPool == null) {
+			buildPivotPool();
+		}
+		return pivotPool;
+	}
+
+	/**
+	 * @return pivotGrid[i][j] == getPivotPool()[getPivotPairs()[i * 2 + j]]
+	 */
+	protected int[] getPivotPairs() {
+		if (pivotPool == null) {
+			buildPivotPool();
+		}
+		return pivotPairs;
+	}
+
+	private synchronized void buildPivotPool() {
+		if (pivotPool != null) {
+			return;
+		}
+		// the index is serialized with object references, so shared pivots
+		// are still the same object after loading the index.
+		IdentityHashMap<O, Integer> ids = new IdentityHashMap<O, Integer>();
+		List<O> pool = new ArrayList<O>();
+		int[] pairs = new int[m * HEIGHT];
+		int i = 0;
+		while (i < m) {
+			int j = 0;
+			while (j < HEIGHT) {
+				O o = pivotGrid[i][j];
+				Integer id = ids.get(o);
+				if (id == null) {
+					id = pool.size();
+					ids.put(o, id);
+					pool.add(o);
+				}
+				pairs[i * HEIGHT + j] = id;
+				j++;
+			}
+			i++;
+		}
+		O[] res = (O[]) Array.newInstance(type, pool.size());
+		pivotPairs = pairs;
+		pivotPool = pool.toArray(res);
+	}
+
+	/**
+	 * Compute the pivot distances of each projection in parallel with
+	 * the given executor. This pays off for expensive distances (tree edit
+	 * distance, edit distance on long strings); the cost of the projections
+	 * is measured and projections cheaper than cutoverNanos stay
+	 * sequential. Pass a null executor to disable parallel projections.
+	 * 
+	 * @param executor
+	 *            executor that computes the distances, it can be shared with
+	 *            other indexes.
+	 * @param tasks
+	 *            number of tasks each projection is split into.
+	 * @param cutoverNanos
+	 *            minimum cost (total time spent computing the pivot
+	 *            distances of one projection) for a parallel projection.
+	 */
+	public void setParallelProjection(ExecutorService executor, int tasks,
+			long cutoverNanos) {
+		this.projectionExecutor = executor;
+		this.projectionTasks = Math.max(1, Math.min(tasks, m));
+		this.projectionCutover = cutoverNanos;
+		this.projectionCost = -1;
+	}
+
+	/**
+	 * @return true if the next projection should be computed in parallel.
+	 */
+	protected boolean isParallelProjection() {
+		// the first projection is sequential, to measure its cost.
+		return projectionExecutor != null && projectionTasks > 1
+				&& projectionCost >= projectionCutover;
+	}
+
+	/**
+	 * @return number of tasks a parallel projection is split into.
+	 */
+	protected int getProjectionTasks() {
+		return projectionTasks;
+	}
+
+	/**
+	 * Record the time spent computing the pivot distances of a projection.
+	 * 
+	 * @param nanos
+	 *            total time of the distance computations (the sum of all the
+	 *            tasks for a parallel projection).
+	 */
+	protected void recordProjectionCost(long nanos) {
+		long c = projectionCost;
+		projectionCost = c < 0 ? nanos : (c * 7 + nanos) / 8;
+	}
+
+	/**
+	 * Run the tasks of a parallel projection.
+	 * 
+	 * @param tasks
+	 *            each task computes a range of pivot distances and returns
+	 *            the nanoseconds it took.
+	 * @return the total time spent by the tasks.
+	 * @throws OBException
+	 *             if a distance computation failed.
+	 */
+	protected long invokeProjection(List<Callable<Long>> tasks)
+			throws OBException {
+		try {
+			long total = 0;
+			for (Future<Long> f : projectionExecutor.invokeAll(tasks)) {
+				total += f.get();
+			}
+			return total;
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof OBException) {
+				throw (OBException) e.getCause();
+			}
+			throw new OBException(e);
+		}
+	}
+
+	/**
+	 * Enable bounded probing. Instead of reading a fixed number of buckets
+	 * ({@link #estimateK(int)}), a query reads buckets in hamming order and
+	 * stops as soon as the lower bound of the remaining buckets exceeds its
+	 * current range. Buckets whose own lower bound exceeds the range are
+	 * skipped. The lower bounds come from the pivot pairs (see
+	 * {@link SketchProjection#getLowerBounds()}).
+	 * 
+	 * @param maxBuckets
+	 *            maximum number of buckets a query can read, 0 disables
+	 *            bounded probing.
+	 */
+	public void setBoundedProbing(int maxBuckets) {
+		this.boundedProbingLimit = maxBuckets;
+	}
+
+	/**
+	 * @return true if queries use bounded probing.
+	 */
+	protected boolean isBoundedProbing() {
+		return boundedProbingLimit > 0;
+	}
+
+	/**
+	 * Number of buckets a query should rank.
+	 * 
+	 * @param kEstimation
+	 *            the value returned by {@link #estimateK(int)}
+	 * @return the number of buckets to rank.
+	 */
+	protected int getBucketLimit(int kEstimation) {
+		return isBoundedProbing() ? boundedProbingLimit : kEstimation;
+	}
+
+	/**
+	 * Lower bound of the distance between the query and the objects of any
+	 * bucket at hamming distance >= h: such bucket differs from the query in
+	 * at least h bits, so its bound is at least the h-th smallest lower bound
+	 * of the query.
+	 * 
+	 * @param query
+	 *            the query
+	 * @return bounds[h] = lower bound of buckets at hamming distance >= h.
+	 */
+	protected double[] hammingLowerBounds(SketchProjection query) {
+		double[] bounds = new double[m + 1];
+		System.arraycopy(query.getLowerBounds(), 0, bounds, 1, m);
+		Arrays.sort(bounds, 1, m + 1);
+		return bounds;
+	}
+
+	/**
+	 * Lower bound of the distance between the query and the objects of the
+	 * bucket stored at the given ordinal of {@link #sketches}: the largest
+	 * lower bound of the bits that differ.
+	 * 
+	 * @param query
+	 *            the query
+	 * @param ordinal
+	 *            the bucket
+	 * @param tmp
+	 *            buffer of {@link SketchMatrix#getWordsPerSketch()} longs.
+	 * @return a lower bound of the distance between the query and the
+	 *         objects of the bucket.
+	 */
+	protected double bucketLowerBound(SketchProjection query, int ordinal,
+			long[] tmp) {
+		sketches.getSketch(ordinal, tmp);
+		long[] q = query.getSketch().elements();
+		double[] lowerBounds = query.getLowerBounds();
+		double res = 0;
+		int i = 0;
+		while (i < tmp.length) {
+			long diff = q[i] ^ tmp[i];
+			while (diff != 0) {
+				int bit = (i << 6) + Long.numberOfTrailingZeros(diff);
+				res = Math.max(res, lowerBounds[bit]);
+				diff &= diff - 1;
+			}
+			i++;
+		}
+		return res;
+	}
+
+	/**
+	 * Scan the sketch set in parallel with the given executor. The sketch set
+	 * is split into (at most) tasks ranges, each range is scanned into its own
+	 * bounded queue and the queues are merged at the end. Pass null to go
+	 * back to the sequential scan.
+	 * 
+	 * @param executor
+	 *            executor that will run the scan tasks.
+	 * @param tasks
+	 *            number of ranges the sketch set will be split into.
+	 */
+	public void setParallelScan(ExecutorService executor, int tasks) {
+		shutdownScanExecutor();
+		this.scanExecutor = executor;
+		this.scanTasks = tasks;
+		this.ownScanExecutor = false;
+	}
+
+	/**
+	 * Scan the sketch set in parallel with a pool of the given number of
+	 * threads owned by this index. The pool is released when the index is
+	 * closed.
+	 * 
+	 * @param threads
+	 *            number of threads used for the scan.
+	 */
+	public void setParallelScan(int threads) {
+		setParallelScan(Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Sketch-scan-" + count);
+						t.setDaemon(true);
+						count++;
+						return t;
+					}
+				}), threads);
+		this.ownScanExecutor = true;
+	}
+
+	/**
+	 * Ranges with less sketches than this value are not scanned in parallel.
+	 * 
+	 * @param grain
+	 *            minimum number of sketches per scan task.
+	 */
+	public void setParallelScanGrain(int grain) {
+		this.scanGrain = grain;
+	}
+
+	private void shutdownScanExecutor() {
+		if (ownScanExecutor && scanExecutor != null) {
+			scanExecutor.shutdown();
+		}
+		scanExecutor = null;
+		ownScanExecutor = false;
+	}
+
+	@Override
+	public void init(OBStoreFactory fact) throws OBStorageException,
+			OBException, InstantiationException, IllegalAccessException {
+		super.init(fact);
+		OBStorageConfig conf = new OBStorageConfig();
+		conf.setTemp(false);
+		conf.setDuplicates(false);
+		sketchMeta = fact.createOBStore("Sketch_meta", conf);
+		byte[] g = sketchMeta.getValue(GENERATION_KEY);
+		generation = g == null ? 0 : ByteConversion.bytesToLong(g);
+		if (isFrozen()) {
+			mapSketchFile();
+		}
+	}
+
+	@Override
+	public void close() throws OBException {
+		shutdownScanExecutor();
+		if (sketchFileDirty) {
+			writeSketchFile();
+		}
+		sketchMeta.close();
+		super.close();
+	}
+
+	/**
+	 * Increment and store {@link #generation}.
+	 * 
+	 * @throws OBException
+	 */
+	private synchronized void nextGeneration() throws OBException {
+		generation++;
+		sketchMeta.put(GENERATION_KEY, ByteConversion.longToBytes(generation));
+		// the file is stamped again even if the sketches did not change.
+		sketchFileDirty = true;
+	}
+
+	@Override
+	public OperationStatus deleteAux(O object) throws OBException,
+			IllegalAccessException, InstantiationException {
+		OperationStatus res = super.deleteAux(object);
+		if (res.getStatus() == Status.OK) {
+			nextGeneration();
+		}
+		return res;
+	}
+
+	private File getSketchFile() {
+		if (fact == null || fact.getFactoryLocation() == null) {
+			return null;
+		}
+		return new File(fact.getFactoryLocation(), SKETCH_FILE);
+	}
+
+	/**
+	 * Write {@link #sketches} to the sketch file so that the next
+	 * {@link #init(OBStoreFactory)} can map it instead of loading the sketch
+	 * set from {@link #projectionStorage}. The file is stamped with
+	 * {@link #generation}.
+	 * 
+	 * @throws OBException
+	 */
+	private void writeSketchFile() throws OBException {
+		File file = getSketchFile();
+		if (file == null || sketches == null) {
+			return;
+		}
+		try {
+			sketches.write(file, generation);
+			sketchFileDirty = false;
+		} catch (IOException e) {
+			throw new OBException(e);
+		}
+	}
+
+	/**
+	 * Map the sketch file into {@link #sketches}. If the file is missing or
+	 * out of date the sketch set will be loaded by {@link #loadMasks()}.
+	 * 
+	 * @throws OBException
+	 */
+	private void mapSketchFile() throws OBException {
+		File file = getSketchFile();
+		if (file == null) {
+			return;
+		}
+		try {
+			SketchMatrix matrix = SketchMatrix.map(file, m, generation);
+			if (matrix == null) {
+				if (file.exists()) {
+					logger.warning("Sketch file out of date or invalid, the sketches will be loaded from the projections: "
+							+ file);
+				} else {
+					logger.info("Sketch file not available: " + file);
+				}
+				return;
+			}
+			sketches = matrix;
+			sketchSet = null; // created on the first insert.
+			buildMultiIndex();
+			logger.info("Mapped: " + sketches.size() + " masks");
+		} catch (IOException e) {
+			throw new OBException(e);
+		}
+	}
+
+	/**
+	 * Search the maxF closest buckets to the given query by scanning
+	 * {@link #sketches}.
+	 */
+	@Override
+	protected List<SketchProjection> searchBuckets(SketchProjection query,
+			int maxF) throws InstantiationException, IllegalAccessException,
+			OBException {
+		FastPriorityQueueInt queue = searchBucketOrdinals(query, maxF);
+		int[] ordinals = queue.get();
+		int[] distances = queue.getDistances();
+		List<SketchProjection> result = new ArrayList<SketchProjection>(
+				ordinals.length);
+		int i = 0;
+		while (i < ordinals.length) {
+			result.add(new SketchProjection(null, sketches
+					.getSketch(ordinals[i]), distances[i], null));
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Search the maxF closest buckets to the given query. The result holds
+	 * ordinals of {@link #sketches} sorted by hamming distance, use
+	 * {@link SketchMatrix#getAddress(int)} to get the bucket address of each
+	 * ordinal. No objects are created per scanned sketch.
+	 * 
+	 * @param query
+	 *            the query to employ
+	 * @param maxF
+	 *            the max number of items that will be returned
+	 * @return a queue with the closest ordinals.
+	 * @throws OBException
+	 */
+	protected FastPriorityQueueInt searchBucketOrdinals(
+			SketchProjection query, int maxF) throws OBException {
+		loadMasks();
+		final SketchMatrix matrix = sketches;
+		final long[] q = query.getSketch().elements();
+		final MultiIndexHash index = multiIndex;
+		if (index != null) {
+			FastPriorityQueueInt queue = new FastPriorityQueueInt(m, maxF);
+			index.search(q, queue);
+			return queue;
+		}
+		final int total = matrix.size();
+		int tasks = Math.min(scanTasks, total / Math.max(scanGrain, 1));
+		if (scanExecutor == null || tasks < 2) {
+			FastPriorityQueueInt queue = new FastPriorityQueueInt(m, maxF);
+			scanRange(matrix, q, 0, total, queue);
+			return queue;
+		}
+		return parallelSearchBuckets(matrix, q, maxF, tasks);
+	}
+
+	/**
+	 * Search the closest buckets of a batch of queries with one pass over
+	 * {@link #sketches}. Each block of {@link #BATCH_BLOCK} sketches is
+	 * matched against all the queries before moving to the next one. If the
+	 * multi-index is enabled each query probes it instead.
+	 * 
+	 * @param queries
+	 *            the queries to employ
+	 * @param maxF
+	 *            the max number of items that will be returned for each
+	 *            query
+	 * @return one queue of ordinals per query.
+	 * @throws OBException
+	 */
+	protected FastPriorityQueueInt[] searchBucketOrdinals(
+			List<SketchProjection> queries, int[] maxF) throws OBException {
+		loadMasks();
+		final SketchMatrix matrix = sketches;
+		final MultiIndexHash index = multiIndex;
+		FastPriorityQueueInt[] queues = new FastPriorityQueueInt[queries
+				.size()];
+		long[][] q = new long[queries.size()][];
+		int i = 0;
+		while (i < queues.length) {
+			queues[i] = new FastPriorityQueueInt(m, maxF[i]);
+			q[i] = queries.get(i).getSketch().elements();
+			if (index != null) {
+				index.search(q[i], queues[i]);
+			}
+			i++;
+		}
+		if (index != null) {
+			return queues;
+		}
+		final int total = matrix.size();
+		int from = 0;
+		while (from < total) {
+			int to = Math.min(from + BATCH_BLOCK, total);
+			i = 0;
+			while (i < queues.length) {
+				scanRange(matrix, q[i], from, to, queues[i]);
+				i++;
+			}
+			from = to;
+		}
+		return queues;
+	}
+
+	/**
+	 * Group the buckets of a batch of queries by sketch ordinal, the address
+	 * of each bucket is computed once.
+	 */
+	@Override
+	protected SortedMap<byte[], IntArrayList> groupBuckets(
+			List<SketchProjection> queries, int[] maxF)
+			throws InstantiationException, IllegalAccessException,
+			OBException {
+		FastPriorityQueueInt[] queues = searchBucketOrdinals(queries, maxF);
+		int total = 0;
+		for (FastPriorityQueueInt queue : queues) {
+			total += queue.size();
+		}
+		// (ordinal, query) pairs sorted by ordinal.
+		long[] pairs = new long[total];
+		int p = 0;
+		int i = 0;
+		while (i < queues.length) {
+			for (int ordinal : queues[i].get()) {
+				pairs[p] = (((long) ordinal) << 32) | i;
+				p++;
+			}
+			i++;
+		}
+		Arrays.sort(pairs);
+		SortedMap<byte[], IntArrayList> result = new TreeMap<byte[], IntArrayList>(
+				new ByteArrayComparator());
+		p = 0;
+		while (p < pairs.length) {
+			int ordinal = (int) (pairs[p] >>> 32);
+			IntArrayList q = new IntArrayList();
+			while (p < pairs.length && (int) (pairs[p] >>> 32) == ordinal) {
+				q.add((int) pairs[p]);
+				p++;
+			}
+			result.put(sketches.getAddress(ordinal), q);
+		}
+		return result;
+	}
+
+	/**
+	 * Split the sketch set in tasks ranges, scan each of them with
+	 * {@link #scanExecutor} and merge the partial results.
+	 */
+	private FastPriorityQueueInt parallelSearchBuckets(
+			final SketchMatrix matrix, final long[] q, final int maxF,
+			int tasks) throws OBException {
+		final int total = matrix.size();
+		List<Future<FastPriorityQueueInt>> partial = new ArrayList<Future<FastPriorityQueueInt>>(
+				tasks);
+		int i = 0;
+		while (i < tasks) {
+			final int from = (int) (((long) total) * i / tasks);
+			final int to = (int) (((long) total) * (i + 1) / tasks);
+			partial.add(scanExecutor.submit(new Callable<FastPriorityQueueInt>() {
+				public FastPriorityQueueInt call() {
+					FastPriorityQueueInt queue = new FastPriorityQueueInt(m,
+							maxF);
+					scanRange(matrix, q, from, to, queue);
+					return queue;
+				}
+			}));
+			i++;
+		}
+		FastPriorityQueueInt result = new FastPriorityQueueInt(m, maxF);
+		try {
+			for (Future<FastPriorityQueueInt> f : partial) {
+				FastPriorityQueueInt queue = f.get();
+				int[] ordinals = queue.get();
+				int[] distances = queue.getDistances();
+				int cx = 0;
+				while (cx < ordinals.length) {
+					result.add(ordinals[cx], distances[cx]);
+					cx++;
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} catch (ExecutionException e) {
+			throw new OBException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Scan the sketches [from, to) of matrix and keep the closest ones to q in
+	 * queue.
+	 */
+	private void scanRange(SketchMatrix matrix, long[] q, int from, int to,
+			FastPriorityQueueInt queue) {
+		int i = from;
+		while (i < to) {
+			queue.add(i, matrix.hamming(q, i));
+			i++;
+		}
+	}
+
 	@Override
 	protected void updateDistance(SketchProjection query,
 			CBitVector proj, FixedPriorityQueue<SketchProjection> queue) {
@@ -233,8 +1206,8 @@ public abstract class AbstractSketch64<O extends OB, B extends BucketObject<O>,
 			StaticBin1D s = new StaticBin1D();
 			int i = 0;
 			while (i < distortionStats.length) {
-				s.add(Math.abs(this.distortionStats[i][0]
-						- this.distortionStats[i][1]));
+				s.add(Math.abs(this.distortionStats[i].get(0)
+						- this.distortionStats[i].get(1)));
 				i++;
 			}
 			logger.info("Distortion:");
@@ -26,6 +26,10 @@ public final class CBitVector extends BitVector{
 		super(b.elements(), b.size());
 	}
 	
+	public CBitVector(long[] bits, int count){
+		super(bits, count);
+	}
+	
 	private static long[] parseVector(byte[] data){
 		ByteBuffer b = ByteConversion.createByteBuffer(data);
 		int size = (int)Math.ceil(data.length / ByteConstants.Long.getSize());
@@ -52,13 +56,7 @@ public final class CBitVector extends BitVector{
 	
 	// perform an xor with the other bit vector
 	public int hamming(CBitVector other){
-		final long[] theBits = this.bits; // cached for speed.
-		final long[] otherBits = other.bits; //cached for speed.
-		int res = 0;
-		for(int i=theBits.length; --i >= 0;) {
-			res += Long.bitCount(theBits[i] ^ otherBits[i]);
-		}		
-		return res;
+		return Hamming.distance(this.bits, other.bits);
 	}
 	
 	public byte[] store(){
@@ -1,16 +1,12 @@
 package net.obsearch.index.ghs;
 
-import it.unimi.dsi.io.InputBitStream;
-import it.unimi.dsi.io.OutputBitStream;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import net.obsearch.asserts.OBAsserts;
 import net.obsearch.exception.OBException;
@@ -18,7 +14,7 @@ import net.obsearch.result.OBResultInvertedByte;
 
 /*
  OBSearch: a distributed similarity search engine This project is to
- similarity search what 'bit-torrent' is to downloads. 
+ similarity search what 'bit-torrent' is to downloads.
  Copyright (C) 2009 Arnoldo Jose Muller Molina
 
  This program is free software: you can redistribute it and/or modify
@@ -36,21 +32,54 @@ import net.obsearch.result.OBResultInvertedByte;
  */
 
 /**
- * CompressedBitSet64 stores bits in a byte array. The bit set must be first
- * created (stored in a temporary file) And then the bytes will be loaded into
- * memory. The compressed bit set works on longs and it allows sequential k-nn
- * searches of longs with the hamming distance. Insertions must be done in
- * ascending order. The main assumption is that compression will allow small
- * indexes that will be stored in memory.
- * 
+ * CompressedBitSet64 stores a sorted set of longs with the Elias-Fano
+ * encoding. The set must be first created (values are buffered in memory) and
+ * then it is encoded by {@link #commit()}. Each value minus the first one is
+ * split into l low bits, packed in an array, and high bits, stored in unary
+ * in a bit vector of about 2 * size() bits. One of every
+ * {@link #SELECT_SAMPLE} positions of the high bit vector is sampled so that
+ * any element can be decoded in constant time and any range of the set can be
+ * decoded sequentially without touching what comes before it. The compressed
+ * bit set allows k-nn searches of longs with the hamming distance, optionally
+ * splitting the set in ranges that are scanned in parallel. Insertions must be
+ * done in ascending order. The main assumption is that compression will allow
+ * small indexes that will be stored in memory.
+ *
  * @author Arnoldo Jose Muller Molina
  */
 
 public class CompressedBitSet64 {
 
-	protected byte[] data;
-	private File f;
-	private OutputBitStream out;
+	/**
+	 * One of every SELECT_SAMPLE positions of the high bits is stored.
+	 */
+	private static final int SELECT_SAMPLE = 256;
+
+	/**
+	 * Number of elements decoded at once during a scan.
+	 */
+	private static final int DECODE_BLOCK = 1024;
+
+	/**
+	 * Values added before {@link #commit()}.
+	 */
+	private long[] buffer;
+	/**
+	 * Low bits of each element.
+	 */
+	private long[] lower;
+	/**
+	 * High bits of each element in unary.
+	 */
+	private long[] upper;
+	/**
+	 * Position in upper of the elements 0, SELECT_SAMPLE, 2 * SELECT_SAMPLE...
+	 */
+	private long[] samples;
+	/**
+	 * Number of low bits.
+	 */
+	private int l;
 	protected int count = 0;
 	protected long first;
 	private long previous;
@@ -58,23 +87,17 @@ public class CompressedBitSet64 {
 
 	/**
 	 * Create a new compressed bit set.
-	 * 
-	 * @throws IOException
+	 *
+	 * @throws OBException
 	 */
 	public CompressedBitSet64() throws OBException {
-		try {
-			f = File.createTempFile("OBSearch", "bitset");
-			FileOutputStream o = new FileOutputStream(f);
-			out = new OutputBitStream(o);
-		} catch (IOException e) {
-			throw new OBException(e);
-		}
+		buffer = new long[1024];
 		commit = false;
 	}
 
 	/**
 	 * Add the ith bit to this bitset.
-	 * 
+	 *
 	 * @param bit
 	 * @throws OBException
 	 */
@@ -85,46 +108,169 @@ public class CompressedBitSet64 {
 		} else {
 			OBAsserts.chkAssert(previous < bit,
 					"Elements must be ordered from lower to higher values");
-			long d = bit - previous;
-			try {
-				write(d, out);
-			} catch (IOException e) {
-				throw new OBException(e);
-			}
 		}
+		OBAsserts.chkAssert(count < Integer.MAX_VALUE, "Capacity exceeded");
+		if (count == buffer.length) {
+			long[] n = new long[(int) Math.min(buffer.length * 2L,
+					Integer.MAX_VALUE)];
+			System.arraycopy(buffer, 0, n, 0, count);
+			buffer = n;
+		}
+		buffer[count] = bit;
 		previous = bit;
 		count++;
 	}
 
 	/**
 	 * We will stop adding values and now we will use the bit set for search.
-	 * 
+	 *
 	 * @throws OBException
 	 */
 	public void commit() throws OBException {
 		OBAsserts.chkAssert(!commit, "Cannot commit when commited");
-		try {
-			out.close();
-			long byteSize = f.length();
-			OBAsserts.chkAssert(byteSize <= Integer.MAX_VALUE,
-					"Exceeded allowed index size");
-			data = new byte[(int) byteSize];
-			FileInputStream fi = new FileInputStream(f);
-			fi.read(data);
-			fi.close();
-			f.delete();
-		} catch (IOException e) {
-			throw new OBException(e);
+		// values are stored relative to first, as unsigned longs.
+		long max = count == 0 ? 0 : previous - first;
+		l = Math.max(0, bitLength(max) - bitLength(count));
+		long upperBits = count + (max >>> l) + 1;
+		OBAsserts.chkAssert(upperBits / 64 < Integer.MAX_VALUE
+				&& ((long) count) * l / 64 < Integer.MAX_VALUE,
+				"Exceeded allowed index size");
+		upper = new long[(int) ((upperBits + 63) >>> 6)];
+		lower = new long[(int) ((((long) count) * l + 63) >>> 6)];
+		samples = new long[(count + SELECT_SAMPLE - 1) / SELECT_SAMPLE];
+		int i = 0;
+		while (i < count) {
+			long v = buffer[i] - first;
+			setLower(i, v);
+			long pos = (v >>> l) + i;
+			upper[(int) (pos >>> 6)] |= 1L << pos;
+			if (i % SELECT_SAMPLE == 0) {
+				samples[i / SELECT_SAMPLE] = pos;
+			}
+			i++;
+		}
+		buffer = null;
+		commit = true;
+	}
+
+	private static int bitLength(long x) {
+		return 64 - Long.numberOfLeadingZeros(x);
+	}
+
+	private void setLower(int i, long v) {
+		if (l == 0) {
+			return;
+		}
+		long bit = ((long) i) * l;
+		int word = (int) (bit >>> 6);
+		int offset = (int) (bit & 63);
+		v &= (1L << l) - 1;
+		lower[word] |= v << offset;
+		if (offset + l > 64) {
+			lower[word + 1] |= v >>> (64 - offset);
+		}
+	}
+
+	private long getLower(int i) {
+		if (l == 0) {
+			return 0;
+		}
+		long bit = ((long) i) * l;
+		int word = (int) (bit >>> 6);
+		int offset = (int) (bit & 63);
+		long v = lower[word] >>> offset;
+		if (offset + l > 64) {
+			v |= lower[word + 1] << (64 - offset);
+		}
+		return v & ((1L << l) - 1);
+	}
+
+	/**
+	 * Position in the high bit vector of the ith element.
+	 */
+	private long select(int i) {
+		long pos = samples[i / SELECT_SAMPLE];
+		int remaining = i % SELECT_SAMPLE;
+		int word = (int) (pos >>> 6);
+		long w = upper[word] & (-1L << pos);
+		while (true) {
+			int c = Long.bitCount(w);
+			if (remaining < c) {
+				while (remaining > 0) {
+					w &= w - 1;
+					remaining--;
+				}
+				return (((long) word) << 6) + Long.numberOfTrailingZeros(w);
+			}
+			remaining -= c;
+			word++;
+			w = upper[word];
+		}
+	}
+
+	/**
+	 * Decode the elements [from, to) into dest.
+	 */
+	private void decode(int from, int to, long[] dest) {
+		long pos = select(from);
+		int word = (int) (pos >>> 6);
+		long w = upper[word] & (-1L << pos);
+		int i = from;
+		while (i < to) {
+			while (w == 0) {
+				word++;
+				w = upper[word];
+			}
+			long high = (((long) word) << 6) + Long.numberOfTrailingZeros(w)
+					- i;
+			w &= w - 1;
+			dest[i - from] = ((high << l) | getLower(i)) + first;
+			i++;
 		}
 	}
 
 	public long getBytesSize() {
-		return data.length;
+		return (lower.length + upper.length + samples.length) * 8L;
+	}
+
+	/**
+	 * Return the ith smallest element of the set.
+	 *
+	 * @param i
+	 *            index of the element.
+	 * @return the element.
+	 */
+	public long get(int i) {
+		return (((select(i) - i) << l) | getLower(i)) + first;
+	}
+
+	/**
+	 * Find the index of the given bucket.
+	 *
+	 * @param bucket
+	 *            the bucket to find.
+	 * @return the index of the bucket, or -1 if the bucket is not in the set.
+	 */
+	public int indexOf(long bucket) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long v = get(mid);
+			if (v < bucket) {
+				low = mid + 1;
+			} else if (v > bucket) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
 	}
 
 	/**
 	 * Hamming distance used for searching.
-	 * 
+	 *
 	 * @param a
 	 * @param b
 	 * @return
@@ -135,7 +281,7 @@ public class CompressedBitSet64 {
 
 	/**
 	 * Search the maxF closest buckets by hamming distance for the given query
-	 * 
+	 *
 	 * @param query
 	 *            The query we will use
 	 * @param maxF
@@ -143,38 +289,85 @@ public class CompressedBitSet64 {
 	 * @param m
 	 *            the number of bits == max distance expected.
 	 * @return The closest objects to the given query.
-	 * @throws InstantiationException
-	 * @throws IllegalAccessException
 	 * @throws OBException
 	 */
 	public long[] searchBuckets(long query, int maxF, int m)
 			throws OBException {
-
-		InputBitStream delta = new InputBitStream(data);
-		long[] result = new long[maxF];
 		FastPriorityQueueLong l = new FastPriorityQueueLong(m, maxF);
+		scanRange(query, 0, count, l);
+		return l.get();
+	}
 
-		// do the first element.
-		int distance = bucketDistance(query, first);
-		// previous bucket id.
-		long prev = first;
-		l.add(first, distance);
-		// do the rest
+	/**
+	 * Search the maxF closest buckets by hamming distance for the given query.
+	 * The set is split in tasks ranges that are scanned by the given executor.
+	 * The result is the same as {@link #searchBuckets(long, int, int)}.
+	 *
+	 * @param query
+	 *            The query we will use
+	 * @param maxF
+	 *            The number of objects that will be searched.
+	 * @param m
+	 *            the number of bits == max distance expected.
+	 * @param executor
+	 *            executor that scans the ranges.
+	 * @param tasks
+	 *            number of ranges.
+	 * @return The closest objects to the given query.
+	 * @throws OBException
+	 */
+	public long[] searchBuckets(final long query, final int maxF, final int m,
+			ExecutorService executor, int tasks) throws OBException {
+		tasks = Math.max(1, Math.min(tasks, count / DECODE_BLOCK));
+		List<Future<long[]>> partial = new ArrayList<Future<long[]>>(tasks);
+		int i = 0;
+		while (i < tasks) {
+			final int from = (int) (((long) count) * i / tasks);
+			final int to = (int) (((long) count) * (i + 1) / tasks);
+			partial.add(executor.submit(new Callable<long[]>() {
+				public long[] call() {
+					FastPriorityQueueLong l = new FastPriorityQueueLong(m, maxF);
+					scanRange(query, from, to, l);
+					return l.get();
+				}
+			}));
+			i++;
+		}
+		// ranges are merged in order so ties are broken as in a sequential
+		// scan.
+		FastPriorityQueueLong result = new FastPriorityQueueLong(m, maxF);
 		try {
-			int i = 1;
-			while (i < count) {
-				long object = read(delta) + prev;
-				distance = bucketDistance(query, object);
-				l.add(object, distance);
-				prev = object;
-				i++;
+			for (Future<long[]> f : partial) {
+				for (long object : f.get()) {
+					result.add(object, bucketDistance(query, object));
+				}
 			}
-		} catch (IOException e) {
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} catch (ExecutionException e) {
 			throw new OBException(e);
 		}
-		return l.get();
+		return result.get();
 	}
-	
+
+	/**
+	 * Add the elements [from, to) to the given queue.
+	 */
+	private void scanRange(long query, int from, int to,
+			FastPriorityQueueLong queue) {
+		long[] block = new long[Math.min(DECODE_BLOCK, Math.max(to - from, 0))];
+		while (from < to) {
+			int end = Math.min(from + block.length, to);
+			decode(from, end, block);
+			int i = 0;
+			while (i < end - from) {
+				queue.add(block[i], bucketDistance(query, block[i]));
+				i++;
+			}
+			from = end;
+		}
+	}
+
 	/**
 	 * Search the entire bitset. This should be done with datasets
 	 * that can fit in memory and only to generate statistics
@@ -184,61 +377,29 @@ public class CompressedBitSet64 {
 	 */
 	public List<OBResultInvertedByte<Long>> searchFull(long query) throws OBException {
 		List<OBResultInvertedByte<Long>> result = new ArrayList<OBResultInvertedByte<Long>>(size());
-		InputBitStream delta = new InputBitStream(data);
-		// do the first element.
-		int distance = bucketDistance(query, first);
-		result.add(new OBResultInvertedByte<Long>(first, first, (byte)distance));
-		long prev = first;
-		int i = 1;
-		try {
-		while (i < count) {
-			long object;
-			
-				object = read(delta) + prev;
-			
-			distance = bucketDistance(query, object);
+		for (long object : getAll()) {
+			int distance = bucketDistance(query, object);
 			assert distance <= Byte.MAX_VALUE;
 			result.add(new OBResultInvertedByte<Long>(object, object, (byte)distance));
-			prev = object;
-			i++;
 		}
 		Collections.sort(result);
 		return result;
-		} catch (IOException e) {
-			throw new OBException(e);
-		}
 	}
-	
+
 	public int size(){
 		return count;
 	}
-	
+
 	/**
 	 * Return all the buckets just for debugging purposes.
 	 * @return
-	 * @throws IOException 
 	 */
-	protected long[] getAll() throws IOException{
+	protected long[] getAll() {
 		long[] result = new long[count];
-		long prev = first;
-		int i = 0;
-		result[i] = prev;
-		i++;
-		InputBitStream delta = new InputBitStream(data);
-		while(i < result.length){
-			result[i] = read(delta) + prev;
-			prev = result[i];
-			i++;
+		if (count > 0) {
+			decode(0, count, result);
 		}
 		return result;
 	}
-	
-	private void write(long object, OutputBitStream out) throws IOException{
-		out.writeLongDelta(object);
-	}
-	
-	protected long read(InputBitStream in) throws IOException{
-		return in.readLongDelta();
-	}
 
 }
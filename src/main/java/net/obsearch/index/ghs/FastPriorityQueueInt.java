@@ -0,0 +1,175 @@
+package net.obsearch.index.ghs;
+
+/**
+ * This data structure simulates a priority queue of ints sorted by their
+ * distance to some other object. Like {@link FastPriorityQueueLong} it assumes
+ * that distances are discrete and bounded by a small value (the number of bits
+ * of a sketch), so elements are counted into one level per distance instead of
+ * being sorted. Levels grow on demand, and once the queue holds queueSize
+ * elements any candidate farther than the current cut distance is rejected
+ * without touching memory. Adding an element never creates objects, so the
+ * queue can be used to rank millions of sketches per query.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class FastPriorityQueueInt {
+
+	/**
+	 * Initial size of each level.
+	 */
+	private static final int INITIAL_LEVEL_SIZE = 16;
+
+	private int[][] data;
+	private int[] counts;
+	private final int queueSize;
+	/**
+	 * Number of elements stored in levels 0..cut.
+	 */
+	private int size;
+	/**
+	 * Maximum distance that can still enter the queue, -1 if the queue does
+	 * not accept any element.
+	 */
+	private int cut;
+
+	/**
+	 * Creates the queue
+	 *
+	 * @param maxDistance
+	 *            maximum distance that will be inserted in the queue. (from 0
+	 *            to maxDistance)
+	 * @param queueSize
+	 *            size of the queue (number of closest elements to be
+	 *            obtained). A queue of size 0 or less stays empty.
+	 */
+	public FastPriorityQueueInt(int maxDistance, int queueSize) {
+		maxDistance++;
+		data = new int[maxDistance][];
+		counts = new int[maxDistance];
+		this.queueSize = queueSize;
+		clear();
+	}
+
+	/**
+	 * Empty the queue so that it can be used again. The memory of the levels
+	 * is kept.
+	 */
+	public void clear() {
+		int i = 0;
+		while (i < counts.length) {
+			counts[i] = 0;
+			i++;
+		}
+		size = 0;
+		// an empty queue rejects every distance.
+		cut = queueSize > 0 ? counts.length - 1 : -1;
+	}
+
+	/**
+	 * Add an object that is at a certain distance.
+	 *
+	 * @param object
+	 *            the object to add
+	 * @param distance
+	 *            the distance of the object.
+	 */
+	public void add(int object, int distance) {
+		if (distance > cut || (distance == cut && size >= queueSize)) {
+			return;
+		}
+		int c = counts[distance];
+		int[] level = data[distance];
+		if (level == null || c == level.length) {
+			level = grow(distance, c);
+		}
+		level[c] = object;
+		counts[distance] = c + 1;
+		size++;
+		// drop the farthest level if the closer ones are enough.
+		while (cut > 0 && size - counts[cut] >= queueSize) {
+			size -= counts[cut];
+			counts[cut] = 0;
+			cut--;
+		}
+	}
+
+	private int[] grow(int distance, int c) {
+		int[] level = new int[Math.min(queueSize, Math.max(
+				INITIAL_LEVEL_SIZE, c * 2))];
+		if (c > 0) {
+			System.arraycopy(data[distance], 0, level, 0, c);
+		}
+		data[distance] = level;
+		return level;
+	}
+
+	/**
+	 * Maximum distance that can still be added to the queue. Elements with a
+	 * greater distance are ignored by {@link #add(int, int)}.
+	 *
+	 * @return the current cut distance.
+	 */
+	public int getCut() {
+		return cut;
+	}
+
+	/**
+	 * @return true if the queue holds queueSize elements.
+	 */
+	public boolean isFull() {
+		return size >= queueSize;
+	}
+
+	/**
+	 * @return the number of elements that {@link #get()} will return.
+	 */
+	public int size() {
+		return Math.min(size, queueSize);
+	}
+
+	/**
+	 * Return the closest objects sorted by distance. We do not include the
+	 * original distances to reduce the creation of objects, see
+	 * {@link #getDistances()}.
+	 *
+	 * @return the closest objects
+	 */
+	public int[] get() {
+		int[] result = new int[size()];
+		int resi = 0;
+		int i1 = 0;
+		while (i1 <= cut && resi < result.length) {
+			int i2 = 0;
+			while (i2 < counts[i1] && resi < result.length) {
+				result[resi] = data[i1][i2];
+				resi++;
+				i2++;
+			}
+			i1++;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the distances of the objects returned by {@link #get()}, in the
+	 * same order.
+	 *
+	 * @return the distances of the closest objects.
+	 */
+	public int[] getDistances() {
+		int[] result = new int[size()];
+		int resi = 0;
+		int i1 = 0;
+		while (i1 <= cut && resi < result.length) {
+			int i2 = 0;
+			while (i2 < counts[i1] && resi < result.length) {
+				result[resi] = i1;
+				resi++;
+				i2++;
+			}
+			i1++;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,70 @@
+package net.obsearch.index.ghs;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Hamming distance kernel shared by all the sketch structures. It is the
+ * simple loop over the words: an unrolled kernel with four accumulators was
+ * not faster on the JIT (see HammingBenchmark in the tests), so a faster
+ * kernel can replace this one without touching the callers.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class Hamming {
+
+	private Hamming() {
+	}
+
+	/**
+	 * Hamming distance between two sketches of the same length.
+	 *
+	 * @param a
+	 *            words of the first sketch.
+	 * @param b
+	 *            words of the second sketch.
+	 * @return the number of different bits.
+	 */
+	public static int distance(long[] a, long[] b) {
+		return distance(a, b, 0, a.length);
+	}
+
+	/**
+	 * Hamming distance between a sketch and the sketch stored in
+	 * b[offset..offset + length).
+	 *
+	 * @param a
+	 *            words of the first sketch.
+	 * @param b
+	 *            array that holds the second sketch.
+	 * @param offset
+	 *            first word of the second sketch.
+	 * @param length
+	 *            number of words of each sketch.
+	 * @return the number of different bits.
+	 */
+	public static int distance(long[] a, long[] b, int offset, int length) {
+		int res = 0;
+		for (int i = 0; i < length; i++) {
+			res += Long.bitCount(a[i] ^ b[offset + i]);
+		}
+		return res;
+	}
+
+}
@@ -0,0 +1,379 @@
+package net.obsearch.index.ghs;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import gnu.trove.TLongObjectHashMap;
+import cern.colt.list.IntArrayList;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MultiIndexHash finds the closest sketches of a {@link SketchMatrix} by
+ * probing instead of scanning. Each sketch is split into s disjoint substrings
+ * and every substring is indexed in its own hash table (substring value ->
+ * ordinals). If two sketches are at hamming distance d, at least one of their
+ * substrings is at distance <= d / s, so a k nearest neighbor search probes
+ * all the values at distance 0, 1, 2... of each query substring and stops as
+ * soon as the sketches that were not found cannot beat the k-th candidate.
+ * When probing would touch more values than the remaining sketches, the rest
+ * of the matrix is scanned, so a search never costs much more than a linear
+ * scan. Results are exact.
+ *
+ * Substrings of about log2(number of sketches) bits work best.
+ *
+ * Searches can run concurrently; {@link #update()} modifies the tables and
+ * waits for the running searches to finish.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class MultiIndexHash {
+
+	/**
+	 * Maximum length of a substring.
+	 */
+	public static final int MAX_SUBSTRING_BITS = 32;
+
+	/**
+	 * Indexed sketches.
+	 */
+	private final SketchMatrix matrix;
+
+	/**
+	 * First bit of each substring.
+	 */
+	private final int[] offsets;
+
+	/**
+	 * Number of bits of each substring.
+	 */
+	private final int[] lengths;
+
+	/**
+	 * One table per substring.
+	 */
+	private final TLongObjectHashMap<IntArrayList>[] tables;
+
+	/**
+	 * Sketches [0, indexed) of the matrix are in the tables.
+	 */
+	private int indexed;
+
+	/**
+	 * Guards {@link #tables} and {@link #indexed}: searches hold the read
+	 * lock, updates the write lock.
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Sketches found by the current search of each thread. The set is reused
+	 * by the searches of the thread.
+	 */
+	private final ThreadLocal<SeenSet> seenSets = new ThreadLocal<SeenSet>() {
+		protected SeenSet initialValue() {
+			return new SeenSet();
+		}
+	};
+
+	/**
+	 * Create a multi index over the given matrix and index all its sketches.
+	 *
+	 * @param matrix
+	 *            the sketches to index.
+	 * @param substrings
+	 *            number of substrings each sketch is split into. The number is
+	 *            increased if a substring would be longer than
+	 *            {@link #MAX_SUBSTRING_BITS}.
+	 */
+	@SuppressWarnings("unchecked")
+	public MultiIndexHash(SketchMatrix matrix, int substrings) {
+		this.matrix = matrix;
+		int m = matrix.getM();
+		int s = Math.max(substrings, (m + MAX_SUBSTRING_BITS - 1)
+				/ MAX_SUBSTRING_BITS);
+		s = Math.max(1, Math.min(s, m));
+		offsets = new int[s];
+		lengths = new int[s];
+		tables = new TLongObjectHashMap[s];
+		int offset = 0;
+		int i = 0;
+		while (i < s) {
+			// the first m % s substrings get one more bit.
+			lengths[i] = m / s + (i < m % s ? 1 : 0);
+			offsets[i] = offset;
+			offset += lengths[i];
+			tables[i] = new TLongObjectHashMap<IntArrayList>();
+			i++;
+		}
+		indexed = 0;
+		update();
+	}
+
+	/**
+	 * Index the sketches that were appended to the matrix after the last
+	 * update.
+	 */
+	public void update() {
+		lock.writeLock().lock();
+		try {
+			updateAux();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void updateAux() {
+		int total = matrix.size();
+		long[] sketch = new long[matrix.getWordsPerSketch()];
+		while (indexed < total) {
+			matrix.getSketch(indexed, sketch);
+			int i = 0;
+			while (i < tables.length) {
+				long key = substring(sketch, offsets[i], lengths[i]);
+				IntArrayList l = tables[i].get(key);
+				if (l == null) {
+					l = new IntArrayList(1);
+					tables[i].put(key, l);
+				}
+				l.add(indexed);
+				i++;
+			}
+			indexed++;
+		}
+	}
+
+	/**
+	 * @return the number of substrings of each sketch.
+	 */
+	public int getSubstrings() {
+		return tables.length;
+	}
+
+	/**
+	 * Find the closest sketches to the given query.
+	 *
+	 * @param query
+	 *            raw words of the query sketch.
+	 * @param queue
+	 *            receives the ordinals of the closest sketches. The size of the
+	 *            queue determines the number of neighbors searched.
+	 */
+	public void search(long[] query, FastPriorityQueueInt queue) {
+		lock.readLock().lock();
+		try {
+			final int total = indexed;
+			SeenSet seen = seenSets.get();
+			seen.reset(total);
+			try {
+				searchAux(query, queue, total, seen);
+			} finally {
+				seen.clear();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void searchAux(long[] query, FastPriorityQueueInt queue,
+			final int total, SeenSet seen) {
+		final int s = tables.length;
+		int seenCount = 0;
+		long[] q = new long[s];
+		int maxLength = 0;
+		int i = 0;
+		while (i < s) {
+			q[i] = substring(query, offsets[i], lengths[i]);
+			maxLength = Math.max(maxLength, lengths[i]);
+			i++;
+		}
+		int r = 0;
+		while (r <= maxLength && seenCount < total) {
+			// probing radius r must be cheaper than scanning what is left.
+			if (probes(r) > total - seenCount) {
+				scanUnseen(query, seen, total, queue);
+				return;
+			}
+			i = 0;
+			while (i < s) {
+				if (r <= lengths[i]) {
+					seenCount += probe(query, i, q[i], r, seen, queue);
+				}
+				i++;
+			}
+			// every unseen sketch differs in more than r bits in each
+			// substring.
+			if (queue.isFull() && queue.getCut() <= s * (r + 1)) {
+				return;
+			}
+			r++;
+		}
+	}
+
+	/**
+	 * Number of table lookups needed to probe radius r.
+	 */
+	private long probes(int r) {
+		long res = 0;
+		for (int l : lengths) {
+			res += binomial(l, r);
+		}
+		return res;
+	}
+
+	private static long binomial(int n, int k) {
+		if (k > n) {
+			return 0;
+		}
+		long res = 1;
+		int i = 1;
+		while (i <= k) {
+			res = res * (n - k + i) / i;
+			i++;
+		}
+		return res;
+	}
+
+	/**
+	 * Lookup all the values of substring i that are at distance r of value.
+	 *
+	 * @return number of new sketches found.
+	 */
+	private int probe(long[] query, int i, long value, int r, SeenSet seen,
+			FastPriorityQueueInt queue) {
+		final int length = lengths[i];
+		final long limit = 1L << length;
+		int found = 0;
+		// iterate the masks of length bits with exactly r bits set (Gosper's
+		// hack).
+		long mask = (1L << r) - 1;
+		while (mask < limit) {
+			IntArrayList l = tables[i].get(value ^ mask);
+			if (l != null) {
+				int[] ordinals = l.elements();
+				int size = l.size();
+				int cx = 0;
+				while (cx < size) {
+					int o = ordinals[cx];
+					if (seen.add(o)) {
+						queue.add(o, matrix.hamming(query, o));
+						found++;
+					}
+					cx++;
+				}
+			}
+			if (mask == 0) {
+				break;
+			}
+			long c = mask & -mask;
+			long next = mask + c;
+			mask = (((next ^ mask) >>> 2) / c) | next;
+		}
+		return found;
+	}
+
+	private void scanUnseen(long[] query, SeenSet seen, int total,
+			FastPriorityQueueInt queue) {
+		int o = 0;
+		while (o < total) {
+			if (!seen.contains(o)) {
+				queue.add(o, matrix.hamming(query, o));
+			}
+			o++;
+		}
+	}
+
+	/**
+	 * Extract length bits starting at bit from of the given sketch.
+	 */
+	private static long substring(long[] words, int from, int length) {
+		int word = from >>> 6;
+		int shift = from & 63;
+		long res = words[word] >>> shift;
+		if (shift + length > 64) {
+			res |= words[word + 1] << (64 - shift);
+		}
+		if (length < 64) {
+			res &= (1L << length) - 1;
+		}
+		return res;
+	}
+
+	/**
+	 * Bitmap of the ordinals found by a search. Only the words that were set
+	 * are cleared after the search, so a search does not pay for the size of
+	 * the matrix.
+	 */
+	private static final class SeenSet {
+
+		private long[] words = new long[0];
+
+		/**
+		 * Indexes of the words of {@link #words} that are not zero.
+		 */
+		private int[] dirty = new int[16];
+
+		private int dirtyCount = 0;
+
+		/**
+		 * Make room for the ordinals [0, total).
+		 */
+		void reset(int total) {
+			int size = (total >>> 6) + 1;
+			if (words.length < size) {
+				words = new long[size];
+			}
+		}
+
+		boolean contains(int o) {
+			return (words[o >>> 6] & (1L << o)) != 0;
+		}
+
+		/**
+		 * @return true if o was not in the set.
+		 */
+		boolean add(int o) {
+			int w = o >>> 6;
+			long bits = words[w];
+			if ((bits & (1L << o)) != 0) {
+				return false;
+			}
+			if (bits == 0) {
+				if (dirtyCount == dirty.length) {
+					int[] n = new int[dirty.length * 2];
+					System.arraycopy(dirty, 0, n, 0, dirtyCount);
+					dirty = n;
+				}
+				dirty[dirtyCount++] = w;
+			}
+			words[w] = bits | (1L << o);
+			return true;
+		}
+
+		void clear() {
+			int i = 0;
+			while (i < dirtyCount) {
+				words[dirty[i]] = 0;
+				i++;
+			}
+			dirtyCount = 0;
+		}
+	}
+
+}
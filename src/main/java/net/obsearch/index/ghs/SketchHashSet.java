@@ -0,0 +1,156 @@
+package net.obsearch.index.ghs;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * SketchHashSet keeps the sketches of a {@link SketchMatrix} unique. It is an
+ * open addressing hash table of ordinals: the sketches themselves stay in the
+ * matrix, so the set costs two ints per sketch and no objects. Sketches are
+ * only added through {@link #add(long[])}, which appends them to the matrix.
+ * The set is synchronized: the table is replaced when it grows, so lookups
+ * cannot run while a sketch is added.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class SketchHashSet {
+
+	/**
+	 * Sketches of the set.
+	 */
+	private final SketchMatrix matrix;
+
+	/**
+	 * ordinal + 1 of the sketch stored in each slot, 0 if the slot is empty.
+	 */
+	private int[] table;
+
+	/**
+	 * table.length - 1
+	 */
+	private int mask;
+
+	/**
+	 * Create a set over the given matrix. The sketches already stored in the
+	 * matrix must be unique.
+	 *
+	 * @param matrix
+	 *            the matrix that will hold the sketches.
+	 * @param capacity
+	 *            expected number of sketches.
+	 */
+	public SketchHashSet(SketchMatrix matrix, int capacity) {
+		this.matrix = matrix;
+		allocate(Math.max(capacity, matrix.size()));
+		if (matrix.size() > 0) {
+			rehash();
+		}
+	}
+
+	private void allocate(int capacity) {
+		int size = 16;
+		while (size < capacity * 2L && size < (1 << 30)) {
+			size <<= 1;
+		}
+		table = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Add the given sketch to the matrix if it is not already there.
+	 *
+	 * @param sketch
+	 *            raw words of the sketch.
+	 * @return true if the sketch was appended to the matrix.
+	 */
+	public synchronized boolean add(long[] sketch) {
+		int slot = find(sketch);
+		if (table[slot] != 0) {
+			return false;
+		}
+		int ordinal = matrix.add(sketch);
+		table[slot] = ordinal + 1;
+		if (matrix.size() * 2L > table.length) {
+			rehash();
+		}
+		return true;
+	}
+
+	/**
+	 * Return the ordinal of the given sketch.
+	 *
+	 * @param sketch
+	 *            raw words of the sketch.
+	 * @return the ordinal of the sketch in the matrix or -1 if the sketch is
+	 *         not in the set.
+	 */
+	public synchronized int indexOf(long[] sketch) {
+		return table[find(sketch)] - 1;
+	}
+
+	/**
+	 * @return the number of sketches of the set.
+	 */
+	public int size() {
+		return matrix.size();
+	}
+
+	/**
+	 * Slot that holds the given sketch, or the empty slot where it should be
+	 * stored.
+	 */
+	private int find(long[] sketch) {
+		int slot = hash(sketch, matrix.getWordsPerSketch()) & mask;
+		while (true) {
+			int o = table[slot];
+			if (o == 0 || matrix.matches(sketch, o - 1)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash() {
+		final int wps = matrix.getWordsPerSketch();
+		final long[] sketch = new long[wps];
+		allocate(Math.max(table.length, matrix.size()));
+		int total = matrix.size();
+		int o = 0;
+		while (o < total) {
+			matrix.getSketch(o, sketch);
+			int slot = hash(sketch, wps) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = o + 1;
+			o++;
+		}
+	}
+
+	private static int hash(long[] sketch, int wps) {
+		long h = 0;
+		int i = 0;
+		while (i < wps) {
+			h = (h ^ sketch[i]) * 0x9E3779B97F4A7C15L;
+			i++;
+		}
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
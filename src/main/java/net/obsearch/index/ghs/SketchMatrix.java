@@ -0,0 +1,486 @@
+package net.obsearch.index.ghs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.obsearch.constants.ByteConstants;
+import net.obsearch.utils.bytes.ByteConversion;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * SketchMatrix stores a set of sketches of m bits in one contiguous long
+ * array. Sketch i occupies the words [i * wordsPerSketch, (i + 1) *
+ * wordsPerSketch). The position of a sketch in the matrix is its ordinal, and
+ * the bucket address of the sketch is recovered from the ordinal with
+ * {@link #getAddress(int)} (the address of a bucket is the serialized sketch).
+ * Scans work directly on the words so that no CBitVector objects are touched
+ * while ranking buckets.
+ *
+ * A matrix can be written to a file with {@link #write(File, long)} and
+ * memory-mapped back with {@link #map(File, int, long)}. The file is mapped in
+ * segments of {@link #SEGMENT_WORDS} longs so that files larger than 2GB can
+ * be mapped; a sketch may cross a segment boundary. A mapped matrix is
+ * read-only until the first {@link #add(long[])}, which copies the words to
+ * the heap.
+ *
+ * Sketches can be appended while other threads read the matrix. Appends are
+ * serialized; a new sketch is written before the count is published and the
+ * words are replaced (never modified below the count) when they grow, so a
+ * reader always sees complete sketches for the ordinals below the count it
+ * read.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class SketchMatrix {
+
+	/**
+	 * Identifies sketch files. It is written in the native byte order so a
+	 * file created on a machine with a different byte order is not accepted.
+	 */
+	private static final long MAGIC = 0x4F42534B45544348L; // "OBSKETCH"
+
+	private static final long VERSION = 2;
+
+	/**
+	 * Number of longs of the file header: magic, version, m, count, stamp.
+	 */
+	private static final int HEADER_LONGS = 5;
+
+	/**
+	 * log2 of {@link #SEGMENT_WORDS}.
+	 */
+	static final int SEGMENT_BITS = 25;
+
+	/**
+	 * Number of longs of each mapped segment (256MB).
+	 */
+	static final long SEGMENT_WORDS = 1L << SEGMENT_BITS;
+
+	/**
+	 * Sketch words, wordsPerSketch longs per sketch. Null if the matrix is
+	 * mapped.
+	 */
+	private volatile long[] words;
+
+	/**
+	 * Sketch words of a mapped matrix, word w is in segment w >>>
+	 * segmentBits.
+	 */
+	private volatile LongBuffer[] mapped;
+
+	/**
+	 * log2 of the number of longs of each segment of {@link #mapped}.
+	 */
+	private int segmentBits;
+
+	/**
+	 * Number of longs used by each sketch.
+	 */
+	private final int wordsPerSketch;
+
+	/**
+	 * Number of bits of each sketch.
+	 */
+	private final int m;
+
+	/**
+	 * Number of sketches stored.
+	 */
+	private volatile int count;
+
+	/**
+	 * Create an empty matrix.
+	 *
+	 * @param m
+	 *            number of bits of each sketch.
+	 * @param capacity
+	 *            initial number of sketches to reserve.
+	 */
+	public SketchMatrix(int m, int capacity) {
+		this.m = m;
+		this.wordsPerSketch = wordsPerSketch(m);
+		words = new long[Math.max(capacity, 1) * wordsPerSketch];
+		count = 0;
+	}
+
+	/**
+	 * Number of longs required to hold m bits.
+	 *
+	 * @param m
+	 *            number of bits
+	 * @return number of longs required to hold m bits.
+	 */
+	public static int wordsPerSketch(int m) {
+		return (m + ByteConstants.Long.getBits() - 1)
+				/ ByteConstants.Long.getBits();
+	}
+
+	/**
+	 * Append the given sketch to the matrix.
+	 *
+	 * @param sketch
+	 *            sketch to add.
+	 * @return the ordinal of the new sketch.
+	 */
+	public int add(CBitVector sketch) {
+		return add(sketch.elements());
+	}
+
+	/**
+	 * Append the given sketch words to the matrix.
+	 *
+	 * @param sketch
+	 *            raw words of the sketch (at least wordsPerSketch longs).
+	 * @return the ordinal of the new sketch.
+	 */
+	public synchronized int add(long[] sketch) {
+		if (mapped != null) {
+			// copy on write, the words are published before the mapping is
+			// dropped.
+			long total = ((long) count) * wordsPerSketch;
+			assert total <= Integer.MAX_VALUE : "Exceeded allowed sketch set size";
+			long[] copy = new long[(int) total];
+			int pos = 0;
+			for (LongBuffer b : mapped) {
+				int length = b.capacity();
+				b.duplicate().get(copy, pos, length);
+				pos += length;
+			}
+			words = copy;
+			mapped = null;
+		}
+		int ordinal = count;
+		ensureCapacity(ordinal + 1);
+		System.arraycopy(sketch, 0, words, ordinal * wordsPerSketch,
+				wordsPerSketch);
+		count = ordinal + 1;
+		return ordinal;
+	}
+
+	private void ensureCapacity(int sketches) {
+		long required = ((long) sketches) * wordsPerSketch;
+		assert required <= Integer.MAX_VALUE : "Exceeded allowed sketch set size";
+		if (required > words.length) {
+			long newSize = Math.max(required, ((long) words.length) * 3 / 2);
+			newSize = Math.min(newSize, Integer.MAX_VALUE);
+			words = Arrays.copyOf(words, (int) newSize);
+		}
+	}
+
+	/**
+	 * Release the unused capacity of the matrix.
+	 */
+	public synchronized void trim() {
+		if (mapped == null && words.length > count * wordsPerSketch) {
+			words = Arrays.copyOf(words, Math.max(count, 1) * wordsPerSketch);
+		}
+	}
+
+	/**
+	 * Hamming distance between the given query words and the sketch stored at
+	 * ordinal.
+	 *
+	 * @param query
+	 *            raw words of the query sketch.
+	 * @param ordinal
+	 *            sketch to compare.
+	 * @return the hamming distance
+	 */
+	public int hamming(long[] query, int ordinal) {
+		final LongBuffer[] segments = mapped; // cached for speed.
+		if (segments == null) {
+			return Hamming.distance(query, words, ordinal * wordsPerSketch,
+					wordsPerSketch);
+		}
+		long base = ((long) ordinal) * wordsPerSketch;
+		int offset = (int) (base & ((1L << segmentBits) - 1));
+		int res = 0;
+		if (offset + wordsPerSketch <= (1L << segmentBits)) {
+			// the sketch is in one segment.
+			final LongBuffer b = segments[(int) (base >>> segmentBits)];
+			for (int i = 0; i < wordsPerSketch; i++) {
+				res += Long.bitCount(query[i] ^ b.get(offset + i));
+			}
+		} else {
+			for (int i = 0; i < wordsPerSketch; i++) {
+				res += Long.bitCount(query[i] ^ getWord(segments, base + i));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Compare the given sketch words with the sketch stored at ordinal.
+	 *
+	 * @param sketch
+	 *            raw words of a sketch.
+	 * @param ordinal
+	 *            sketch to compare.
+	 * @return true if both sketches are equal.
+	 */
+	public boolean matches(long[] sketch, int ordinal) {
+		final LongBuffer[] segments = mapped;
+		long base = ((long) ordinal) * wordsPerSketch;
+		for (int i = 0; i < wordsPerSketch; i++) {
+			if (sketch[i] != getWord(segments, base + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Word at the given index. The mapping must be read before the words:
+	 * they are published before the mapping is dropped.
+	 *
+	 * @param segments
+	 *            value of {@link #mapped} read by the caller.
+	 */
+	private long getWord(LongBuffer[] segments, long index) {
+		if (segments == null) {
+			return words[(int) index];
+		}
+		return segments[(int) (index >>> segmentBits)]
+				.get((int) (index & ((1L << segmentBits) - 1)));
+	}
+
+	/**
+	 * Copy the words of the given ordinal into dest.
+	 *
+	 * @param ordinal
+	 *            sketch to copy.
+	 * @param dest
+	 *            array of at least wordsPerSketch longs.
+	 */
+	public void getSketch(int ordinal, long[] dest) {
+		final LongBuffer[] segments = mapped;
+		long base = ((long) ordinal) * wordsPerSketch;
+		if (segments == null) {
+			System.arraycopy(words, (int) base, dest, 0, wordsPerSketch);
+		} else {
+			for (int i = 0; i < wordsPerSketch; i++) {
+				dest[i] = getWord(segments, base + i);
+			}
+		}
+	}
+
+	/**
+	 * Create a CBitVector for the given ordinal.
+	 *
+	 * @param ordinal
+	 *            sketch to copy.
+	 * @return a new CBitVector with the contents of the sketch.
+	 */
+	public CBitVector getSketch(int ordinal) {
+		long[] bits = new long[wordsPerSketch];
+		getSketch(ordinal, bits);
+		return new CBitVector(bits, m);
+	}
+
+	/**
+	 * Return the bucket address of the given ordinal. The address is the same
+	 * byte array {@link CBitVector#store()} generates.
+	 *
+	 * @param ordinal
+	 *            sketch to convert.
+	 * @return the bucket address of the sketch.
+	 */
+	public byte[] getAddress(int ordinal) {
+		ByteBuffer b = ByteConversion.createByteBuffer(ByteConstants.Long
+				.getSize()
+				* wordsPerSketch);
+		final LongBuffer[] segments = mapped;
+		long base = ((long) ordinal) * wordsPerSketch;
+		for (int i = 0; i < wordsPerSketch; i++) {
+			b.putLong(getWord(segments, base + i));
+		}
+		return b.array();
+	}
+
+	public int getWordsPerSketch() {
+		return wordsPerSketch;
+	}
+
+	/**
+	 * @return number of bits of each sketch.
+	 */
+	public int getM() {
+		return m;
+	}
+
+	/**
+	 * @return number of sketches stored in the matrix.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return true if the words of the matrix are mapped from a file.
+	 */
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * Write the matrix to the given file. The file holds a header (magic,
+	 * version, m, number of sketches and stamp) followed by the words of the
+	 * sketches in the native byte order. The matrix is written to a temporary
+	 * file in the same directory that is forced to disk and renamed over the
+	 * given file, so mappings of the old file stay valid and a crash never
+	 * leaves a partially written file behind.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param stamp
+	 *            value used by the caller to check that the file is up to
+	 *            date, see {@link #map(File, int, long)}.
+	 * @throws IOException
+	 */
+	public synchronized void write(File file, long stamp) throws IOException {
+		File tmp = File.createTempFile(file.getName(), ".tmp", file
+				.getAbsoluteFile().getParentFile());
+		boolean written = false;
+		try {
+			writeAux(tmp, stamp);
+			written = true;
+		} finally {
+			if (!written) {
+				tmp.delete();
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			// some platforms do not replace an existing file.
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				throw new IOException("Could not rename " + tmp + " to " + file);
+			}
+		}
+	}
+
+	private void writeAux(File file, long stamp) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel ch = out.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(
+					ByteOrder.nativeOrder());
+			buf.putLong(MAGIC).putLong(VERSION).putLong(m).putLong(count)
+					.putLong(stamp);
+			final LongBuffer[] segments = mapped;
+			long total = ((long) count) * wordsPerSketch;
+			long i = 0;
+			while (i < total) {
+				if (buf.remaining() < 8) {
+					flush(ch, buf);
+				}
+				buf.putLong(getWord(segments, i));
+				i++;
+			}
+			flush(ch, buf);
+			ch.force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer buf)
+			throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Map a matrix written by {@link #write(File, long)}.
+	 *
+	 * @param file
+	 *            the file to map.
+	 * @param m
+	 *            expected number of bits of each sketch.
+	 * @param stamp
+	 *            expected stamp.
+	 * @return the mapped matrix, or null if the file does not exist or was
+	 *         written with a different byte order, m or stamp.
+	 * @throws IOException
+	 */
+	public static SketchMatrix map(File file, int m, long stamp)
+			throws IOException {
+		return map(file, m, stamp, SEGMENT_BITS);
+	}
+
+	/**
+	 * Map a matrix in segments of 2^segmentBits longs.
+	 */
+	static SketchMatrix map(File file, int m, long stamp, int segmentBits)
+			throws IOException {
+		if (!file.exists() || file.length() < HEADER_LONGS * 8) {
+			return null;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel ch = in.getChannel();
+			LongBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_LONGS * 8).order(ByteOrder.nativeOrder())
+					.asLongBuffer();
+			if (h.get(0) != MAGIC || h.get(1) != VERSION || h.get(2) != m
+					|| h.get(4) != stamp || h.get(3) > Integer.MAX_VALUE) {
+				return null;
+			}
+			int count = (int) h.get(3);
+			long total = ((long) count) * wordsPerSketch(m);
+			if (ch.size() / 8 - HEADER_LONGS < total) {
+				return null; // truncated
+			}
+			long segmentWords = 1L << segmentBits;
+			LongBuffer[] segments = new LongBuffer[(int) ((total
+					+ segmentWords - 1) >>> segmentBits)];
+			int s = 0;
+			while (s < segments.length) {
+				long start = ((long) s) << segmentBits;
+				long length = Math.min(segmentWords, total - start);
+				segments[s] = ch.map(FileChannel.MapMode.READ_ONLY,
+						(HEADER_LONGS + start) * 8, length * 8).order(
+						ByteOrder.nativeOrder()).asLongBuffer();
+				s++;
+			}
+			SketchMatrix res = new SketchMatrix(m, 0);
+			res.words = null;
+			res.mapped = segments;
+			res.segmentBits = segmentBits;
+			res.count = count;
+			return res;
+		} finally {
+			// the mappings stay valid after the channel is closed.
+			in.close();
+		}
+	}
+
+}
@@ -20,7 +20,11 @@ public final class SketchProjection implements Projection<SketchProjection, CBit
 	//private int magnitude;
 	//private byte[] ordering;
 	private int distance;
-	//private double[] lowerBounds;
+	/**
+	 * Lower bound of the distance to any object that falls on the other side
+	 * of each pivot pair (may be null).
+	 */
+	private double[] lowerBounds;
 	//private double lowerBound;
 	private CBitVector sketch;
 	
@@ -44,17 +48,25 @@ public final class SketchProjection implements Projection<SketchProjection, CBit
 		
 		this.lowerBounds = lowerBounds;
 		*/
+		this.lowerBounds = lowerBounds;
 		this.sketch = sketch;
 		this.distance = distance;
 	}
+
+	/**
+	 * lowerBounds[i] is a lower bound of the distance between the projected
+	 * object and any object whose bit i differs from the bit i of this
+	 * sketch.
+	 * 
+	 * @return the lower bounds of each bit or null if they were not computed.
+	 */
+	public double[] getLowerBounds() {
+		return lowerBounds;
+	}
 	
 	
 	
-	/*public double[] getLowerBounds(){
-		return lowerBounds;
-	}
-
-	public byte[] getOrdering() {
+	/*public byte[] getOrdering() {
 		return ordering;
 	}*/
 	
@@ -2,21 +2,36 @@ package net.obsearch.index.sorter;
 
 import hep.aida.bin.StaticBin1D;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import cern.colt.list.IntArrayList;
+
 import net.obsearch.Index;
 import net.obsearch.OB;
 import net.obsearch.OperationStatus;
 import net.obsearch.Status;
 import net.obsearch.asserts.OBAsserts;
+import net.obsearch.cache.ByteArrayKey;
 import net.obsearch.cache.OBCacheByteArray;
 import net.obsearch.cache.OBCacheHandlerByteArray;
 import net.obsearch.constants.OBSearchProperties;
@@ -30,8 +45,10 @@ import net.obsearch.index.bucket.AbstractBucketIndex;
 import net.obsearch.index.bucket.BucketContainer;
 import net.obsearch.index.bucket.BucketObject;
 import net.obsearch.index.ghs.FixedPriorityQueue;
+import net.obsearch.index.utils.ByteArrayComparator;
 import net.obsearch.pivots.IncrementalPivotSelector;
 import net.obsearch.query.AbstractOBQuery;
+import net.obsearch.stats.Statistics;
 import net.obsearch.storage.CloseIterator;
 import net.obsearch.storage.OBStorageConfig;
 import net.obsearch.storage.OBStore;
@@ -40,6 +57,7 @@ import net.obsearch.storage.OBStoreLong;
 import net.obsearch.storage.TupleBytes;
 import net.obsearch.storage.TupleLong;
 import net.obsearch.storage.OBStorageConfig.IndexType;
+import net.obsearch.utils.bytes.ByteConversion;
 
 public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<O>, Q, BC extends BucketContainer<O, B, Q>, P extends Projection<P, CP>, CP>
 		extends AbstractBucketIndex<O, B, Q, BC> {
@@ -52,6 +70,46 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 	 * should read for a given k query to match a certain value of error.
 	 */
 	protected StaticBin1D[] kEstimators;
+
+	/**
+	 * For each k, the hamming gap between the first bucket and the last
+	 * bucket a sample query needed to read.
+	 */
+	protected StaticBin1D[] gapEstimators;
+
+	/**
+	 * For each k, the longest run of buckets that did not improve the result
+	 * of a sample query before its last improvement.
+	 */
+	protected StaticBin1D[] stallEstimators;
+
+	/**
+	 * Gap estimators by k and by class of query (see
+	 * {@link #addBudgetSample(int, int, int, int)}).
+	 */
+	protected StaticBin1D[][] classGapEstimators;
+
+	/**
+	 * Stall estimators by k and by class of query.
+	 */
+	protected StaticBin1D[][] classStallEstimators;
+
+	/**
+	 * Number of query classes of the adaptive budget.
+	 */
+	protected static final int BUDGET_CLASSES = 4;
+
+	/**
+	 * Samples a class of queries needs before the adaptive budget uses its
+	 * own bounds instead of the bounds of all the queries of the same k.
+	 */
+	private static final int MIN_CLASS_SAMPLES = 10;
+
+	/**
+	 * If true queries stop reading buckets when {@link #stopReading(int, int, int)}
+	 * says so.
+	 */
+	private boolean adaptiveBudget = false;
 	
 	
 	/**
@@ -83,6 +141,12 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 	 */
 	protected transient List<CP> projections;
 
+	/**
+	 * Number of compact representations compared against every query of a
+	 * batch before moving to the next block.
+	 */
+	protected static final int BATCH_BLOCK = 4096;
+
 	/**
 	 * Cache used for storing buckets
 	 */
@@ -93,6 +157,81 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 	 */
 	protected int bucketPivotCount;
 
+	/**
+	 * Number of objects projected by each task during freeze.
+	 */
+	private static final int FREEZE_BATCH = 4096;
+
+	/**
+	 * Maximum number of sorted runs read at the same time by the freeze.
+	 */
+	static final int FREEZE_FAN_IN = 64;
+
+	/**
+	 * Threads that project objects during freeze.
+	 */
+	private int freezeThreads = 1;
+
+	/**
+	 * Approximate size in bytes of each sorted run created during freeze.
+	 */
+	private long freezeRunMemory = 64L * 1024 * 1024;
+
+	/**
+	 * Threads that evaluate the sample of the k estimation.
+	 */
+	private int estimationThreads = 1;
+
+	/**
+	 * Delta log of the buckets modified after freeze. The delta i of the
+	 * bucket with address a is stored under a + i (i as a 4 byte int) and
+	 * holds {@link #DELTA_INSERT} or {@link #DELTA_DELETE} followed by a
+	 * container with the inserted or deleted object. The key a + {@link #HEAD}
+	 * holds the range [first, next) of deltas that have not been merged into
+	 * the bucket.
+	 * This store is also the lock of all the operations that read or write a
+	 * bucket and its deltas.
+	 */
+	protected transient OBStore<TupleBytes> bucketDeltas;
+
+	/**
+	 * Directories of the buckets that were stored in several parts by
+	 * {@link #storeBucket(byte[], BucketContainer)}, by bucket address.
+	 */
+	protected transient OBStore<TupleBytes> bucketSplits;
+
+	/**
+	 * Merges delta logs into their buckets in the background.
+	 */
+	private transient ExecutorService compactor;
+
+	/**
+	 * Buckets whose compaction was scheduled (guarded by
+	 * {@link #bucketDeltas}).
+	 */
+	private transient HashSet<ByteArrayKey> compacting;
+
+	/**
+	 * Number of deltas of a bucket that trigger its compaction.
+	 */
+	private int deltaCompaction = 32;
+
+	/**
+	 * Suffix of the key that holds the range of deltas of a bucket.
+	 */
+	private static final int HEAD = -1;
+
+	/**
+	 * Type of the deltas whose objects are inserted into the bucket.
+	 */
+	private static final byte DELTA_INSERT = 0;
+
+	/**
+	 * Type of the deltas whose objects are deleted from the bucket
+	 * (tombstones).
+	 */
+	private static final byte DELTA_DELETE = 1;
+
 	public AbstractBucketSorter(Class type,
 			IncrementalPivotSelector pivotSelector, int pivotCount,
 			int bucketPivotCount) throws OBStorageException, OBException {
@@ -189,6 +328,27 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 		it.closeCursor();
 	}
 
+	/**
+	 * Drop the in-memory sketch set. The next call to {@link #loadMasks()}
+	 * will rebuild it from {@link #projectionStorage}.
+	 */
+	protected void invalidateMasks() {
+		projections = null;
+	}
+
+	/**
+	 * Called after an object was stored in the bucket bucketId. By default
+	 * the sketch set is dropped and reloaded by the next search; subclasses
+	 * can update their sketch set in place.
+	 * 
+	 * @param bucketId
+	 *            address of the bucket.
+	 * @throws OBException
+	 */
+	protected void addMask(byte[] bucketId) throws OBException {
+		invalidateMasks();
+	}
+
 	/**
 	 * Calculates the distance between a query and some projection
 	 * 
@@ -221,6 +381,89 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 		return queue.getSortedData();
 	}
 
+	/**
+	 * Search the closest buckets of a batch of queries with one pass over the
+	 * sketch set. The sketch set is processed in blocks of
+	 * {@link #BATCH_BLOCK} items and each block is matched against all the
+	 * queries while it is still in the cache.
+	 * 
+	 * @param queries
+	 *            the queries to employ
+	 * @param maxF
+	 *            the max number of items that will be returned for each
+	 *            query
+	 * @return the closest buckets of each query.
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 * @throws OBException
+	 */
+	protected List<List<P>> searchBuckets(List<P> queries, int[] maxF)
+			throws InstantiationException, IllegalAccessException, OBException {
+		loadMasks();
+		List<FixedPriorityQueue<P>> queues = new ArrayList<FixedPriorityQueue<P>>(
+				queries.size());
+		for (int f : maxF) {
+			queues.add(new FixedPriorityQueue<P>(f));
+		}
+		int size = projections.size();
+		int from = 0;
+		while (from < size) {
+			List<CP> block = projections.subList(from, Math.min(from
+					+ BATCH_BLOCK, size));
+			int i = 0;
+			while (i < queries.size()) {
+				P query = queries.get(i);
+				FixedPriorityQueue<P> queue = queues.get(i);
+				for (CP p : block) {
+					updateDistance(query, p, queue);
+				}
+				i++;
+			}
+			from += BATCH_BLOCK;
+		}
+		List<List<P>> result = new ArrayList<List<P>>(queries.size());
+		for (FixedPriorityQueue<P> queue : queues) {
+			result.add(queue.getSortedData());
+		}
+		return result;
+	}
+
+	/**
+	 * Find the buckets a batch of queries has to read and group them by
+	 * bucket so that each bucket is loaded once for all the queries that
+	 * need it.
+	 * 
+	 * @param queries
+	 *            the queries to employ
+	 * @param maxF
+	 *            the max number of buckets each query will read
+	 * @return bucket address -> indexes (in queries) of the queries that must
+	 *         read the bucket. Addresses are sorted in storage order.
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 * @throws OBException
+	 */
+	protected SortedMap<byte[], IntArrayList> groupBuckets(List<P> queries,
+			int[] maxF) throws InstantiationException, IllegalAccessException,
+			OBException {
+		List<List<P>> buckets = searchBuckets(queries, maxF);
+		SortedMap<byte[], IntArrayList> result = new TreeMap<byte[], IntArrayList>(
+				new ByteArrayComparator());
+		int i = 0;
+		for (List<P> l : buckets) {
+			for (P p : l) {
+				IntArrayList q = result.get(p.getAddress());
+				if (q == null) {
+					q = new IntArrayList();
+					result.put(p.getAddress(), q);
+				}
+				q.add(i);
+			}
+			i++;
+		}
+		return result;
+	}
+
 	public void init(OBStoreFactory fact) throws OBStorageException,
 			OBException, InstantiationException, IllegalAccessException {
 		super.init(fact);
@@ -232,21 +475,43 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 		this.projectionStorage = fact.createOBStoreLong("projections", conf);
 	}
 
+	/**
+	 * Get a bucket from the cache. The returned container must not be
+	 * modified, it may be searched by other threads.
+	 * 
+	 * @param id
+	 *            address of the bucket.
+	 * @return the bucket container or null if the bucket does not exist.
+	 */
 	protected BC getBucketContainer(byte[] id) throws OBException,
 			InstantiationException, IllegalAccessException {
-		// BC bc = instantiateBucketContainer(null, id);
-		BC container = this.bucketCache.get(id);
-		return container;
-
+		synchronized (bucketCache) {
+			return bucketCache.get(id);
+		}
 	}
 
+	/**
+	 * Copy the given container. The copy is modified while other threads
+	 * may search the given container.
+	 * 
+	 * @param bc
+	 *            a cached container.
+	 * @return a copy of bc.
+	 */
+	protected abstract BC copyBucketContainer(BC bc);
+
 	protected void initByteArrayBuckets() throws OBException {
 		OBStorageConfig conf = new OBStorageConfig();
 		conf.setTemp(false);
 		conf.setDuplicates(false);
 		conf.setBulkMode(!isFrozen());
 		this.Buckets = fact.createOBStore("Buckets_byte_array", conf);
-
+		OBStorageConfig deltaConf = new OBStorageConfig();
+		deltaConf.setTemp(false);
+		deltaConf.setDuplicates(false);
+		this.bucketDeltas = fact.createOBStore("Buckets_delta", deltaConf);
+		this.bucketSplits = fact.createOBStore("Buckets_split", deltaConf);
+		this.compacting = new HashSet<ByteArrayKey>();
 	}
 
 	/**
@@ -295,21 +560,38 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 			return;
 		}
 		kEstimators = new StaticBin1D[getMaxK().length];
+		gapEstimators = new StaticBin1D[getMaxK().length];
+		stallEstimators = new StaticBin1D[getMaxK().length];
+		classGapEstimators = new StaticBin1D[getMaxK().length][BUDGET_CLASSES];
+		classStallEstimators = new StaticBin1D[getMaxK().length][BUDGET_CLASSES];
 		logger.fine("Max k estimation");
 		int i = 0;
 		while (i < kEstimators.length) {
 			kEstimators[i] = new StaticBin1D();
+			gapEstimators[i] = new StaticBin1D();
+			stallEstimators[i] = new StaticBin1D();
+			int c = 0;
+			while (c < BUDGET_CLASSES) {
+				classGapEstimators[i][c] = new StaticBin1D();
+				classStallEstimators[i][c] = new StaticBin1D();
+				c++;
+			}
 			i++;
 		}
 
 		long[] sample = AbstractDimension.select(sampleSize, r, null,
 				(Index) this, null);
 		O[] sampleSet = getObjects(sample);
-		i = 0;
-		for (O o : sampleSet) {
-			logger.info("Estimating k sample #: " + i + " of " + sampleSize);
-			maxKEstimationAux(o);
-			i++;
+		loadMasks();
+		if (estimationThreads > 1) {
+			parallelKEstimation(sampleSet);
+		} else {
+			i = 0;
+			for (O o : sampleSet) {
+				logger.info("Estimating k sample #: " + i + " of " + sampleSize);
+				maxKEstimationAux(o);
+				i++;
+			}
 		}
 
 		i = 0;
@@ -319,11 +601,111 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 				logger.info(printEstimation(i));
 			}
 			logger.info(s.toString());
+			if (gapEstimators[i].size() > 0) {
+				logger.info("Gap: " + gapEstimators[i].mean() + " stall: "
+						+ stallEstimators[i].mean());
+			}
 			i++;
 		}
 
 	}
 	
+	/**
+	 * Evaluate the sample objects of the k estimation with
+	 * {@link #estimationThreads} threads.
+	 */
+	private void parallelKEstimation(O[] sampleSet) throws OBException {
+		ExecutorService workers = Executors
+				.newFixedThreadPool(estimationThreads);
+		try {
+			List<Future<Object>> samples = new ArrayList<Future<Object>>(
+					sampleSet.length);
+			for (final O o : sampleSet) {
+				samples.add(workers.submit(new Callable<Object>() {
+					public Object call() throws Exception {
+						maxKEstimationAux(o);
+						return null;
+					}
+				}));
+			}
+			int i = 0;
+			for (Future<Object> f : samples) {
+				f.get();
+				logger.info("Estimated k sample #: " + i + " of "
+						+ sampleSet.length);
+				i++;
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof OBException) {
+				throw (OBException) e.getCause();
+			}
+			throw new OBException(e);
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Set the number of threads that evaluate the sample of the k
+	 * estimation. When more than one thread is used,
+	 * {@link #maxKEstimationAux(OB)} may run concurrently and must only
+	 * update shared state through {@link #addKSample(int, int)},
+	 * {@link #addBudgetSample(int, int, int, int)},
+	 * {@link #getEstimationBucket(byte[])} and
+	 * {@link #mergeEstimationStats(Statistics)}.
+	 * 
+	 * @param threads
+	 *            number of threads (1 by default).
+	 */
+	public void setEstimationThreads(int threads) throws OBException {
+		OBAsserts.chkAssert(threads > 0, "At least one thread is needed");
+		this.estimationThreads = threads;
+	}
+
+	/**
+	 * Record that a sample query of the kIndex-th k obtained the expected
+	 * error after reading the given number of buckets.
+	 */
+	protected void addKSample(int kIndex, int buckets) {
+		synchronized (kEstimators) {
+			kEstimators[kIndex].add(buckets);
+		}
+	}
+
+	/**
+	 * Get a bucket during the k estimation. The bucket cache is shared by all
+	 * the estimation threads, so the same container can be searched by
+	 * several threads at once. This is safe because containers load their
+	 * objects lazily through atomic references and cached containers are
+	 * never modified, inserts and deletes replace them with a modified copy.
+	 * 
+	 * @param address
+	 *            address of the bucket.
+	 * @return the bucket container.
+	 */
+	protected BC getEstimationBucket(byte[] address) throws OBException,
+			InstantiationException, IllegalAccessException, IllegalIdException {
+		synchronized (bucketCache) {
+			return bucketCache.get(address);
+		}
+	}
+
+	/**
+	 * Add the counters of a sample query to the statistics of the index.
+	 * 
+	 * @param sampleStats
+	 *            statistics used by one sample query.
+	 */
+	protected void mergeEstimationStats(Statistics sampleStats) {
+		synchronized (stats) {
+			stats.incBucketsRead(sampleStats.getBucketsRead());
+			stats.incDistanceCount(sampleStats.getDistanceCount());
+			stats.incSmapCount(sampleStats.getSmapCount());
+		}
+	}
+
 	protected String printEstimation(int i){
 		return null;
 	}
@@ -338,12 +720,7 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 				InstantiationException, IllegalAccessException,
 				IllegalIdException {
 
-			byte[] data = Buckets.getValue(i);
-			if (data == null) {
-				return null;
-			}
-
-			return instantiateBucketContainer(data, i);
+			return readBucket(i);
 		}
 
 		@Override
@@ -360,8 +737,10 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 	}
 
 	/**
-	 * Stores the given bucket b into the {@link #Buckets} storage device. The
-	 * given bucket b should have been returned by {@link #getBucket(OB, int)}
+	 * Appends the given bucket b to the delta log of its bucket (see
+	 * {@link #bucketDeltas}), the cost does not depend on the size of the
+	 * bucket. The given bucket b should have been returned by
+	 * {@link #getBucket(OB, int)}
 	 * 
 	 * @param b
 	 *            The bucket in which we will insert the object.
@@ -376,30 +755,27 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 			IllegalAccessException, InstantiationException,
 			OutOfRangeException, OBException {
 
-		byte[] bucketId = getAddress(b);
-
-		BC bc = instantiateBucketContainer(null, bucketId);
-		OperationStatus s = bc.insert(b, object);
-		// store the data in the index.
-
-		// we have to re-do everything.
-		byte[] bucketData = Buckets.getValue(bucketId);
-		bc = instantiateBucketContainer(bucketData, bucketId);
-		s = bc.insert(b, object);
+		byte[] address = getAddress(b);
+		byte[] bucketId = getBucketAddress(address, object);
+		// the index checks that the object does not exist before calling
+		// this method, the object is appended to the delta log of the
+		// bucket.
+		BC delta = instantiateBucketContainer(null, bucketId);
+		OperationStatus s = delta.insert(b, object);
 		if (s.getStatus() == Status.OK) {
-			projections = null; // make the sketch set void
-			projectionStorage.put(b.getId(), bucketId);
+			prepareBucketInsert(address, object);
+			appendDelta(bucketId, DELTA_INSERT, delta, b, object);
+			projectionStorage.put(b.getId(), address);
+			addMask(address);
 		}
-		Buckets.put(bucketId, bc.serialize());
-
-		this.bucketCache.put(bucketId, bc);
-		stats.addExtraStats("B_SIZE", bc.size());
 		return s;
 	}
 
 	/**
-	 * Stores the given bucket b into the {@link #Buckets} storage device. The
-	 * given bucket b should have been returned by {@link #getBucket(OB, int)}
+	 * Appends the given bucket b to the delta log of its bucket (see
+	 * {@link #bucketDeltas}), the cost does not depend on the size of the
+	 * bucket. The given bucket b should have been returned by
+	 * {@link #getBucket(OB, int)}
 	 * No checks are performed, we simply add the objects believing they are
 	 * unique.
 	 * 
@@ -417,138 +793,599 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 			IllegalAccessException, InstantiationException,
 			OutOfRangeException, OBException {
 
-		projections = null; // make the sketch set void
-
-		byte[] bucketId = getAddress(b);
-		BC bc = instantiateBucketContainer(null, bucketId);
-		OperationStatus s = bc.insertBulk(b, object);
-
-		// we have to re-do everything.
-		byte[] bucketData = Buckets.getValue(bucketId);
-		bc = instantiateBucketContainer(bucketData, bucketId);
-		s = bc.insertBulk(b, object);
-		// long prevSize = Buckets.size();
-		byte[] data = bc.serialize();
-		Buckets.put(bucketId, data);
-
-		// assert Arrays.equals(Buckets.getValue(bucketId), data) :
-		// " Bucket storage is not working";
-		/*
-		 * if(bucketData == null){ assert Buckets.size() == (prevSize + 1); }
-		 */
-		projectionStorage.put(b.getId(), bucketId);
-		this.bucketCache.put(bucketId, bc);
-		stats.addExtraStats("B_SIZE", bc.size());
+		byte[] address = getAddress(b);
+		byte[] bucketId = getBucketAddress(address, object);
+		BC delta = instantiateBucketContainer(null, bucketId);
+		OperationStatus s = delta.insertBulk(b, object);
+		prepareBucketInsert(address, object);
+		appendDelta(bucketId, DELTA_INSERT, delta, b, object);
+		projectionStorage.put(b.getId(), address);
+		addMask(address);
 		return s;
 	}
 
-	protected void freezeDefault() throws AlreadyFrozenException,
-			IllegalIdException, IllegalAccessException, InstantiationException,
-			OutOfRangeException, OBException {
-		//Buckets.deleteAll();
-		projections = null;
-		long i = 0;
-		long max = databaseSize();
-		logger.info("Creating masks...");
-		
-		OBAsserts.chkAssert(max <= Integer.MAX_VALUE, "No more than Integer.MAX_VALUE objects during freeze");
-		List<MaskHolder> masks = new ArrayList<MaskHolder>((int)max);
-
-			while (i < max) {
-				O o  = getObject(i);
-				B b = getBucket(o);
-				b.setId(i);
-				byte[] bucketId = getAddress(b);
-				projectionStorage.put(i, bucketId);
-				masks.add(new MaskHolder(bucketId, i, b));		
-				b.setObject(null);
+	/**
+	 * Appends a tombstone of the given object to the delta log of its bucket,
+	 * so the deletion survives when the bucket is evicted from the cache or
+	 * the index is reopened.
+	 */
+	@Override
+	public OperationStatus deleteAux(O object) throws OBException,
+			IllegalAccessException, InstantiationException {
+		B b = getBucket(object);
+		OperationStatus res = new OperationStatus();
+		res.setStatus(Status.NOT_EXISTS);
+		for (byte[] bucketId : getBucketAddresses(getAddress(b), object)) {
+			BC bc = getBucketContainer(bucketId);
+			if (bc == null) {
+				continue;
+			}
+			OperationStatus found = bc.exists(b, object);
+			if (found.getStatus() == Status.EXISTS) {
+				b.setId(found.getId());
+				BC delta = instantiateBucketContainer(null, bucketId);
+				delta.insertBulk(b, object);
+				appendDelta(bucketId, DELTA_DELETE, delta, b, object);
+				res.setStatus(Status.OK);
+				res.setId(found.getId());
+				break;
+			}
+		}
+		return res;
+	}
 
-				i++;
+	/**
+	 * Called before the given object is appended to its bucket, after
+	 * {@link #getBucketAddress(byte[], OB)} routed it. Indexes that keep
+	 * metadata about the objects of a bucket update it here; routing itself
+	 * must not modify the index.
+	 * 
+	 * @param address
+	 *            address of the bucket (see {@link #getAddress(BucketObject)}).
+	 * @param object
+	 *            the object that will be inserted.
+	 */
+	protected void prepareBucketInsert(byte[] address, O object)
+			throws OBException {
+	}
+
+	/**
+	 * Read the bucket of the given address and apply its delta log.
+	 * 
+	 * @param address
+	 *            address of the bucket.
+	 * @return the bucket or null if the bucket does not exist.
+	 */
+	protected BC readBucket(byte[] address) throws OBException,
+			InstantiationException, IllegalAccessException {
+		byte[] data;
+		List<byte[]> deltas = new ArrayList<byte[]>();
+		synchronized (bucketDeltas) {
+			data = Buckets.getValue(address);
+			readDeltas(address, deltas);
+		}
+		if (data == null && deltas.isEmpty()) {
+			return null;
+		}
+		return mergeDeltas(address, decodeBucket(data), deltas);
+	}
+
+	/**
+	 * Append the given container to the delta log of a bucket. The
+	 * compaction of the bucket is scheduled when its log has
+	 * {@link #setDeltaCompaction(int)} deltas. If the bucket is cached, the
+	 * delta is applied to a copy of the cached container (see
+	 * {@link #copyBucketContainer(BucketContainer)}) that replaces it, the
+	 * cached container may be searched by other threads. The delta is
+	 * written and the cache updated while holding the locks of
+	 * {@link #bucketCache} and {@link #bucketDeltas}, so a bucket loaded by
+	 * another thread does not get the delta twice.
+	 * 
+	 * @param type
+	 *            {@link #DELTA_INSERT} or {@link #DELTA_DELETE}.
+	 * @param b
+	 *            bucket of the object held by the delta.
+	 * @param object
+	 *            the object held by the delta.
+	 */
+	private void appendDelta(byte[] address, byte type, BC delta, B b,
+			O object) throws OBException, IllegalIdException,
+			IllegalAccessException, InstantiationException {
+		byte[] container = delta.serialize();
+		byte[] data = ByteBuffer.allocate(container.length + 1).put(type).put(
+				container).array();
+		boolean compact;
+		synchronized (bucketCache) {
+			synchronized (bucketDeltas) {
+				int[] head = readDeltaHead(address);
+				bucketDeltas.put(deltaKey(address, head[1]), data);
+				writeDeltaHead(address, head[0], head[1] + 1);
+				compact = head[1] + 1 - head[0] >= deltaCompaction
+						&& compacting.add(new ByteArrayKey(address));
+				// a cached bucket is not read again, the compaction does not
+				// change its contents.
+				BC cached = bucketCache.getIfCached(address);
+				if (cached != null) {
+					BC copy = copyBucketContainer(cached);
+					applyDelta(copy, type, b, object);
+					bucketCache.put(address, copy);
+				}
 			}
-			logger.info("Sorting " + masks.size() + " masks...");
-			Collections.sort(masks);
-			logger.info("Sorted masks!");
-			// now we sort the bucket ids in memory so that we can
-			// do a bulk insert of the tree.
-			MaskHolder previous = null;
-			BC bc = null;
-			logger.info("Bulk insert");
-			i = 0;
-			int inserted = 0;
-			for(MaskHolder m : masks){
-				if(previous == null || ! previous.equals(m)){
-					if(previous != null){
-						// this means that ! previous.equals(m)
-						assert bc.size() > 0;
-						byte[] data = bc.serialize();
-						Buckets.put(previous.bucketId, data);
-						inserted++;
-						if(inserted % 100000 == 0){
-							logger.info("Inserted: " + inserted + " buckets, " + i + " objects");
-						}
+		}
+		if (compact) {
+			scheduleCompaction(address);
+		}
+	}
+
+	private static byte[] deltaKey(byte[] address, int delta) {
+		return ByteBuffer.allocate(address.length + 4).put(address)
+				.putInt(delta).array();
+	}
+
+	/**
+	 * @return the range [first, next) of deltas of the given bucket.
+	 */
+	private int[] readDeltaHead(byte[] address) throws OBException {
+		byte[] head = bucketDeltas.getValue(deltaKey(address, HEAD));
+		if (head == null) {
+			return new int[] { 0, 0 };
+		}
+		ByteBuffer b = ByteBuffer.wrap(head);
+		return new int[] { b.getInt(), b.getInt() };
+	}
+
+	private void writeDeltaHead(byte[] address, int first, int next)
+			throws OBException {
+		if (first == next) {
+			try {
+				bucketDeltas.delete(deltaKey(address, HEAD));
+			} catch (IOException e) {
+				throw new OBException(e);
+			}
+		} else {
+			bucketDeltas.put(deltaKey(address, HEAD), ByteBuffer.allocate(8)
+					.putInt(first).putInt(next).array());
+		}
+	}
+
+	/**
+	 * Add the deltas of the given bucket to deltas. Must be called while
+	 * holding the lock of {@link #bucketDeltas}.
+	 * 
+	 * @return the range [first, next) of the deltas read.
+	 */
+	private int[] readDeltas(byte[] address, List<byte[]> deltas)
+			throws OBException {
+		int[] head = readDeltaHead(address);
+		int i = head[0];
+		while (i < head[1]) {
+			byte[] delta = bucketDeltas.getValue(deltaKey(address, i));
+			OBAsserts.chkAssert(delta != null, "Missing bucket delta " + i);
+			deltas.add(delta);
+			i++;
+		}
+		return head;
+	}
+
+	/**
+	 * Apply the given deltas, in order, to the given bucket data.
+	 * Containers that keep the inserted objects apart from their data (like
+	 * the sleek buckets) stay views and do not load the data.
+	 */
+	private BC mergeDeltas(byte[] address, byte[] data, List<byte[]> deltas)
+			throws OBException, InstantiationException, IllegalAccessException {
+		BC bc = instantiateBucketContainer(data, address);
+		for (byte[] d : deltas) {
+			BC delta = instantiateBucketContainer(Arrays.copyOfRange(d, 1,
+					d.length), address);
+			for (B b : delta.getObjects()) {
+				applyDelta(bc, d[0], b, b.getObject());
+			}
+		}
+		return bc;
+	}
+
+	/**
+	 * Insert or delete the given object.
+	 * 
+	 * @param type
+	 *            {@link #DELTA_INSERT} or {@link #DELTA_DELETE}.
+	 */
+	private void applyDelta(BC bc, byte type, B b, O object)
+			throws OBException, IllegalIdException, IllegalAccessException,
+			InstantiationException {
+		if (type == DELTA_DELETE) {
+			bc.delete(b, object);
+		} else {
+			bc.insertBulk(b, object);
+		}
+	}
+
+	private void scheduleCompaction(final byte[] address) {
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bucket-compactor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		compactor.submit(new Runnable() {
+			public void run() {
+				try {
+					compactBucket(address);
+				} catch (Exception e) {
+					logger.severe("Could not compact bucket: " + e);
+				} finally {
+					synchronized (bucketDeltas) {
+						compacting.remove(new ByteArrayKey(address));
 					}
-					bc = instantiateBucketContainer(null, m.bucketId);
 				}
-				O o = getObject(m.id);
-				// horrible hack
-				m.bucket.setObject(o);
-				bc.insertBulk(m.bucket, o);
-				previous = m;
-				i++;
 			}
-			Buckets.put(previous.bucketId, bc.serialize());
-			inserted++;
-			assert inserted == Buckets.size();
-			logger.info("Buckets size: " + Buckets.size());
+		});
+	}
 
+	/**
+	 * Merge the delta log of the given bucket into the bucket. Deltas
+	 * appended while the bucket is merged stay in the log.
+	 * 
+	 * @param address
+	 *            address of the bucket.
+	 */
+	protected void compactBucket(byte[] address) throws OBException,
+			InstantiationException, IllegalAccessException {
+		byte[] data;
+		List<byte[]> deltas = new ArrayList<byte[]>();
+		int[] head;
+		synchronized (bucketDeltas) {
+			data = Buckets.getValue(address);
+			head = readDeltas(address, deltas);
+		}
+		if (deltas.isEmpty()) {
+			return;
+		}
+		byte[] merged = encodeBucket(mergeDeltas(address, decodeBucket(data),
+				deltas).serialize());
+		synchronized (bucketDeltas) {
+			Buckets.put(address, merged);
+			writeDeltaHead(address, head[1], readDeltaHead(address)[1]);
+			int i = head[0];
+			try {
+				while (i < head[1]) {
+					bucketDeltas.delete(deltaKey(address, i));
+					i++;
+				}
+			} catch (IOException e) {
+				throw new OBException(e);
+			}
+		}
+	}
 
+	/**
+	 * Merge the delta logs of all the buckets into their buckets. Waits for
+	 * the compactions running in the background.
+	 */
+	public void compactBuckets() throws OBException, InstantiationException,
+			IllegalAccessException {
+		stopCompactor();
+		List<byte[]> addresses = new ArrayList<byte[]>();
+		synchronized (bucketDeltas) {
+			CloseIterator<TupleBytes> it = bucketDeltas.processAll();
+			while (it.hasNext()) {
+				byte[] key = it.next().getKey();
+				int suffix = key.length - 4;
+				if (ByteBuffer.wrap(key, suffix, 4).getInt() == HEAD) {
+					addresses.add(Arrays.copyOf(key, suffix));
+				}
+			}
+			it.closeCursor();
+		}
+		for (byte[] address : addresses) {
+			compactBucket(address);
+		}
+	}
 
+	/**
+	 * Wait for the compactions scheduled in the background.
+	 */
+	private void stopCompactor() throws OBException {
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new OBException(e);
+			}
+			compactor = null;
+		}
+	}
 
+	/**
+	 * Set the number of deltas of a bucket that trigger its compaction.
+	 * 
+	 * @param deltas
+	 *            number of deltas (32 by default).
+	 */
+	public void setDeltaCompaction(int deltas) throws OBException {
+		OBAsserts.chkAssert(deltas > 0, "At least one delta is needed");
+		this.deltaCompaction = deltas;
 	}
 
-	private class MaskHolder implements Comparable<MaskHolder> {
-		
-		private byte[] bucketId;
-		private long id;
-		private B bucket;
+	@Override
+	public Iterator<BC> iterateBuckets() throws OBStorageException,
+			OBException {
+		try {
+			compactBuckets();
+		} catch (InstantiationException e) {
+			throw new OBException(e);
+		} catch (IllegalAccessException e) {
+			throw new OBException(e);
+		}
+		return super.iterateBuckets();
+	}
 
-		public MaskHolder(byte[] bucketId, long id, B bucket) {
-			this.bucketId = bucketId;
-			this.id = id;
-			this.bucket = bucket;
+	/**
+	 * Build all the buckets of the index from the objects of A. The freeze is
+	 * a pipeline that does not need the database to fit in memory:
+	 * <ol>
+	 * <li>A is read sequentially and the objects are projected in batches by
+	 * {@link #setFreezeThreads(int)} workers.</li>
+	 * <li>The projected records (address, id, object data) are collected into
+	 * runs of at most {@link #setFreezeRunMemory(long)} bytes. Each run is
+	 * sorted by address and spilled to a temporary file in the factory
+	 * directory; the last run stays in memory.</li>
+	 * <li>The runs are merged and every group of records with the same
+	 * address is bulk inserted into one bucket. If there are more than
+	 * {@link #FREEZE_FAN_IN} runs they are first merged in several passes so
+	 * that only that many files are open at the same time.</li>
+	 * </ol>
+	 * The projection of objects is only thread safe if
+	 * {@link #getBucket(OB)} and {@link #getAddress(BucketObject)} are. The
+	 * implementations of this package only update statistics, and they do so
+	 * with atomic counters.
+	 */
+	protected void freezeDefault() throws AlreadyFrozenException,
+			IllegalIdException, IllegalAccessException, InstantiationException,
+			OutOfRangeException, OBException {
+		invalidateMasks();
+		logger.info("Creating masks...");
+		List<SortedRun> runs = projectRuns();
+		logger.info("Merging " + runs.size() + " runs...");
+		try {
+			SortedRun.reduce(runs, FREEZE_FAN_IN, freezeDirectory());
+			mergeRuns(SortedRun.merge(runs));
+		} catch (IOException e) {
+			throw new OBException(e);
+		} finally {
+			closeRuns(runs);
 		}
-		
-		public boolean equals(Object o){
-			MaskHolder m = (MaskHolder)o;
-			return Arrays.equals(bucketId, m.bucketId);
+		logger.info("Buckets size: " + Buckets.size());
+	}
+
+	/**
+	 * Close the given runs and delete their files.
+	 */
+	private void closeRuns(List<SortedRun> runs) {
+		for (SortedRun run : runs) {
+			try {
+				run.close();
+			} catch (IOException e) {
+				logger.warning("Could not delete run: " + e);
+			}
 		}
+	}
 
-		@Override
-		public int compareTo(MaskHolder o) {
-			if(bucketId.length < o.bucketId.length){
-				return -1;
-			}else if(bucketId.length > o.bucketId.length){
-				return 1;
-			}else{
-				int i = 0;
-				while(i < bucketId.length){
-					if(bucketId[i] < o.bucketId[i]){
-						return -1;
-					}else if(bucketId[i] > o.bucketId[i]){
-						return 1;
+	/**
+	 * Set the number of threads that project objects during freeze.
+	 * 
+	 * @param threads
+	 *            number of threads (1 by default).
+	 */
+	public void setFreezeThreads(int threads) throws OBException {
+		OBAsserts.chkAssert(threads > 0, "At least one thread is needed");
+		this.freezeThreads = threads;
+	}
+
+	/**
+	 * Set the amount of memory used by each sorted run during freeze. Larger
+	 * runs mean fewer temporary files.
+	 * 
+	 * @param bytes
+	 *            approximate size of a run in bytes.
+	 */
+	public void setFreezeRunMemory(long bytes) throws OBException {
+		OBAsserts.chkAssert(bytes > 0, "The run memory must be positive");
+		this.freezeRunMemory = bytes;
+	}
+
+	/**
+	 * @return the directory of the temporary files of the freeze, null for
+	 *         the default temporary directory.
+	 */
+	private File freezeDirectory() {
+		return fact.getFactoryLocation() == null ? null : new File(fact
+				.getFactoryLocation());
+	}
+
+	/**
+	 * Read A, project every object and create the sorted runs.
+	 * 
+	 * @return the runs, positioned before their first record.
+	 */
+	private List<SortedRun> projectRuns() throws OBException {
+		File directory = freezeDirectory();
+		List<SortedRun> runs = new ArrayList<SortedRun>();
+		LinkedList<Future<List<SortedRun.Record>>> pending = new LinkedList<Future<List<SortedRun.Record>>>();
+		List<SortedRun.Record> run = new ArrayList<SortedRun.Record>();
+		long[] runBytes = new long[1];
+		long objects = 0;
+		long time = System.currentTimeMillis();
+		ExecutorService workers = Executors.newFixedThreadPool(freezeThreads);
+		boolean projected = false;
+		try {
+			CloseIterator<TupleLong> it = A.processAll();
+			try {
+				List<TupleLong> batch = new ArrayList<TupleLong>(FREEZE_BATCH);
+				while (it.hasNext()) {
+					batch.add(it.next());
+					if (batch.size() == FREEZE_BATCH || !it.hasNext()) {
+						pending.add(workers.submit(projectBatch(batch)));
+						batch = new ArrayList<TupleLong>(FREEZE_BATCH);
+					}
+					// keep a bounded number of batches in flight.
+					while (pending.size() > freezeThreads * 2
+							|| (!it.hasNext() && !pending.isEmpty())) {
+						List<SortedRun.Record> records = pending.removeFirst()
+								.get();
+						objects += records.size();
+						run = addToRun(records, run, runBytes, runs, directory);
+						if (objects % 100000 < records.size()) {
+							logger.info("Projected: " + objects + " objects, "
+									+ objectsPerSecond(objects, time)
+									+ " objects/s, " + runs.size() + " runs");
+						}
 					}
-					i++;
 				}
-				// finished the loop.h
-				return 0;
+			} finally {
+				it.closeCursor();
+			}
+			if (!run.isEmpty()) {
+				runs.add(SortedRun.memory(run));
+			}
+			projected = true;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof OBException) {
+				throw (OBException) e.getCause();
+			}
+			throw new OBException(e);
+		} catch (InterruptedException e) {
+			throw new OBException(e);
+		} catch (IOException e) {
+			throw new OBException(e);
+		} finally {
+			workers.shutdownNow();
+			if (!projected) {
+				closeRuns(runs);
 			}
 		}
-		
-		
+		logger.info("Projected " + objects + " objects, "
+				+ objectsPerSecond(objects, time) + " objects/s");
+		return runs;
+	}
+
+	/**
+	 * Add the given records to the current run and spill the run if it is
+	 * full.
+	 * 
+	 * @return the run that receives the next records.
+	 */
+	private List<SortedRun.Record> addToRun(List<SortedRun.Record> records,
+			List<SortedRun.Record> run, long[] runBytes, List<SortedRun> runs,
+			File directory) throws IOException {
+		for (SortedRun.Record r : records) {
+			run.add(r);
+			runBytes[0] += r.size();
+		}
+		if (runBytes[0] >= freezeRunMemory) {
+			runs.add(SortedRun.spill(run, directory));
+			runBytes[0] = 0;
+			run = new ArrayList<SortedRun.Record>();
+		}
+		return run;
+	}
+
+	/**
+	 * Project a batch of objects of A. The objects are only needed to compute
+	 * their address so one object is loaded in place for the whole batch.
+	 */
+	private Callable<List<SortedRun.Record>> projectBatch(
+			final List<TupleLong> batch) {
+		return new Callable<List<SortedRun.Record>>() {
+			public List<SortedRun.Record> call() throws Exception {
+				List<SortedRun.Record> res = new ArrayList<SortedRun.Record>(
+						batch.size());
+				O o = type.newInstance();
+				for (TupleLong t : batch) {
+					load(o, ByteConversion.createByteBuffer(t.getValue()));
+					B b = getBucket(o);
+					b.setId(t.getKey());
+					res.add(new SortedRun.Record(getAddress(b), t.getKey(), t
+							.getValue()));
+				}
+				return res;
+			}
+		};
+	}
+
+	/**
+	 * Merge the sorted runs and bulk insert each bucket.
+	 */
+	private void mergeRuns(SortedRun run) throws IOException,
+			IllegalIdException, IllegalAccessException, InstantiationException,
+			OutOfRangeException, OBException {
+		byte[] previous = null;
+		BC bc = null;
+		long i = 0;
+		int inserted = 0;
+		long stored = 0;
+		long time = System.currentTimeMillis();
+		while (run.advance()) {
+			SortedRun.Record m = run.current();
+			if (previous == null || !Arrays.equals(previous, m.address)) {
+				if (previous != null) {
+					assert bc.size() > 0;
+					stored += storeBucket(previous, bc);
+					inserted++;
+					if (inserted % 100000 == 0) {
+						logger.info("Inserted: " + inserted + " buckets, " + i
+								+ " objects, " + objectsPerSecond(i, time)
+								+ " objects/s");
+					}
+				}
+				bc = instantiateBucketContainer(null, m.address);
+				previous = m.address;
+			}
+			O o = bytesToObject(ByteConversion.createByteBuffer(m.object));
+			B b = getBucket(o);
+			b.setId(m.id);
+			projectionStorage.put(m.id, m.address);
+			bc.insertBulk(b, o);
+			i++;
+		}
+		if (previous != null) {
+			stored += storeBucket(previous, bc);
+			inserted++;
+		}
+		assert stored == Buckets.size();
+	}
+
+	/**
+	 * Store a bucket created by the freeze. Indexes that split large buckets
+	 * in parts (see {@link #getBucketAddress(byte[], OB)}) store the parts
+	 * and their directory in {@link #bucketSplits} here.
+	 * 
+	 * @param address
+	 *            address of the bucket.
+	 * @param bc
+	 *            the bucket.
+	 * @return the number of buckets written to {@link #Buckets}.
+	 */
+	protected int storeBucket(byte[] address, BC bc) throws OBException,
+			InstantiationException, IllegalAccessException {
+		Buckets.put(address, encodeBucket(bc.serialize()));
+		return 1;
+	}
+
+	private static long objectsPerSecond(long objects, long start) {
+		return objects * 1000 / Math.max(System.currentTimeMillis() - start, 1);
 	}
 
 	@Override
 	public void close() throws OBException {
+		stopCompactor();
+		bucketDeltas.close();
+		bucketSplits.close();
 		bucketCache.clearAll();
 		projectionStorage.close();
 		super.close();
@@ -618,6 +1455,28 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 	 * @throws OBException
 	 */
 	public int estimateK(int queryK) throws OBException {
+		int i = kIndex(queryK);
+		if(kEstimators[i].size() == 0){
+			return 1; //hack to avoid NaNs in very small DBs
+		}
+		long x = Math.round(this.kEstimators[i].mean()
+				+ (this.kEstimators[i].standardDeviation() * kAlpha));
+		assert x <= Integer.MAX_VALUE;
+		
+		return (int) x;
+		// return 10;
+	}
+
+	/**
+	 * Position of queryK in the k values of the index.
+	 * 
+	 * @param queryK
+	 *            k of the k-nn query.
+	 * @return the index of queryK in {@link #userK}
+	 * @throws OBException
+	 *             if queryK is not one of the k values of the index.
+	 */
+	protected int kIndex(int queryK) throws OBException {
 		int i = 0;
 		for (int kval : this.userK) {
 			if (kval == queryK) {
@@ -628,15 +1487,93 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 		if (i == this.userK.length) {
 			throw new OBException("Wrong k value");
 		}
-		if(kEstimators[i].size() == 0){
-			return 1; //hack to avoid NaNs in very small DBs
+		return i;
+	}
+
+	/**
+	 * Let each query decide how many buckets it reads. estimateK(k) buckets
+	 * are still ranked, but a query stops early when the next bucket is
+	 * farther (in hamming gap from the first bucket) or the result has not
+	 * improved for longer than what the sample queries of
+	 * {@link #maxKEstimation()} needed (mean + kAlpha * standard deviation).
+	 * The bounds are learned for each class of queries, see
+	 * {@link #stopReading(int, int, int, int)}.
+	 * 
+	 * @param adaptive
+	 *            true to enable the adaptive budget.
+	 */
+	public void setAdaptiveBudget(boolean adaptive) {
+		this.adaptiveBudget = adaptive;
+	}
+
+	/**
+	 * @param kIndex
+	 *            index of the k of the query, see {@link #kIndex(int)}.
+	 * @return true if the adaptive budget is enabled and there is enough
+	 *         information for the given k.
+	 */
+	protected boolean isAdaptiveBudget(int kIndex) {
+		return adaptiveBudget && gapEstimators != null
+				&& gapEstimators[kIndex].size() > 0;
+	}
+
+	/**
+	 * Decide if a query whose result is full should stop reading buckets.
+	 * The bounds of the class of the query are used once the class has
+	 * enough samples, the bounds of all the queries of the k otherwise.
+	 * 
+	 * @param kIndex
+	 *            index of the k of the query, see {@link #kIndex(int)}.
+	 * @param queryClass
+	 *            class of the query, from 0 to {@link #BUDGET_CLASSES} - 1.
+	 * @param gap
+	 *            distance of the next bucket minus the distance of the first
+	 *            bucket.
+	 * @param stall
+	 *            number of buckets read since the result last improved.
+	 * @return true if the query should stop.
+	 */
+	protected boolean stopReading(int kIndex, int queryClass, int gap,
+			int stall) {
+		StaticBin1D gaps = gapEstimators[kIndex];
+		StaticBin1D stalls = stallEstimators[kIndex];
+		// indexes frozen without classes only have the bounds of each k.
+		if (classGapEstimators != null
+				&& classGapEstimators[kIndex][queryClass].size() >= MIN_CLASS_SAMPLES) {
+			gaps = classGapEstimators[kIndex][queryClass];
+			stalls = classStallEstimators[kIndex][queryClass];
 		}
-		long x = Math.round(this.kEstimators[i].mean()
-				+ (this.kEstimators[i].standardDeviation() * kAlpha));
-		assert x <= Integer.MAX_VALUE;
-		
-		return (int) x;
-		// return 10;
+		return gap > bound(gaps) || stall > bound(stalls);
+	}
+
+	/**
+	 * Record the features of a sample query that obtained the expected
+	 * error.
+	 * 
+	 * @param kIndex
+	 *            index of the k of the query
+	 * @param queryClass
+	 *            class of the query, from 0 to {@link #BUDGET_CLASSES} - 1.
+	 *            Indexes group the queries whose budgets are expected to be
+	 *            alike, for example by the cardinality of their sketch.
+	 * @param gap
+	 *            distance of the last bucket read minus the distance of the
+	 *            first bucket.
+	 * @param stall
+	 *            longest run of buckets that did not improve the result.
+	 */
+	protected void addBudgetSample(int kIndex, int queryClass, int gap,
+			int stall) {
+		synchronized (gapEstimators) {
+			gapEstimators[kIndex].add(gap);
+			stallEstimators[kIndex].add(stall);
+			classGapEstimators[kIndex][queryClass].add(gap);
+			classStallEstimators[kIndex][queryClass].add(stall);
+		}
+	}
+
+	private double bound(StaticBin1D s) {
+		return s.mean() + (s.standardDeviation() * kAlpha);
 	}
 
 	public int[] getMaxK() {
@@ -655,13 +1592,15 @@ public abstract class AbstractBucketSorter<O extends OB, B extends BucketObject<
 			IllegalAccessException, InstantiationException, OBException {
 
 		logger.fine("Bucket stats starts!");
+		compactBuckets();
 		CloseIterator<TupleBytes> it = Buckets.processAll();
 		// assert Buckets.size() == A.size();
 		StaticBin1D s = new StaticBin1D();
 
 		while (it.hasNext()) {
 			TupleBytes t = it.next();
-			BC bc = instantiateBucketContainer(t.getValue(), t.getKey());
+			BC bc = instantiateBucketContainer(decodeBucket(t.getValue()),
+					t.getKey());
 			s.add(bc.size());
 		}
 		getStats().putStats("BUCKET_STATS", s);
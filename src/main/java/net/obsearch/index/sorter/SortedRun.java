@@ -0,0 +1,304 @@
+package net.obsearch.index.sorter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.obsearch.index.utils.ByteArrayComparator;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * SortedRun is a run of freeze records (bucket address, object id, object
+ * data) sorted by bucket address and id. Runs are produced by the freeze
+ * pipeline of {@link AbstractBucketSorter}; runs that do not fit in memory are
+ * spilled to a temporary file and read back sequentially during the merge.
+ * The file of a spilled run is only opened when the run is first advanced,
+ * and {@link #reduce(List, int, File)} merges runs in several passes so that
+ * no more than a given number of files are read at the same time. The file
+ * is deleted when the run is closed, the freeze closes all its runs when the
+ * merge finishes or fails.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+abstract class SortedRun {
+
+	/**
+	 * An object of the database and the address of its bucket.
+	 */
+	static final class Record {
+		final byte[] address;
+		final long id;
+		final byte[] object;
+
+		Record(byte[] address, long id, byte[] object) {
+			this.address = address;
+			this.id = id;
+			this.object = object;
+		}
+
+		/**
+		 * @return approximate number of bytes used by the record.
+		 */
+		long size() {
+			return address.length + object.length + 48;
+		}
+	}
+
+	private static final ByteArrayComparator addressOrder = new ByteArrayComparator();
+
+	/**
+	 * Order of the records: by address, then by id.
+	 */
+	static final Comparator<Record> RECORD_ORDER = new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+			int res = addressOrder.compare(a.address, b.address);
+			if (res == 0) {
+				res = a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+			}
+			return res;
+		}
+	};
+
+	/**
+	 * Order of the runs: by their current record.
+	 */
+	private static final Comparator<SortedRun> RUN_ORDER = new Comparator<SortedRun>() {
+		public int compare(SortedRun a, SortedRun b) {
+			return RECORD_ORDER.compare(a.current(), b.current());
+		}
+	};
+
+	private Record current;
+
+	/**
+	 * @return the record the run is positioned on.
+	 */
+	Record current() {
+		return current;
+	}
+
+	/**
+	 * Move to the next record of the run.
+	 *
+	 * @return false if the run has no more records.
+	 * @throws IOException
+	 */
+	boolean advance() throws IOException {
+		current = read();
+		return current != null;
+	}
+
+	/**
+	 * @return the next record or null if the run is exhausted.
+	 */
+	protected abstract Record read() throws IOException;
+
+	/**
+	 * Release the resources of the run.
+	 */
+	abstract void close() throws IOException;
+
+	/**
+	 * Sort the given records and keep them in memory.
+	 *
+	 * @param records
+	 *            the records of the run.
+	 * @return a run over the sorted records.
+	 */
+	static SortedRun memory(List<Record> records) {
+		Collections.sort(records, RECORD_ORDER);
+		final Iterator<Record> it = records.iterator();
+		return new SortedRun() {
+			protected Record read() {
+				return it.hasNext() ? it.next() : null;
+			}
+
+			void close() {
+			}
+		};
+	}
+
+	/**
+	 * Sort the given records and write them to a temporary file in the given
+	 * directory.
+	 *
+	 * @param records
+	 *            the records of the run.
+	 * @param directory
+	 *            where the run will be written (null for the default
+	 *            temporary directory).
+	 * @return a run that reads the records back from the file.
+	 * @throws IOException
+	 */
+	static SortedRun spill(List<Record> records, File directory)
+			throws IOException {
+		return write(memory(records), directory);
+	}
+
+	/**
+	 * Write the remaining records of the given run to a temporary file.
+	 *
+	 * @return a run that reads the records back from the file.
+	 */
+	private static SortedRun write(SortedRun run, File directory)
+			throws IOException {
+		File file = File.createTempFile("freeze", ".run", directory);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		boolean written = false;
+		try {
+			while (run.advance()) {
+				Record r = run.current();
+				out.writeInt(r.address.length);
+				out.write(r.address);
+				out.writeLong(r.id);
+				out.writeInt(r.object.length);
+				out.write(r.object);
+			}
+			written = true;
+		} finally {
+			out.close();
+			if (!written) {
+				file.delete();
+			}
+		}
+		return new FileRun(file);
+	}
+
+	/**
+	 * Merge the given runs into one sorted run.
+	 *
+	 * @param runs
+	 *            the runs to merge, positioned before their first record.
+	 * @return a run that returns the records of all the runs in
+	 *         {@link #RECORD_ORDER}. Closing it does not close the runs.
+	 * @throws IOException
+	 */
+	static SortedRun merge(List<SortedRun> runs) throws IOException {
+		final PriorityQueue<SortedRun> heap = new PriorityQueue<SortedRun>(
+				Math.max(runs.size(), 1), RUN_ORDER);
+		for (SortedRun run : runs) {
+			if (run.advance()) {
+				heap.add(run);
+			}
+		}
+		return new SortedRun() {
+			protected Record read() throws IOException {
+				SortedRun run = heap.poll();
+				if (run == null) {
+					return null;
+				}
+				Record res = run.current();
+				if (run.advance()) {
+					heap.add(run);
+				}
+				return res;
+			}
+
+			void close() {
+			}
+		};
+	}
+
+	/**
+	 * Merge the given runs, fanIn runs at a time, into temporary files until
+	 * at most fanIn runs are left. The merged runs are closed and replaced in
+	 * the list by their result, so the caller must close the runs of the list
+	 * even if this method fails.
+	 *
+	 * @param runs
+	 *            the runs to reduce, positioned before their first record.
+	 * @param fanIn
+	 *            maximum number of runs read at the same time.
+	 * @param directory
+	 *            where the merged runs will be written (null for the default
+	 *            temporary directory).
+	 * @throws IOException
+	 */
+	static void reduce(List<SortedRun> runs, int fanIn, File directory)
+			throws IOException {
+		assert fanIn > 1;
+		while (runs.size() > fanIn) {
+			List<SortedRun> group = new ArrayList<SortedRun>(runs.subList(0,
+					fanIn));
+			SortedRun merged = write(merge(group), directory);
+			runs.subList(0, fanIn).clear();
+			runs.add(merged);
+			for (SortedRun run : group) {
+				run.close();
+			}
+		}
+	}
+
+	/**
+	 * A run stored in a file. The file is opened when the run is first
+	 * advanced so that only the runs being merged hold a file descriptor.
+	 */
+	private static final class FileRun extends SortedRun {
+
+		private final File file;
+
+		private DataInputStream in;
+
+		private FileRun(File file) {
+			this.file = file;
+		}
+
+		protected Record read() throws IOException {
+			if (in == null) {
+				in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file), 1 << 16));
+			}
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+			byte[] address = new byte[length];
+			in.readFully(address);
+			long id = in.readLong();
+			byte[] object = new byte[in.readInt()];
+			in.readFully(object);
+			return new Record(address, id, object);
+		}
+
+		void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+			file.delete();
+		}
+	}
+
+}
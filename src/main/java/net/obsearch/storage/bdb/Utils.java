@@ -8,6 +8,7 @@ import junit.framework.TestCase;
 import net.obsearch.index.utils.Directory;
 import net.obsearch.index.utils.TUtils;
 
+import net.obsearch.storage.mmap.MMapFactory;
 import net.obsearch.storage.tc.TCFactory;
 
 public class Utils extends TestCase {
@@ -29,7 +30,18 @@ public class Utils extends TestCase {
 		return fact;
 	}
 
-	
+	public static MMapFactory getFactoryMMap() throws Exception {
+		MMapFactory fact = new MMapFactory(init());
+		return fact;
+	}
+
+	/**
+	 * @return an empty directory for the tests that create their own
+	 *         factories (for example through an ambient).
+	 */
+	public static File getTestDirectory() throws Exception {
+		return init();
+	}
 
 	private static File init() throws IOException {
 		File dbFolder = new File(TUtils.getTestProperties().getProperty(
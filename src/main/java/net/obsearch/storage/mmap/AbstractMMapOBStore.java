@@ -0,0 +1,289 @@
+package net.obsearch.storage.mmap;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import hep.aida.bin.StaticBin1D;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import net.obsearch.Status;
+import net.obsearch.asserts.OBAsserts;
+import net.obsearch.exception.OBException;
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.storage.CloseIterator;
+import net.obsearch.storage.OBStorageConfig;
+import net.obsearch.storage.OBStore;
+import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.storage.Tuple;
+import net.obsearch.storage.TupleBytes;
+import net.obsearch.storage.OBStorageConfig.IndexType;
+
+/**
+ * AbstractMMapOBStore implements the common operations of the memory mapped
+ * storage devices on top of a {@link MMapStorage}. Like the Tokyo Cabinet
+ * devices, keys are unique and range queries are not supported.
+ *
+ * @param <T>
+ *            The type of tuple returned by the iterators.
+ * @author Arnoldo Jose Muller Molina
+ */
+public abstract class AbstractMMapOBStore<T extends Tuple> implements
+		OBStore<T> {
+
+	protected StaticBin1D stats = new StaticBin1D();
+
+	/**
+	 * Name of the database.
+	 */
+	private String name;
+
+	/**
+	 * Factory of this storage device.
+	 */
+	protected OBStoreFactory fact;
+
+	/**
+	 * File format that holds the data.
+	 */
+	protected MMapStorage storage;
+
+	private OBStorageConfig storageConf;
+
+	/**
+	 * Create a new store.
+	 *
+	 * @param name
+	 *            Name of the database.
+	 * @param storage
+	 *            File format that holds the data.
+	 * @param fact
+	 *            Factory of this storage device.
+	 * @param storageConf
+	 *            Configuration of the storage device.
+	 */
+	AbstractMMapOBStore(String name, MMapStorage storage, OBStoreFactory fact,
+			OBStorageConfig storageConf) {
+		this.name = name;
+		this.storage = storage;
+		this.fact = fact;
+		this.storageConf = storageConf;
+	}
+
+	public Object getStats() throws OBException {
+		return null;
+	}
+
+	public OBStoreFactory getFactory() {
+		return fact;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void close() throws OBStorageException {
+		storage.close();
+	}
+
+	public void optimize() throws OBStorageException {
+		storage.optimize();
+	}
+
+	public void deleteAll() throws OBStorageException {
+		storage.clear();
+	}
+
+	/**
+	 * Copy the contents of a value returned by the storage.
+	 *
+	 * @param value
+	 *            the value or null.
+	 * @return a new array or null.
+	 */
+	protected static byte[] toBytes(ByteBuffer value) {
+		if (value == null) {
+			return null;
+		}
+		byte[] res = new byte[value.remaining()];
+		value.get(res);
+		return res;
+	}
+
+	public byte[] getValue(byte[] key) throws IllegalArgumentException,
+			OBStorageException {
+		return toBytes(storage.get(key));
+	}
+
+	public net.obsearch.OperationStatus put(byte[] key, byte[] value)
+			throws OBStorageException {
+		checkFixedRecord(value);
+		storage.put(key, value);
+		return new net.obsearch.OperationStatus(Status.OK);
+	}
+
+	protected void checkFixedRecord(byte[] value) throws OBStorageException {
+		OBAsserts.chkAssertStorage(
+				storageConf.getIndexType() != IndexType.FIXED_RECORD
+						|| value.length == storageConf.getRecordSize(),
+				"Record size does not match the size for this index");
+	}
+
+	public net.obsearch.OperationStatus delete(byte[] key)
+			throws OBStorageException {
+		return status(storage.delete(key));
+	}
+
+	/**
+	 * @param found
+	 *            true if the record existed.
+	 * @return the status of a delete operation.
+	 */
+	protected static net.obsearch.OperationStatus status(boolean found) {
+		return new net.obsearch.OperationStatus(found ? Status.OK
+				: Status.NOT_EXISTS);
+	}
+
+	public boolean allowsDuplicatedData() {
+		return storageConf.isDuplicates();
+	}
+
+	public CloseIterator<TupleBytes> processRange(byte[] low, byte[] high)
+			throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public CloseIterator<TupleBytes> processRangeNoDup(byte[] low, byte[] high)
+			throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public CloseIterator<TupleBytes> processRangeReverse(byte[] low, byte[] high)
+			throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public CloseIterator<TupleBytes> processRangeReverseNoDup(byte[] low,
+			byte[] high) throws OBStorageException {
+		throw new IllegalArgumentException();
+	}
+
+	public long size() throws OBStorageException {
+		return storage.size();
+	}
+
+	/**
+	 * Returns the next id from the database (incrementing sequences).
+	 *
+	 * @return The next id that can be inserted.
+	 */
+	public long nextId() throws OBStorageException {
+		return storage.nextId();
+	}
+
+	public StaticBin1D getReadStats() {
+		return this.stats;
+	}
+
+	public void setReadStats(StaticBin1D stats) {
+		this.stats = stats;
+	}
+
+	public byte[] prepareBytes(byte[] in) {
+		return in;
+	}
+
+	/**
+	 * Base class of the iterators. Iterates over all the records of the
+	 * storage.
+	 *
+	 * @param <O>
+	 *            The type of tuple that will be returned by the iterator.
+	 */
+	protected abstract class CursorIterator<O> implements CloseIterator<O> {
+
+		private final MMapStorage.Cursor cursor;
+
+		private boolean hasNext;
+
+		private byte[] lastReturnedKey;
+
+		protected CursorIterator() throws OBStorageException {
+			cursor = storage.cursor();
+			hasNext = cursor.advance();
+		}
+
+		/**
+		 * Creates a tuple from the given key and value.
+		 *
+		 * @param key
+		 *            raw key.
+		 * @param value
+		 *            raw value.
+		 * @return A new tuple of type O created from the raw data key and
+		 *         value.
+		 */
+		protected abstract O createTuple(byte[] key, byte[] value);
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public O next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			lastReturnedKey = cursor.getKey();
+			O res = createTuple(lastReturnedKey, cursor.getValue());
+			try {
+				hasNext = cursor.advance();
+			} catch (OBStorageException e) {
+				throw new IllegalArgumentException(e);
+			}
+			return res;
+		}
+
+		public void remove() {
+			if (lastReturnedKey != null) {
+				try {
+					storage.delete(lastReturnedKey);
+				} catch (OBStorageException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+		}
+
+		public void closeCursor() throws OBException {
+		}
+	}
+
+	protected class ByteArrayIterator extends CursorIterator<TupleBytes> {
+
+		protected ByteArrayIterator() throws OBStorageException {
+			super();
+		}
+
+		@Override
+		protected TupleBytes createTuple(byte[] key, byte[] value) {
+			return new TupleBytes(key, value);
+		}
+	}
+
+}
@@ -0,0 +1,321 @@
+package net.obsearch.storage.mmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import net.obsearch.asserts.OBAsserts;
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.utils.bytes.ByteConversion;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * FixedRecordArray stores records of the same size in a memory mapped array
+ * indexed by integral keys (object ids). Slot i holds a presence flag followed
+ * by the record, and its position is computed from i, so no index is
+ * required. Keys must be non-negative and dense: the file grows up to the
+ * largest key. Byte array keys are the keys serialized with
+ * {@link ByteConversion}, keySize tells which integral type they hold.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+final class FixedRecordArray implements MMapStorage {
+
+	private static final long MAGIC = 0x4F42464958524543L; // "OBFIXREC"
+
+	private static final long VERSION = 1;
+
+	/**
+	 * Header: magic, version, record size, sequence, count, limit. Each
+	 * segment reserves the space of the header so that slots do not cross
+	 * segment boundaries.
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	private static final int RECORD_SIZE_OFFSET = 16;
+
+	private static final int SEQUENCE_OFFSET = 24;
+
+	private static final int COUNT_OFFSET = 32;
+
+	private static final int LIMIT_OFFSET = 40;
+
+	private static final byte PRESENT = 1;
+
+	private static final byte ABSENT = 0;
+
+	private final MMapFile file;
+
+	private final int recordSize;
+
+	/**
+	 * recordSize plus the presence flag.
+	 */
+	private final int slotSize;
+
+	private final long slotsPerSegment;
+
+	/**
+	 * Size of the serialized keys.
+	 */
+	private final int keySize;
+
+	/**
+	 * Number of records stored.
+	 */
+	private long count;
+
+	/**
+	 * Largest key ever stored plus one.
+	 */
+	private long limit;
+
+	/**
+	 * Open or create a record array.
+	 *
+	 * @param f
+	 *            the file of the array.
+	 * @param recordSize
+	 *            size of each record.
+	 * @param keySize
+	 *            size of the serialized keys (1, 2, 4 or 8).
+	 * @throws OBStorageException
+	 */
+	FixedRecordArray(File f, int recordSize, int keySize)
+			throws OBStorageException {
+		boolean created = f.length() == 0;
+		this.file = new MMapFile(f);
+		this.recordSize = recordSize;
+		this.slotSize = recordSize + 1;
+		this.keySize = keySize;
+		this.slotsPerSegment = (MMapFile.SEGMENT_SIZE - HEADER_SIZE) / slotSize;
+		OBAsserts.chkAssertStorage(slotsPerSegment > 0, "Record too large");
+		ByteBuffer h = header();
+		if (created) {
+			h.putLong(0, MAGIC);
+			h.putLong(8, VERSION);
+			h.putLong(RECORD_SIZE_OFFSET, recordSize);
+			h.putLong(SEQUENCE_OFFSET, 0);
+			h.putLong(COUNT_OFFSET, 0);
+			h.putLong(LIMIT_OFFSET, 0);
+		} else {
+			OBAsserts.chkAssertStorage(h.getLong(0) == MAGIC
+					&& h.getLong(8) == VERSION, "Invalid record array: " + f);
+			OBAsserts.chkAssertStorage(
+					h.getLong(RECORD_SIZE_OFFSET) == recordSize,
+					"Record size does not match the size of " + f);
+		}
+		count = h.getLong(COUNT_OFFSET);
+		limit = h.getLong(LIMIT_OFFSET);
+	}
+
+	private ByteBuffer header() throws OBStorageException {
+		return file.segment(0, HEADER_SIZE);
+	}
+
+	private long position(long i) {
+		return ((i / slotsPerSegment) << MMapFile.SEGMENT_BITS) + HEADER_SIZE
+				+ (i % slotsPerSegment) * slotSize;
+	}
+
+	private long toIndex(byte[] key) {
+		long i;
+		switch (keySize) {
+		case 1:
+			i = ByteConversion.bytesToByte(key);
+			break;
+		case 2:
+			i = ByteConversion.bytesToShort(key);
+			break;
+		case 4:
+			i = ByteConversion.bytesToInt(key);
+			break;
+		default:
+			i = ByteConversion.bytesToLong(key);
+		}
+		return i;
+	}
+
+	private byte[] toKey(long i) {
+		switch (keySize) {
+		case 1:
+			return ByteConversion.byteToBytes((byte) i);
+		case 2:
+			return ByteConversion.shortToBytes((short) i);
+		case 4:
+			return ByteConversion.intToBytes((int) i);
+		default:
+			return ByteConversion.longToBytes(i);
+		}
+	}
+
+	/**
+	 * Return a read only view of record i.
+	 *
+	 * @param i
+	 *            the key.
+	 * @return the record or null if it does not exist.
+	 * @throws OBStorageException
+	 */
+	synchronized ByteBuffer get(long i) throws OBStorageException {
+		if (i < 0 || i >= limit) {
+			return null;
+		}
+		long pos = position(i);
+		if (file.segment(pos, slotSize).get(MMapFile.offset(pos)) != PRESENT) {
+			return null;
+		}
+		return file.slice(pos + 1, recordSize);
+	}
+
+	/**
+	 * Store record i.
+	 *
+	 * @param i
+	 *            the key.
+	 * @param value
+	 *            a record of recordSize bytes.
+	 * @throws OBStorageException
+	 */
+	synchronized void put(long i, byte[] value) throws OBStorageException {
+		OBAsserts.chkAssertStorage(i >= 0, "Keys must be positive");
+		OBAsserts.chkAssertStorage(value.length == recordSize,
+				"Record size does not match the size for this index");
+		long pos = position(i);
+		ByteBuffer b = file.view(pos, slotSize);
+		int o = b.position();
+		if (i >= limit || b.get(o) != PRESENT) {
+			setCount(count + 1);
+		}
+		if (i >= limit) {
+			limit = i + 1;
+			header().putLong(LIMIT_OFFSET, limit);
+		}
+		b.position(o + 1);
+		b.put(value);
+		b.put(o, PRESENT);
+	}
+
+	/**
+	 * Delete record i.
+	 *
+	 * @param i
+	 *            the key.
+	 * @return true if the record existed.
+	 * @throws OBStorageException
+	 */
+	synchronized boolean delete(long i) throws OBStorageException {
+		if (i < 0 || i >= limit) {
+			return false;
+		}
+		long pos = position(i);
+		ByteBuffer b = file.segment(pos, slotSize);
+		int o = MMapFile.offset(pos);
+		if (b.get(o) != PRESENT) {
+			return false;
+		}
+		b.put(o, ABSENT);
+		setCount(count - 1);
+		return true;
+	}
+
+	private void setCount(long count) throws OBStorageException {
+		this.count = count;
+		header().putLong(COUNT_OFFSET, count);
+	}
+
+	public ByteBuffer get(byte[] key) throws OBStorageException {
+		return get(toIndex(key));
+	}
+
+	public void put(byte[] key, byte[] value) throws OBStorageException {
+		put(toIndex(key), value);
+	}
+
+	public boolean delete(byte[] key) throws OBStorageException {
+		return delete(toIndex(key));
+	}
+
+	public synchronized long size() {
+		return count;
+	}
+
+	public synchronized long nextId() throws OBStorageException {
+		ByteBuffer h = header();
+		long res = h.getLong(SEQUENCE_OFFSET);
+		h.putLong(SEQUENCE_OFFSET, res + 1);
+		return res;
+	}
+
+	public synchronized void clear() throws OBStorageException {
+		for (long i = 0; i < limit; i++) {
+			long pos = position(i);
+			file.segment(pos, slotSize).put(MMapFile.offset(pos), ABSENT);
+		}
+		setCount(0);
+		limit = 0;
+		header().putLong(LIMIT_OFFSET, limit);
+	}
+
+	public Cursor cursor() {
+		return new ArrayCursor();
+	}
+
+	/**
+	 * Records are updated in place, there is no space to reclaim.
+	 */
+	public synchronized void optimize() throws OBStorageException {
+		file.force();
+	}
+
+	public synchronized void close() throws OBStorageException {
+		file.close();
+	}
+
+	private final class ArrayCursor implements Cursor {
+
+		private long i = -1;
+
+		private byte[] value;
+
+		public boolean advance() throws OBStorageException {
+			synchronized (FixedRecordArray.this) {
+				value = null;
+				while (++i < limit) {
+					long pos = position(i);
+					if (file.segment(pos, slotSize).get(MMapFile.offset(pos)) == PRESENT) {
+						value = file.read(pos + 1, recordSize);
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+
+		public byte[] getKey() {
+			return toKey(i);
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,230 @@
+package net.obsearch.storage.mmap;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import net.obsearch.asserts.OBAsserts;
+import net.obsearch.constants.ByteConstants;
+import net.obsearch.exception.OBException;
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.storage.OBStorageConfig;
+import net.obsearch.storage.OBStore;
+import net.obsearch.storage.OBStoreByte;
+import net.obsearch.storage.OBStoreDouble;
+import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.storage.OBStoreFloat;
+import net.obsearch.storage.OBStoreInt;
+import net.obsearch.storage.OBStoreLong;
+import net.obsearch.storage.OBStoreShort;
+import net.obsearch.storage.TupleBytes;
+import net.obsearch.storage.OBStorageConfig.IndexType;
+import net.obsearch.utils.bytes.ByteConversion;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MMapFactory creates storage devices written in pure Java on top of memory
+ * mapped files (no native libraries are required). FIXED_RECORD devices with
+ * integral keys are arrays of records indexed by the key. All the other
+ * devices are append only logs with a hash index that is saved when the
+ * device is closed, so opening a closed device does not scan its log. Values
+ * are read directly from the mapped pages.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public class MMapFactory implements OBStoreFactory {
+
+	/**
+	 * Directory where all the objects will be created.
+	 */
+	private String directory;
+
+	public MMapFactory(File directory) {
+		this.directory = directory.getAbsolutePath();
+	}
+
+	@Override
+	public void close() throws OBStorageException {
+
+	}
+
+	/**
+	 * Open the file format for the given configuration.
+	 *
+	 * @param name
+	 *            name of the device.
+	 * @param config
+	 *            configuration of the device.
+	 * @param keySize
+	 *            size of the integral keys of the device, or -1 if the keys
+	 *            are not integral.
+	 * @return the storage of the device.
+	 */
+	private MMapStorage createStorage(String name, OBStorageConfig config,
+			int keySize) throws OBStorageException, OBException {
+		File base = new File(directory, name);
+		if (IndexType.FIXED_RECORD == config.getIndexType()) {
+			OBAsserts.chkAssert(config.getRecordSize() > 0,
+					"Invalid record size");
+			if (keySize > 0) {
+				return new FixedRecordArray(new File(base.getPath() + ".fix"),
+						config.getRecordSize(), keySize);
+			}
+		}
+		return new RecordLog(new File(base.getPath() + ".log"));
+	}
+
+	@Override
+	public OBStore<TupleBytes> createOBStore(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreByteArray(name, createStorage(name, config, -1),
+				this, config);
+	}
+
+	@Override
+	public OBStoreByte createOBStoreByte(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreByte(name, createStorage(name, config,
+				ByteConstants.Byte.getSize()), this, config);
+	}
+
+	@Override
+	public OBStoreShort createOBStoreShort(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreShort(name, createStorage(name, config,
+				ByteConstants.Short.getSize()), this, config);
+	}
+
+	@Override
+	public OBStoreInt createOBStoreInt(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreInt(name, createStorage(name, config,
+				ByteConstants.Int.getSize()), this, config);
+	}
+
+	@Override
+	public OBStoreLong createOBStoreLong(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreLong(name, createStorage(name, config,
+				ByteConstants.Long.getSize()), this, config);
+	}
+
+	@Override
+	public OBStoreFloat createOBStoreFloat(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreFloat(name, createStorage(name, config, -1),
+				this, config);
+	}
+
+	@Override
+	public OBStoreDouble createOBStoreDouble(String name, OBStorageConfig config)
+			throws OBStorageException, OBException {
+		return new MMapOBStoreDouble(name, createStorage(name, config, -1),
+				this, config);
+	}
+
+	@Override
+	public void removeOBStore(OBStore storage) throws OBStorageException,
+			OBException {
+		storage.deleteAll();
+		storage.close();
+	}
+
+	@Override
+	public byte[] serializeByte(byte value) {
+		return ByteConversion.byteToBytes(value);
+	}
+
+	@Override
+	public byte deSerializeByte(byte[] value) {
+		return ByteConversion.bytesToByte(value);
+	}
+
+	@Override
+	public byte[] serializeShort(short value) {
+		return ByteConversion.shortToBytes(value);
+	}
+
+	@Override
+	public short deSerializeShort(byte[] value) {
+		return ByteConversion.bytesToShort(value);
+	}
+
+	@Override
+	public byte[] serializeInt(int value) {
+		return ByteConversion.intToBytes(value);
+	}
+
+	@Override
+	public int deSerializeInt(byte[] value) {
+		return ByteConversion.bytesToInt(value);
+	}
+
+	@Override
+	public byte[] serializeLong(long value) {
+		return ByteConversion.longToBytes(value);
+	}
+
+	@Override
+	public long deSerializeLong(byte[] value) {
+		return ByteConversion.bytesToLong(value);
+	}
+
+	@Override
+	public byte[] serializeFloat(float value) {
+		return ByteConversion.floatToBytes(value);
+	}
+
+	@Override
+	public float deSerializeFloat(byte[] value) {
+		return ByteConversion.bytesToFloat(value);
+	}
+
+	@Override
+	public byte[] serializeDouble(double value) {
+		return ByteConversion.doubleToBytes(value);
+	}
+
+	@Override
+	public double deSerializeDouble(byte[] value) {
+		return ByteConversion.bytesToDouble(value);
+	}
+
+	@Override
+	public byte[] serializeBigInteger(BigInteger value) {
+		return value.toByteArray();
+	}
+
+	@Override
+	public BigInteger deSerializeBigInteger(byte[] value) {
+		return new BigInteger(value);
+	}
+
+	@Override
+	public String getFactoryLocation() {
+		return this.directory;
+	}
+
+	@Override
+	public Object stats() throws OBStorageException {
+		return null;
+	}
+
+}
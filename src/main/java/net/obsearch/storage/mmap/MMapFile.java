@@ -0,0 +1,219 @@
+package net.obsearch.storage.mmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.utils.bytes.ByteConversion;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MMapFile maps a file in segments of {@link #SEGMENT_SIZE} bytes so that
+ * files larger than 2GB can be accessed with ByteBuffers. A segment is mapped
+ * the first time it is touched and its mapping grows (doubling) as the file
+ * grows, so small stores only use a few pages. Callers must not write records
+ * that straddle two segments. Old mappings are not unmapped explicitly:
+ * buffers handed out before a mapping grows remain valid.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+final class MMapFile {
+
+	static final int SEGMENT_BITS = 28;
+
+	/**
+	 * Size of each segment (256MB).
+	 */
+	static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+	/**
+	 * Smallest mapping created for a segment.
+	 */
+	private static final long MIN_MAPPING = 1 << 16;
+
+	private final RandomAccessFile raf;
+
+	private final FileChannel channel;
+
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	/**
+	 * Open (or create) the given file.
+	 *
+	 * @param file
+	 *            the file to map.
+	 * @throws OBStorageException
+	 *             if the file cannot be opened.
+	 */
+	MMapFile(File file) throws OBStorageException {
+		try {
+			raf = new RandomAccessFile(file, "rw");
+		} catch (IOException e) {
+			throw new OBStorageException(e);
+		}
+		channel = raf.getChannel();
+	}
+
+	/**
+	 * Return the mapping of the segment that holds the bytes [pos, pos +
+	 * length). The bytes must be accessed with absolute operations at
+	 * {@link #offset(long)}.
+	 *
+	 * @param pos
+	 *            position in the file.
+	 * @param length
+	 *            number of bytes that will be accessed.
+	 * @return the mapped segment, in the native byte order.
+	 * @throws OBStorageException
+	 *             if the file cannot be mapped.
+	 */
+	ByteBuffer segment(long pos, int length) throws OBStorageException {
+		int s = (int) (pos >>> SEGMENT_BITS);
+		long end = offset(pos) + (long) length;
+		assert end <= SEGMENT_SIZE : "Record crosses a segment boundary";
+		if (s >= segments.length) {
+			segments = Arrays.copyOf(segments, s + 1);
+		}
+		MappedByteBuffer b = segments[s];
+		if (b == null || b.capacity() < end) {
+			long start = ((long) s) << SEGMENT_BITS;
+			try {
+				long size = b == null ? MIN_MAPPING : b.capacity() * 2L;
+				while (size < end) {
+					size *= 2;
+				}
+				// do not map less than what the file already holds.
+				size = Math.max(size, channel.size() - start);
+				size = Math.min(size, SEGMENT_SIZE);
+				b = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			} catch (IOException e) {
+				throw new OBStorageException(e);
+			}
+			b.order(ByteConversion.ORDERING);
+			segments[s] = b;
+		}
+		return b;
+	}
+
+	/**
+	 * @param pos
+	 *            position in the file.
+	 * @return offset of pos within its segment.
+	 */
+	static int offset(long pos) {
+		return (int) (pos & (SEGMENT_SIZE - 1));
+	}
+
+	/**
+	 * @param pos
+	 *            position in the file.
+	 * @return number of bytes between pos and the end of its segment.
+	 */
+	static int remaining(long pos) {
+		return (int) (SEGMENT_SIZE - offset(pos));
+	}
+
+	/**
+	 * Create a view of the segment that holds [pos, pos + length), positioned
+	 * at pos. Relative operations on the view do not affect other users of
+	 * the segment.
+	 *
+	 * @param pos
+	 *            position in the file.
+	 * @param length
+	 *            number of bytes that will be accessed.
+	 * @return a buffer in the native byte order.
+	 * @throws OBStorageException
+	 */
+	ByteBuffer view(long pos, int length) throws OBStorageException {
+		// duplicates do not keep the byte order.
+		ByteBuffer b = segment(pos, length).duplicate().order(
+				ByteConversion.ORDERING);
+		b.position(offset(pos));
+		return b;
+	}
+
+	/**
+	 * Create a read only view of length bytes starting at pos.
+	 *
+	 * @param pos
+	 *            position in the file.
+	 * @param length
+	 *            number of bytes of the view.
+	 * @return a buffer in the native byte order.
+	 * @throws OBStorageException
+	 */
+	ByteBuffer slice(long pos, int length) throws OBStorageException {
+		ByteBuffer b = view(pos, length);
+		b.limit(b.position() + length);
+		return b.slice().asReadOnlyBuffer().order(ByteConversion.ORDERING);
+	}
+
+	/**
+	 * Copy length bytes starting at pos.
+	 *
+	 * @param pos
+	 *            position in the file.
+	 * @param length
+	 *            number of bytes to copy.
+	 * @return a new array with the bytes.
+	 * @throws OBStorageException
+	 */
+	byte[] read(long pos, int length) throws OBStorageException {
+		byte[] res = new byte[length];
+		view(pos, length).get(res);
+		return res;
+	}
+
+	/**
+	 * Write all the modified pages to the device.
+	 */
+	void force() {
+		for (MappedByteBuffer b : segments) {
+			if (b != null) {
+				b.force();
+			}
+		}
+	}
+
+	/**
+	 * Force and close the file. The mappings are released by the garbage
+	 * collector.
+	 *
+	 * @throws OBStorageException
+	 */
+	void close() throws OBStorageException {
+		force();
+		segments = new MappedByteBuffer[0];
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			throw new OBStorageException(e);
+		}
+	}
+
+}
@@ -0,0 +1,46 @@
+package net.obsearch.storage.mmap;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import net.obsearch.exception.OBStorageException;
+import net.obsearch.storage.CloseIterator;
+import net.obsearch.storage.OBStorageConfig;
+import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.storage.TupleBytes;
+
+/**
+ * MMapOBStoreByteArray is a memory mapped storage device whose keys are byte
+ * arrays.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+public final class MMapOBStoreByteArray extends AbstractMMapOBStore<TupleBytes> {
+
+	MMapOBStoreByteArray(String name, MMapStorage storage, OBStoreFactory fact,
+			OBStorageConfig conf) {
+		super(name, storage, fact, conf);
+	}
+
+	@Override
+	public CloseIterator<TupleBytes> processAll() throws OBStorageException {
+		return new ByteArrayIterator();
+	}
+
+}
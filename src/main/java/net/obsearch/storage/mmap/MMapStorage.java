@@ -0,0 +1,134 @@
+package net.obsearch.storage.mmap;
+
+import java.nio.ByteBuffer;
+
+import net.obsearch.exception.OBStorageException;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * MMapStorage is the file format behind a memory mapped OBStore. Keys are
+ * unique. Implementations are thread safe.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+interface MMapStorage {
+
+	/**
+	 * Return a read only view of the value of key. The view is valid until the
+	 * key is overwritten, the storage is cleared or optimized.
+	 *
+	 * @param key
+	 *            the key to search.
+	 * @return the value in the native byte order or null if the key does not
+	 *         exist.
+	 * @throws OBStorageException
+	 */
+	ByteBuffer get(byte[] key) throws OBStorageException;
+
+	/**
+	 * Insert or overwrite the given key.
+	 *
+	 * @param key
+	 *            the key to insert.
+	 * @param value
+	 *            the value of the key.
+	 * @throws OBStorageException
+	 */
+	void put(byte[] key, byte[] value) throws OBStorageException;
+
+	/**
+	 * Delete the given key.
+	 *
+	 * @param key
+	 *            the key to delete.
+	 * @return true if the key existed.
+	 * @throws OBStorageException
+	 */
+	boolean delete(byte[] key) throws OBStorageException;
+
+	/**
+	 * @return number of keys stored.
+	 */
+	long size();
+
+	/**
+	 * Return the current value of the sequence and increment it. The sequence
+	 * is kept in the file.
+	 *
+	 * @return the next id.
+	 * @throws OBStorageException
+	 */
+	long nextId() throws OBStorageException;
+
+	/**
+	 * Create a cursor over all the records.
+	 *
+	 * @return a new cursor.
+	 */
+	Cursor cursor();
+
+	/**
+	 * Remove all the records. The sequence is not modified.
+	 *
+	 * @throws OBStorageException
+	 */
+	void clear() throws OBStorageException;
+
+	/**
+	 * Reclaim unused space and write all the changes to the device.
+	 *
+	 * @throws OBStorageException
+	 */
+	void optimize() throws OBStorageException;
+
+	/**
+	 * Write all the changes and close the storage.
+	 *
+	 * @throws OBStorageException
+	 */
+	void close() throws OBStorageException;
+
+	/**
+	 * Cursor over the records of a storage. Records inserted after the cursor
+	 * was created may not be returned.
+	 */
+	interface Cursor {
+
+		/**
+		 * Move to the next record.
+		 *
+		 * @return false if there are no more records.
+		 * @throws OBStorageException
+		 */
+		boolean advance() throws OBStorageException;
+
+		/**
+		 * @return the key of the current record.
+		 */
+		byte[] getKey();
+
+		/**
+		 * @return a copy of the value of the current record.
+		 */
+		byte[] getValue();
+	}
+
+}
@@ -0,0 +1,313 @@
+package net.obsearch.storage.mmap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import net.obsearch.exception.OBStorageException;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RecordIndex maps keys to the position of their record in a
+ * {@link RecordLog}. It is an open addressing hash table made of two
+ * primitive arrays (positions and hashes) so that millions of keys do not
+ * create millions of objects. Keys are not kept in memory, they are compared
+ * against the log.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+final class RecordIndex {
+
+	/**
+	 * Identifies index files.
+	 */
+	private static final long MAGIC = 0x4F42524958494458L; // "OBRIXIDX"
+
+	/**
+	 * Number of longs of the file header: magic, stamp, capacity, size.
+	 */
+	private static final int HEADER_LONGS = 4;
+
+	private static final int MIN_CAPACITY = 1024;
+
+	/**
+	 * Value returned when a key is not found.
+	 */
+	static final long NOT_FOUND = -1;
+
+	/**
+	 * Marks a free slot. Records never start at position 0.
+	 */
+	private static final long EMPTY = 0;
+
+	/**
+	 * Marks the slot of a removed key.
+	 */
+	private static final long REMOVED = -1;
+
+	private final RecordLog log;
+
+	private long[] positions;
+
+	private int[] hashes;
+
+	/**
+	 * Number of keys.
+	 */
+	private int size;
+
+	/**
+	 * Number of slots that are not empty (keys plus removed slots).
+	 */
+	private int used;
+
+	RecordIndex(RecordLog log) {
+		this.log = log;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		positions = new long[capacity];
+		hashes = new int[capacity];
+		size = 0;
+		used = 0;
+	}
+
+	static int hash(byte[] key) {
+		int h = Arrays.hashCode(key);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Find the slot of the given key.
+	 *
+	 * @return the slot or -1 if the key is not in the table.
+	 */
+	private int find(byte[] key, int h) throws OBStorageException {
+		int mask = positions.length - 1;
+		int i = h & mask;
+		while (true) {
+			long p = positions[i];
+			if (p == EMPTY) {
+				return -1;
+			}
+			if (p != REMOVED && hashes[i] == h && log.keyEquals(p, key)) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key to search.
+	 * @return the position of the record of key or {@link #NOT_FOUND}.
+	 * @throws OBStorageException
+	 */
+	long get(byte[] key) throws OBStorageException {
+		int i = find(key, hash(key));
+		return i < 0 ? NOT_FOUND : positions[i];
+	}
+
+	/**
+	 * Associate key with the given record position.
+	 *
+	 * @return the previous position of key or {@link #NOT_FOUND}.
+	 * @throws OBStorageException
+	 */
+	long put(byte[] key, long pos) throws OBStorageException {
+		int h = hash(key);
+		int i = find(key, h);
+		if (i >= 0) {
+			long old = positions[i];
+			positions[i] = pos;
+			return old;
+		}
+		if ((used + 1) * 4L > positions.length * 3L) {
+			// grow only if the removed slots are not enough.
+			rehash(size * 2 >= positions.length / 2 ? positions.length * 2
+					: positions.length);
+		}
+		insert(h, pos);
+		return NOT_FOUND;
+	}
+
+	private void insert(int h, long pos) {
+		int mask = positions.length - 1;
+		int i = h & mask;
+		while (positions[i] != EMPTY && positions[i] != REMOVED) {
+			i = (i + 1) & mask;
+		}
+		if (positions[i] == EMPTY) {
+			used++;
+		}
+		positions[i] = pos;
+		hashes[i] = h;
+		size++;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldPositions = positions;
+		int[] oldHashes = hashes;
+		allocate(capacity);
+		for (int i = 0; i < oldPositions.length; i++) {
+			long p = oldPositions[i];
+			if (p != EMPTY && p != REMOVED) {
+				insert(oldHashes[i], p);
+			}
+		}
+	}
+
+	/**
+	 * Remove the given key.
+	 *
+	 * @return the position of the record of key or {@link #NOT_FOUND}.
+	 * @throws OBStorageException
+	 */
+	long remove(byte[] key) throws OBStorageException {
+		int i = find(key, hash(key));
+		if (i < 0) {
+			return NOT_FOUND;
+		}
+		long old = positions[i];
+		positions[i] = REMOVED;
+		size--;
+		return old;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Write the table to the given file. The header holds a magic number, the
+	 * stamp, the capacity and the number of keys. Positions and hashes follow
+	 * in the native byte order.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param stamp
+	 *            value used to check that the file matches its log, see
+	 *            {@link #read(File, long, RecordLog)}.
+	 * @throws OBStorageException
+	 */
+	void write(File file, long stamp) throws OBStorageException {
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				FileChannel ch = out.getChannel();
+				ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(
+						ByteOrder.nativeOrder());
+				buf.putLong(MAGIC).putLong(stamp).putLong(positions.length)
+						.putLong(size);
+				for (long p : positions) {
+					if (buf.remaining() < 8) {
+						flush(ch, buf);
+					}
+					buf.putLong(p);
+				}
+				for (int h : hashes) {
+					if (buf.remaining() < 4) {
+						flush(ch, buf);
+					}
+					buf.putInt(h);
+				}
+				flush(ch, buf);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new OBStorageException(e);
+		}
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer buf)
+			throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		buf.clear();
+	}
+
+	/**
+	 * Load a table written by {@link #write(File, long)}.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @param stamp
+	 *            expected stamp.
+	 * @param log
+	 *            the log of the table.
+	 * @return the table or null if the file does not exist or does not match
+	 *         the stamp.
+	 * @throws OBStorageException
+	 */
+	static RecordIndex read(File file, long stamp, RecordLog log)
+			throws OBStorageException {
+		if (!file.exists() || file.length() < HEADER_LONGS * 8) {
+			return null;
+		}
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel ch = in.getChannel();
+				MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+						ch.size());
+				b.order(ByteOrder.nativeOrder());
+				long capacity = b.getLong(16);
+				if (b.getLong(0) != MAGIC || b.getLong(8) != stamp
+						|| Long.bitCount(capacity) != 1
+						|| ch.size() != HEADER_LONGS * 8 + capacity * 12) {
+					return null;
+				}
+				RecordIndex res = new RecordIndex(log);
+				res.allocate((int) capacity);
+				b.position(HEADER_LONGS * 8);
+				b.asLongBuffer().get(res.positions);
+				b.position(HEADER_LONGS * 8 + (int) capacity * 8);
+				b.asIntBuffer().get(res.hashes);
+				res.size = (int) b.getLong(24);
+				for (long p : res.positions) {
+					if (p != EMPTY) {
+						res.used++;
+					}
+				}
+				return res;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new OBStorageException(e);
+		}
+	}
+
+}
@@ -0,0 +1,345 @@
+package net.obsearch.storage.mmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import net.obsearch.asserts.OBAsserts;
+import net.obsearch.exception.OBStorageException;
+
+/*
+ OBSearch: a distributed similarity search engine This project is to
+ similarity search what 'bit-torrent' is to downloads.
+ Copyright (C) 2009 Arnoldo Jose Muller Molina
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * RecordLog stores variable size records in an append only memory mapped
+ * file. Each record is [key length, value length, key, value]; deletions
+ * append a record whose value length is {@link #TOMBSTONE}. Records never
+ * cross a segment boundary, the unused end of a segment is skipped. A
+ * {@link RecordIndex} maps each key to its last record. The index is written
+ * next to the log when the log is closed and loaded at open time if it
+ * matches the log; otherwise it is rebuilt by scanning the log.
+ * {@link #optimize()} rewrites the live records into a new log.
+ *
+ * @author Arnoldo Jose Muller Molina
+ */
+final class RecordLog implements MMapStorage {
+
+	private static final long MAGIC = 0x4F42524C4F474C47L; // "OBRLOGLG"
+
+	private static final long VERSION = 1;
+
+	/**
+	 * Header: magic, version, end of the log, sequence.
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	private static final int END_OFFSET = 16;
+
+	private static final int SEQUENCE_OFFSET = 24;
+
+	/**
+	 * Size of the lengths that precede each record.
+	 */
+	private static final int RECORD_HEADER = 8;
+
+	/**
+	 * Value length of deletion records.
+	 */
+	private static final int TOMBSTONE = -1;
+
+	/**
+	 * Key length written when the rest of the segment is not used.
+	 */
+	private static final int PADDING = -1;
+
+	private final File logFile;
+
+	private final File indexFile;
+
+	private MMapFile file;
+
+	private RecordIndex index;
+
+	/**
+	 * Position where the next record will be written.
+	 */
+	private long end;
+
+	/**
+	 * Open or create the log stored in logFile. The index is kept in
+	 * logFile.idx.
+	 *
+	 * @param logFile
+	 *            the log.
+	 * @throws OBStorageException
+	 */
+	RecordLog(File logFile) throws OBStorageException {
+		this.logFile = logFile;
+		this.indexFile = new File(logFile.getPath() + ".idx");
+		open();
+	}
+
+	private void open() throws OBStorageException {
+		boolean created = logFile.length() == 0;
+		file = new MMapFile(logFile);
+		ByteBuffer h = file.segment(0, HEADER_SIZE);
+		if (created) {
+			h.putLong(0, MAGIC);
+			h.putLong(8, VERSION);
+			h.putLong(SEQUENCE_OFFSET, 0);
+			setEnd(HEADER_SIZE);
+		} else {
+			OBAsserts.chkAssertStorage(h.getLong(0) == MAGIC
+					&& h.getLong(8) == VERSION, "Invalid record log: "
+					+ logFile);
+			end = h.getLong(END_OFFSET);
+		}
+		index = RecordIndex.read(indexFile, end, this);
+		// the index file is only valid until the log changes.
+		indexFile.delete();
+		if (index == null) {
+			rebuildIndex();
+		}
+	}
+
+	private void setEnd(long end) throws OBStorageException {
+		this.end = end;
+		file.segment(0, HEADER_SIZE).putLong(END_OFFSET, end);
+	}
+
+	private void rebuildIndex() throws OBStorageException {
+		index = new RecordIndex(this);
+		long pos = HEADER_SIZE;
+		while ((pos = align(pos)) < end) {
+			ByteBuffer b = file.segment(pos, RECORD_HEADER);
+			int o = MMapFile.offset(pos);
+			int keyLength = b.getInt(o);
+			int valueLength = b.getInt(o + 4);
+			byte[] key = file.read(pos + RECORD_HEADER, keyLength);
+			if (valueLength == TOMBSTONE) {
+				index.remove(key);
+			} else {
+				index.put(key, pos);
+			}
+			pos += recordSize(keyLength, valueLength);
+		}
+	}
+
+	/**
+	 * Skip the unused end of a segment.
+	 *
+	 * @return pos or the beginning of the next segment.
+	 */
+	private long align(long pos) throws OBStorageException {
+		if (pos >= end) {
+			return pos;
+		}
+		int left = MMapFile.remaining(pos);
+		if (left < RECORD_HEADER
+				|| file.segment(pos, RECORD_HEADER).getInt(
+						MMapFile.offset(pos)) == PADDING) {
+			return pos + left;
+		}
+		return pos;
+	}
+
+	private static int recordSize(int keyLength, int valueLength) {
+		return RECORD_HEADER + keyLength + Math.max(valueLength, 0);
+	}
+
+	/**
+	 * Append a record.
+	 *
+	 * @param value
+	 *            the value or null for a deletion.
+	 * @return the position of the new record.
+	 */
+	private long append(byte[] key, byte[] value) throws OBStorageException {
+		int valueLength = value == null ? TOMBSTONE : value.length;
+		int size = recordSize(key.length, valueLength);
+		OBAsserts.chkAssertStorage(size <= MMapFile.SEGMENT_SIZE - HEADER_SIZE,
+				"Record too large");
+		long pos = end;
+		int left = MMapFile.remaining(pos);
+		if (left < size) {
+			if (left >= RECORD_HEADER) {
+				file.segment(pos, RECORD_HEADER).putInt(MMapFile.offset(pos),
+						PADDING);
+			}
+			pos += left;
+		}
+		ByteBuffer b = file.view(pos, size);
+		b.putInt(key.length);
+		b.putInt(valueLength);
+		b.put(key);
+		if (value != null) {
+			b.put(value);
+		}
+		setEnd(pos + size);
+		return pos;
+	}
+
+	/**
+	 * Compare key with the key of the record at pos.
+	 */
+	boolean keyEquals(long pos, byte[] key) throws OBStorageException {
+		ByteBuffer b = file.segment(pos, RECORD_HEADER + key.length);
+		int o = MMapFile.offset(pos);
+		if (b.getInt(o) != key.length) {
+			return false;
+		}
+		o += RECORD_HEADER;
+		for (int i = 0; i < key.length; i++) {
+			if (b.get(o + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * View of the value of the record at pos.
+	 */
+	private ByteBuffer value(long pos) throws OBStorageException {
+		ByteBuffer b = file.segment(pos, RECORD_HEADER);
+		int o = MMapFile.offset(pos);
+		int keyLength = b.getInt(o);
+		int valueLength = b.getInt(o + 4);
+		return file.slice(pos + RECORD_HEADER + keyLength, valueLength);
+	}
+
+	public synchronized ByteBuffer get(byte[] key) throws OBStorageException {
+		long pos = index.get(key);
+		if (pos == RecordIndex.NOT_FOUND) {
+			return null;
+		}
+		return value(pos);
+	}
+
+	public synchronized void put(byte[] key, byte[] value)
+			throws OBStorageException {
+		index.put(key, append(key, value));
+	}
+
+	public synchronized boolean delete(byte[] key) throws OBStorageException {
+		if (index.remove(key) == RecordIndex.NOT_FOUND) {
+			return false;
+		}
+		append(key, null);
+		return true;
+	}
+
+	public synchronized long size() {
+		return index.size();
+	}
+
+	public synchronized long nextId() throws OBStorageException {
+		ByteBuffer h = file.segment(0, HEADER_SIZE);
+		long res = h.getLong(SEQUENCE_OFFSET);
+		h.putLong(SEQUENCE_OFFSET, res + 1);
+		return res;
+	}
+
+	private synchronized long getSequence() throws OBStorageException {
+		return file.segment(0, HEADER_SIZE).getLong(SEQUENCE_OFFSET);
+	}
+
+	public synchronized void clear() throws OBStorageException {
+		index.clear();
+		setEnd(HEADER_SIZE);
+	}
+
+	public Cursor cursor() {
+		return new LogCursor();
+	}
+
+	/**
+	 * Copy the live records to a new log and replace this log with it.
+	 */
+	public synchronized void optimize() throws OBStorageException {
+		File tmp = new File(logFile.getPath() + ".tmp");
+		tmp.delete();
+		RecordLog copy = new RecordLog(tmp);
+		copy.file.segment(0, HEADER_SIZE).putLong(SEQUENCE_OFFSET,
+				getSequence());
+		Cursor c = cursor();
+		while (c.advance()) {
+			copy.put(c.getKey(), c.getValue());
+		}
+		copy.close();
+		file.close();
+		OBAsserts.chkAssertStorage(logFile.delete()
+				&& copy.indexFile.renameTo(indexFile)
+				&& tmp.renameTo(logFile), "Could not replace the log: "
+				+ logFile);
+		open();
+	}
+
+	public synchronized void close() throws OBStorageException {
+		file.close();
+		index.write(indexFile, end);
+	}
+
+	/**
+	 * Iterates over the log and returns the records that are still referenced
+	 * by the index.
+	 */
+	private final class LogCursor implements Cursor {
+
+		private long pos = HEADER_SIZE;
+
+		private byte[] key;
+
+		private byte[] value;
+
+		public boolean advance() throws OBStorageException {
+			synchronized (RecordLog.this) {
+				while ((pos = align(pos)) < end) {
+					long current = pos;
+					ByteBuffer b = file.segment(current, RECORD_HEADER);
+					int o = MMapFile.offset(current);
+					int keyLength = b.getInt(o);
+					int valueLength = b.getInt(o + 4);
+					pos += recordSize(keyLength, valueLength);
+					if (valueLength == TOMBSTONE) {
+						continue;
+					}
+					byte[] k = file.read(current + RECORD_HEADER, keyLength);
+					if (index.get(k) == current) {
+						key = k;
+						value = file.read(current + RECORD_HEADER + keyLength,
+								valueLength);
+						return true;
+					}
+				}
+				key = null;
+				value = null;
+				return false;
+			}
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+}
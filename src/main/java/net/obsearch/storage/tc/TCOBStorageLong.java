@@ -41,6 +41,7 @@ import java.nio.ByteBuffer;
 
 import tokyocabinet.DBM;
 import net.obsearch.storage.OBStoreFactory;
+import net.obsearch.utils.bytes.ByteConversion;
 
 /**
  * BDBOBStoreLong is a wrapper for Berkeley indexes that assumes that keys are
@@ -103,6 +104,17 @@ public final class TCOBStorageLong extends AbstractTCOBStorage<TupleLong>
 		return super.getValue(getBytes(key));
 	}
 
+	public ByteBuffer getValueBuffer(long key) throws IllegalArgumentException,
+			OBStorageException {
+		byte[] value = getValue(key);
+		if (value == null) {
+			return null;
+		}
+		// views do not keep the byte order.
+		return ByteConversion.createByteBuffer(value).asReadOnlyBuffer()
+				.order(ByteConversion.ORDERING);
+	}
+
 	public net.obsearch.OperationStatus put(long key, byte[] value)
 			throws IllegalArgumentException, OBStorageException {
 		return super.put(getBytes(key), value);
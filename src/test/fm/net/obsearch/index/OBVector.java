@@ -26,6 +26,7 @@ import java.io.IOException;
 import net.obsearch.constants.ByteConstants;
 import net.obsearch.exception.OBException;
 import net.obsearch.ob.OB${Type};
+import net.obsearch.ob.OBRaw${Type};
 import java.nio.ByteBuffer;
 import java.util.Random;
 import net.obsearch.utils.bytes.ByteBufferFactoryConversion;
@@ -35,7 +36,7 @@ import net.obsearch.utils.bytes.ByteBufferFactoryConversion;
  *
  */
 <@gen_warning filename="OBVector.java "/>
-public class OBVector${Type} implements OB${Type} {
+public class OBVector${Type} implements OBRaw${Type} {
 	
 	private ${type}[] data;
 	
@@ -69,6 +70,23 @@ public class OBVector${Type} implements OB${Type} {
 		return res;
 	}
 
+	@Override
+	public ${type} distance(ByteBuffer in, int offset, int length) throws OBException {
+		assert in.getInt(offset) == data.length;
+		assert length == ByteConstants.${Type}.getSize() * data.length + ByteConstants.Int.getSize();
+		int position = offset + ByteConstants.Int.getSize();
+		${type} res = 0;
+		int i = 0;
+		while(i < data.length){
+			${type} v = in.get${BBType}(position);
+			assert (data[i] - v) >= <@min_value/> && (data[i] - v) <= ${ClassType}.MAX_VALUE : "a: " + data[i] + " b: "  + v ;
+			res += Math.abs(data[i] - v);
+			position += ByteConstants.${Type}.getSize();
+			i++;
+		}
+		return res;
+	}
+
 	<@gen_warning filename="OBVector.java "/>
 	@Override
 	public void load(byte[] input) throws OBException, IOException {
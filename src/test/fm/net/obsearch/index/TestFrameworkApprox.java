@@ -40,6 +40,8 @@ import net.obsearch.result.OBResult${Type};
 import net.obsearch.index.utils.StatsUtil;
 import net.obsearch.exception.PivotsUnavailableException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -121,6 +123,26 @@ public abstract class TestFrameworkApprox${Type}<O extends OB${Type}>  extends T
        
         int maxQuery = i;
 
+        // the batch search must find the same distances.
+        List < OBPriorityQueue${Type} < O >> batch = new ArrayList < OBPriorityQueue${Type} < O >>(queries.length);
+        i = 0;
+        while (i < queries.length) {
+                batch.add(new OBPriorityQueue${Type} < O >(k));
+                i++;
+        }
+        index.searchOBBatch(Arrays.asList(queries), range, null, batch);
+        Iterator < OBPriorityQueue${Type} < O >> single = result.iterator();
+        for (OBPriorityQueue${Type} < O > b : batch) {
+                List<OBResult${Type}<O>> expected = single.next().getSortedElements();
+                List<OBResult${Type}<O>> actual = b.getSortedElements();
+                assertEquals(expected.size(), actual.size());
+                int cx = 0;
+                while (cx < expected.size()) {
+                        assertEquals(expected.get(cx).getDistance(), actual.get(cx).getDistance(), 0);
+                        cx++;
+                }
+        }
+
         Iterator < OBPriorityQueue${Type} < O >> it = result.iterator();
 				StaticBin1D stats = new StaticBin1D();
         i = 0;
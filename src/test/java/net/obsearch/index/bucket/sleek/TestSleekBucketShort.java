@@ -2,6 +2,7 @@ package net.obsearch.index.bucket.sleek;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -12,7 +13,14 @@ import net.obsearch.Status;
 import net.obsearch.example.l1.L1;
 import net.obsearch.exception.IllegalIdException;
 import net.obsearch.exception.OBException;
+import net.obsearch.index.bucket.BucketCodec;
+import net.obsearch.index.bucket.DeflateBucketCodec;
 import net.obsearch.index.bucket.impl.BucketObjectShort;
+import net.obsearch.query.OBQueryShort;
+import net.obsearch.result.OBPriorityQueueShort;
+import net.obsearch.result.OBResultShort;
+import net.obsearch.stats.Statistics;
+import net.obsearch.utils.bytes.ByteConversion;
 
 import static org.junit.Assert.*;
 
@@ -36,8 +44,7 @@ public class TestSleekBucketShort {
 	// max objects to store in a bucket
 	private final int MAX_OBJECTS = 1000;
 	// max # of pivots
-	// sleek bucket is set to pivots == 0 from now!
-	private final int MAX_PIVOTS = 0;
+	private final int MAX_PIVOTS = 8;
 
 	public L1 generateObject() {
 		short[] data = new short[TOTAL_DIMS];
@@ -54,11 +61,55 @@ public class TestSleekBucketShort {
 		// do the test several times with different configurations.
 		int i = 0;
 		while(i < 1000){
-			testBucketAux(r.nextInt(MAX_OBJECTS), 0 ); //  r.nextInt(MAX_PIVOTS));
+			testBucketAux(r.nextInt(MAX_OBJECTS), r.nextInt(MAX_PIVOTS));
 			i++;
 		}
 	}
 
+	/**
+	 * Several threads search the same view; the objects they load lazily must
+	 * not be lost or mixed up.
+	 */
+	@Test
+	public void testConcurrentSearch() throws Exception {
+		final SleekBucketShort<L1> bucket = new SleekBucketShort<L1>(L1.class,
+				MAX_PIVOTS);
+		final List<L1> objects = new ArrayList<L1>(MAX_OBJECTS);
+		int i = 0;
+		while (i < MAX_OBJECTS) {
+			L1 o = generateObject();
+			if (!objects.contains(o)) {
+				bucket.insert(new BucketObjectShort<L1>(null, i, o), o);
+				objects.add(o);
+				i++;
+			}
+		}
+		final SleekBucketShort<L1> view = new SleekBucketShort<L1>(L1.class,
+				MAX_PIVOTS, bucket.serialize());
+		final List<Throwable> errors = new LinkedList<Throwable>();
+		Thread[] threads = new Thread[4];
+		i = 0;
+		while (i < threads.length) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						testSearch(bucket, view, objects);
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[i].start();
+			i++;
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
 	public void testBucketAux(int maxObjects, int maxPivots)
 			throws IllegalIdException, OBException, IllegalAccessException,
 			InstantiationException, IOException {
@@ -85,7 +136,88 @@ public class TestSleekBucketShort {
 		SleekBucketShort<L1> deSerializedBucket = new SleekBucketShort<L1>(
 				L1.class, maxPivots, data);
 		assertEquals(bucket, deSerializedBucket);
+		// vectors of the same size are stored by columns.
+		int header = ByteConversion.createByteBuffer(data).getInt();
+		assertEquals(maxObjects > 0, (header & SleekBucketShort.COLUMNAR) != 0);
+		assertTrue(Arrays.equals(data, deSerializedBucket.serialize()));
+		// ids are sorted and stored as varints.
+		assertEquals(maxObjects > 0, (header & SleekBucketShort.SORTED_IDS) != 0);
+		// compressed buckets are restored as they were.
+		BucketCodec codec = new DeflateBucketCodec();
+		assertTrue(Arrays.equals(data, codec.decode(codec.encode(data))));
 		
+		// a bucket that is only searched keeps its serialized form.
+		SleekBucketShort<L1> view = new SleekBucketShort<L1>(L1.class,
+				maxPivots, data);
+		testSearch(bucket, view, objects);
+		assertTrue(Arrays.equals(data, view.serialize()));
+		
+		// deleted objects are not found and not returned by the searches.
+		SleekBucketShort<L1> tombstones = new SleekBucketShort<L1>(L1.class,
+				maxPivots, data);
+		List<L1> live = new ArrayList<L1>(objects);
+		i = 0;
+		while(i < objects.size() / 8){
+			L1 o = live.remove(r.nextInt(live.size()));
+			assertEquals(Status.OK, tombstones.delete(null, o).getStatus());
+			assertEquals(Status.NOT_EXISTS, tombstones.exists(null, o).getStatus());
+			i++;
+		}
+		assertEquals(live.size(), tombstones.size());
+		testSearch(tombstones, tombstones, live);
+		SleekBucketShort<L1> compacted = new SleekBucketShort<L1>(L1.class,
+				maxPivots, tombstones.serialize());
+		assertEquals(live.size(), compacted.size());
+		
+		// objects inserted into a view are found before the data is loaded.
+		SleekBucketShort<L1> appended = new SleekBucketShort<L1>(L1.class,
+				maxPivots, data);
+		List<L1> more = new ArrayList<L1>(objects);
+		i = 0;
+		while(i < 20){
+			L1 o = generateObject();
+			if(! more.contains(o)){
+				BucketObjectShort<L1> b = new BucketObjectShort<L1>(null, maxObjects + i, o);
+				assertEquals(Status.OK, appended.insert(b, o).getStatus());
+				assertEquals(Status.EXISTS, appended.insert(b, o).getStatus());
+				more.add(o);
+				i++;
+			}
+		}
+		// delete an object of the data and an inserted one.
+		if(maxObjects > 0){
+			assertEquals(Status.OK, appended.delete(null, more.remove(0)).getStatus());
+		}
+		assertEquals(Status.OK, appended.delete(null, more.remove(more.size() - 1)).getStatus());
+		for(L1 o : more){
+			assertEquals(Status.EXISTS, appended.exists(null, o).getStatus());
+		}
+		assertEquals(more.size(), appended.size());
+		testSearch(appended, appended, more);
+		SleekBucketShort<L1> reloaded = new SleekBucketShort<L1>(L1.class,
+				maxPivots, appended.serialize());
+		assertEquals(appended, reloaded);
+
+		// modifying a copy does not change the bucket it was copied from.
+		SleekBucketShort<L1> copy = view.copy();
+		List<L1> copied = new ArrayList<L1>(objects);
+		i = 0;
+		while(i < objects.size() / 2){
+			assertEquals(Status.OK, copy.delete(null, copied.remove(r.nextInt(copied.size()))).getStatus());
+			i++;
+		}
+		L1 extra = generateObject();
+		if(! objects.contains(extra)){
+			assertEquals(Status.OK, copy.insert(new BucketObjectShort<L1>(null, maxObjects, extra), extra).getStatus());
+			copied.add(extra);
+		}
+		assertEquals(copied.size(), copy.size());
+		assertEquals(objects.size(), view.size());
+		assertEquals(objects.size(), view.getObjects().size());
+		testSearch(copy, copy, copied);
+		testSearch(bucket, view, objects);
+		assertTrue(Arrays.equals(data, view.serialize()));
+
 		testUpdateOperations(buckets, objects, bucket);
 		testUpdateOperations(buckets, objects, deSerializedBucket);
 		// end result should be the same.
@@ -93,6 +225,44 @@ public class TestSleekBucketShort {
 		
 	}
 	
+	/**
+	 * Searches on a loaded bucket and on a view of its data must return the
+	 * same results, and the pivots must not discard any object of the result.
+	 */
+	private void testSearch(SleekBucketShort<L1> bucket, SleekBucketShort<L1> view, List<L1> objects) throws IllegalIdException, OBException, IllegalAccessException, InstantiationException{
+		int i = 0;
+		while(i < 10){
+			L1 q = generateObject();
+			OBQueryShort<L1> expected = new OBQueryShort<L1>(q, Short.MAX_VALUE, new OBPriorityQueueShort<L1>(10), null);
+			OBQueryShort<L1> actual = new OBQueryShort<L1>(q, Short.MAX_VALUE, new OBPriorityQueueShort<L1>(10), null);
+			bucket.search(expected, new BucketObjectShort<L1>(null, -1, q), null, new Statistics());
+			view.search(actual, new BucketObjectShort<L1>(null, -1, q), null, new Statistics());
+			List<OBResultShort<L1>> e = expected.getResult().getSortedElements();
+			List<OBResultShort<L1>> a = actual.getResult().getSortedElements();
+			assertEquals(e.size(), a.size());
+			// sequential scan.
+			short[] all = new short[objects.size()];
+			int j = 0;
+			while(j < all.length){
+				all[j] = q.distance(objects.get(j));
+				j++;
+			}
+			Arrays.sort(all);
+			j = 0;
+			while(j < e.size()){
+				assertEquals(all[j], e.get(j).getDistance());
+				j++;
+			}
+			j = 0;
+			while(j < e.size()){
+				assertEquals(e.get(j).getDistance(), a.get(j).getDistance());
+				assertEquals(e.get(j).getObject(), a.get(j).getObject());
+				j++;
+			}
+			i++;
+		}
+	}
+	
 	private void testUpdateOperations(List<BucketObjectShort<L1>> buckets, List<L1> objects,  SleekBucketShort<L1> bucket) throws IllegalIdException, OBException, IllegalAccessException, InstantiationException{
 		// check size.		
 		assertEquals(bucket.size(), objects.size());
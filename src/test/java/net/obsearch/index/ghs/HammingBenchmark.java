@@ -0,0 +1,110 @@
+package net.obsearch.index.ghs;
+
+import java.util.Random;
+
+/**
+ * Micro benchmark of the simple loop of {@link Hamming} against a kernel
+ * unrolled four words at a time with independent accumulators. Each
+ * round scans a matrix of sketches with a random query, as the bucket ranking
+ * of {@link AbstractSketch64} does. An index uses a single sketch width, so
+ * run one width per JVM to keep the profile of the JIT realistic:
+ * 
+ * <pre>
+ * java net.obsearch.index.ghs.HammingBenchmark [sketches] [rounds] [m]
+ * </pre>
+ */
+public class HammingBenchmark {
+
+	private static final int[] M = { 64, 128, 256, 512, 1024, 2048, 4096 };
+
+	public static void main(String[] args) {
+		int sketches = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int[] widths = args.length > 2 ? new int[] { Integer.parseInt(args[2]) }
+				: M;
+		Random r = new Random(7);
+		for (int m : widths) {
+			int wps = m / 64;
+			long[] matrix = new long[sketches * wps];
+			int i = 0;
+			while (i < matrix.length) {
+				matrix[i] = r.nextLong();
+				i++;
+			}
+			long[] query = new long[wps];
+			i = 0;
+			while (i < wps) {
+				query[i] = r.nextLong();
+				i++;
+			}
+			// warm up both kernels.
+			long check = scalar(query, matrix, sketches, wps)
+					- unrolled(query, matrix, sketches, wps);
+			long scalarTime = 0;
+			long unrolledTime = 0;
+			int round = 0;
+			while (round < rounds) {
+				long time = System.nanoTime();
+				check += scalar(query, matrix, sketches, wps);
+				scalarTime += System.nanoTime() - time;
+				time = System.nanoTime();
+				check -= unrolled(query, matrix, sketches, wps);
+				unrolledTime += System.nanoTime() - time;
+				round++;
+			}
+			System.out.println("m=" + m + " scalar: "
+					+ (scalarTime / rounds / 1000) + " us unrolled: "
+					+ (unrolledTime / rounds / 1000) + " us speedup: "
+					+ ((double) scalarTime / unrolledTime)
+					+ (check == 0 ? "" : " MISMATCH"));
+		}
+	}
+
+	private static long scalar(long[] query, long[] matrix, int sketches,
+			int wps) {
+		long total = 0;
+		int s = 0;
+		while (s < sketches) {
+			total += Hamming.distance(query, matrix, s * wps, wps);
+			s++;
+		}
+		return total;
+	}
+
+	private static long unrolled(long[] query, long[] matrix, int sketches,
+			int wps) {
+		long total = 0;
+		int s = 0;
+		while (s < sketches) {
+			total += unrolledDistance(query, matrix, s * wps, wps);
+			s++;
+		}
+		return total;
+	}
+
+	private static int unrolledDistance(long[] a, long[] b, int offset,
+			int length) {
+		int r0 = 0;
+		int r1 = 0;
+		int r2 = 0;
+		int r3 = 0;
+		int i = 0;
+		int j = offset;
+		int unrolled = length - 3;
+		while (i < unrolled) {
+			r0 += Long.bitCount(a[i] ^ b[j]);
+			r1 += Long.bitCount(a[i + 1] ^ b[j + 1]);
+			r2 += Long.bitCount(a[i + 2] ^ b[j + 2]);
+			r3 += Long.bitCount(a[i + 3] ^ b[j + 3]);
+			i += 4;
+			j += 4;
+		}
+		while (i < length) {
+			r0 += Long.bitCount(a[i] ^ b[j]);
+			i++;
+			j++;
+		}
+		return (r0 + r1) + (r2 + r3);
+	}
+
+}
@@ -4,6 +4,8 @@ package net.obsearch.index.ghs;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import net.obsearch.exception.OBException;
@@ -79,6 +81,51 @@ public class TestCompressedBitSet {
 		assertTrue(Arrays.equals(data, bitSet.getAll()));
 	}
 	
+	/**
+	 * Random access, lookups and parallel scans of dense and sparse sets.
+	 */
+	@Test
+	public void testRandomAccess() throws OBException {
+		testRandomAccessAux(1, 1);
+		testRandomAccessAux(100000, 3);
+		testRandomAccessAux(100000, Long.MAX_VALUE / 400000);
+	}
+	
+	private void testRandomAccessAux(int size, long maxGap) throws OBException {
+		// the elements span at most a quarter of the long range.
+		long[] data = new long[size];
+		CompressedBitSet64 bitSet = new CompressedBitSet64();
+		long prev = r.nextLong() / 4;
+		int i = 0;
+		while(i < data.length){
+			data[i] = prev;
+			bitSet.add(prev);
+			prev += 1 + (r.nextLong() >>> 1) % maxGap;
+			i++;
+		}
+		bitSet.commit();
+		assertTrue(Arrays.equals(data, bitSet.getAll()));
+		i = 0;
+		while(i < data.length){
+			assertEquals(data[i], bitSet.get(i));
+			assertEquals(i, bitSet.indexOf(data[i]));
+			i++;
+		}
+		assertEquals(-1, bitSet.indexOf(data[data.length - 1] + 1));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			int q = 0;
+			while(q < 10){
+				long query = nextLong();
+				assertTrue(Arrays.equals(bitSet.searchBuckets(query, F, M),
+						bitSet.searchBuckets(query, F, M, executor, 4)));
+				q++;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
 	
 
 }
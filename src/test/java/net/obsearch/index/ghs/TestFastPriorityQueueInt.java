@@ -0,0 +1,70 @@
+package net.obsearch.index.ghs;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compare the counting top-k against a full sort of the distances.
+ */
+public class TestFastPriorityQueueInt {
+
+	private final int TOTAL = 10000;
+	private final int MAX_DISTANCE = 64;
+	private Random r = new Random();
+
+	@Test
+	public void testQueue() {
+		testQueueAux(1);
+		testQueueAux(10);
+		testQueueAux(1000);
+		testQueueAux(TOTAL * 2);
+	}
+
+	/**
+	 * A queue of size 0 ignores the elements.
+	 */
+	@Test
+	public void testEmptyQueue() {
+		FastPriorityQueueInt queue = new FastPriorityQueueInt(MAX_DISTANCE, 0);
+		int i = 0;
+		while (i < 100) {
+			queue.add(i, r.nextInt(MAX_DISTANCE + 1));
+			i++;
+		}
+		assertEquals(0, queue.size());
+		assertEquals(0, queue.get().length);
+		assertEquals(0, queue.getDistances().length);
+		assertEquals(-1, queue.getCut());
+	}
+
+	private void testQueueAux(int top) {
+		FastPriorityQueueInt queue = new FastPriorityQueueInt(MAX_DISTANCE, top);
+		int[] distances = new int[TOTAL];
+		int i = 0;
+		while (i < TOTAL) {
+			distances[i] = r.nextInt(MAX_DISTANCE + 1);
+			queue.add(i, distances[i]);
+			i++;
+		}
+		int[] sorted = distances.clone();
+		Arrays.sort(sorted);
+		int[] data = queue.get();
+		int[] dists = queue.getDistances();
+		assertEquals(Math.min(top, TOTAL), data.length);
+		assertEquals(data.length, dists.length);
+		i = 0;
+		while (i < data.length) {
+			assertEquals(sorted[i], dists[i]);
+			assertEquals(distances[data[i]], dists[i]);
+			i++;
+		}
+		queue.clear();
+		assertEquals(0, queue.size());
+		assertEquals(MAX_DISTANCE, queue.getCut());
+	}
+
+}
@@ -0,0 +1,48 @@
+package net.obsearch.index.ghs;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compare the hamming kernel against a simple loop.
+ */
+public class TestHamming {
+
+	private Random r = new Random();
+
+	@Test
+	public void testDistance() {
+		int length = 0;
+		while (length <= 20) {
+			long[] a = random(length);
+			long[] b = random(length + 7);
+			int offset = 0;
+			while (offset <= 7) {
+				int expected = 0;
+				int i = 0;
+				while (i < length) {
+					expected += Long.bitCount(a[i] ^ b[offset + i]);
+					i++;
+				}
+				assertEquals(expected, Hamming.distance(a, b, offset, length));
+				offset++;
+			}
+			assertEquals(0, Hamming.distance(a, a));
+			length++;
+		}
+	}
+
+	private long[] random(int length) {
+		long[] res = new long[length];
+		int i = 0;
+		while (i < length) {
+			res[i] = r.nextLong();
+			i++;
+		}
+		return res;
+	}
+
+}
@@ -0,0 +1,215 @@
+package net.obsearch.index.ghs;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Check that the multi-index returns the same distances as a linear scan of
+ * the sketches.
+ */
+public class TestMultiIndexHash {
+
+	private final int TOTAL = 20000;
+	private final int CENTERS = 50;
+	private final int QUERIES = 200;
+	private Random r = new Random();
+
+	/**
+	 * Generate a sketch close to the given center (or a random one if center
+	 * is null).
+	 */
+	private CBitVector generate(int m, CBitVector center, int flips) {
+		CBitVector v = new CBitVector(m);
+		int i = 0;
+		while (i < m) {
+			if (center == null ? r.nextBoolean() : center.get(i)) {
+				v.set(i);
+			}
+			i++;
+		}
+		i = 0;
+		while (center != null && i < flips) {
+			int b = r.nextInt(m);
+			if (v.get(b)) {
+				v.clear(b);
+			} else {
+				v.set(b);
+			}
+			i++;
+		}
+		return v;
+	}
+
+	@Test
+	public void testSearch() {
+		testSearchAux(64, 4, 1);
+		testSearchAux(64, 3, 10);
+		testSearchAux(256, 8, 100);
+		testSearchAux(100, 5, 30);
+	}
+
+	/**
+	 * Each thread reuses its own set of found sketches.
+	 */
+	@Test
+	public void testConcurrentSearch() throws Exception {
+		final int m = 64;
+		final CBitVector[] centers = new CBitVector[CENTERS];
+		int i = 0;
+		while (i < CENTERS) {
+			centers[i] = generate(m, null, 0);
+			i++;
+		}
+		final SketchMatrix matrix = new SketchMatrix(m, TOTAL);
+		i = 0;
+		while (i < TOTAL) {
+			matrix.add(generate(m, centers[r.nextInt(CENTERS)], r.nextInt(m / 8)));
+			i++;
+		}
+		final MultiIndexHash index = new MultiIndexHash(matrix, 4);
+		final Throwable[] error = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		i = 0;
+		while (i < threads.length) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						checkQueries(m, matrix, index, centers, 10);
+					} catch (Throwable e) {
+						error[0] = e;
+					}
+				}
+			};
+			threads[i].start();
+			i++;
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertNull(error[0]);
+	}
+
+	/**
+	 * Searches running while sketches are appended and indexed return the
+	 * right distances for the sketches they find.
+	 */
+	@Test
+	public void testSearchWhileUpdating() throws Exception {
+		final int m = 64;
+		final CBitVector[] centers = new CBitVector[CENTERS];
+		int i = 0;
+		while (i < CENTERS) {
+			centers[i] = generate(m, null, 0);
+			i++;
+		}
+		// start small so that the words of the matrix are replaced.
+		final SketchMatrix matrix = new SketchMatrix(m, 1);
+		i = 0;
+		while (i < 100) {
+			matrix.add(generate(m, centers[r.nextInt(CENTERS)], r.nextInt(m / 8)));
+			i++;
+		}
+		final MultiIndexHash index = new MultiIndexHash(matrix, 4);
+		final Throwable[] error = new Throwable[1];
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		i = 0;
+		while (i < threads.length) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							CBitVector query = generate(m, centers[r
+									.nextInt(CENTERS)], r.nextInt(m / 4));
+							FastPriorityQueueInt actual = new FastPriorityQueueInt(
+									m, 10);
+							index.search(query.elements(), actual);
+							int[] ordinals = actual.get();
+							int[] distances = actual.getDistances();
+							int cx = 0;
+							while (cx < ordinals.length) {
+								assertEquals(query.hamming(matrix
+										.getSketch(ordinals[cx])),
+										distances[cx]);
+								cx++;
+							}
+						}
+					} catch (Throwable e) {
+						error[0] = e;
+					}
+				}
+			};
+			threads[i].start();
+			i++;
+		}
+		i = 0;
+		while (i < TOTAL) {
+			matrix.add(generate(m, centers[r.nextInt(CENTERS)], r.nextInt(m / 8)));
+			if (i % 10 == 0) {
+				index.update();
+			}
+			i++;
+		}
+		index.update();
+		done.set(true);
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertNull(error[0]);
+		checkQueries(m, matrix, index, centers, 10);
+	}
+
+	private void testSearchAux(int m, int substrings, int k) {
+		CBitVector[] centers = new CBitVector[CENTERS];
+		int i = 0;
+		while (i < CENTERS) {
+			centers[i] = generate(m, null, 0);
+			i++;
+		}
+		SketchMatrix matrix = new SketchMatrix(m, TOTAL);
+		i = 0;
+		while (i < TOTAL / 2) {
+			matrix.add(generate(m, centers[r.nextInt(CENTERS)], r.nextInt(m / 8)));
+			i++;
+		}
+		MultiIndexHash index = new MultiIndexHash(matrix, substrings);
+		checkQueries(m, matrix, index, centers, k);
+		// sketches added after the index was built.
+		while (i < TOTAL) {
+			matrix.add(generate(m, centers[r.nextInt(CENTERS)], r.nextInt(m / 8)));
+			i++;
+		}
+		index.update();
+		checkQueries(m, matrix, index, centers, k);
+	}
+
+	private void checkQueries(int m, SketchMatrix matrix, MultiIndexHash index,
+			CBitVector[] centers, int k) {
+		int q = 0;
+		while (q < QUERIES) {
+			CBitVector query = q % 4 == 0 ? generate(m, null, 0) : generate(m,
+					centers[r.nextInt(CENTERS)], r.nextInt(m / 4));
+			FastPriorityQueueInt expected = new FastPriorityQueueInt(m, k);
+			int i = 0;
+			while (i < matrix.size()) {
+				expected.add(i, matrix.hamming(query.elements(), i));
+				i++;
+			}
+			FastPriorityQueueInt actual = new FastPriorityQueueInt(m, k);
+			index.search(query.elements(), actual);
+			assertTrue(Arrays.equals(expected.getDistances(), actual
+					.getDistances()));
+			for (int o : actual.get()) {
+				assertEquals(query.hamming(matrix.getSketch(o)), matrix.hamming(
+						query.elements(), o));
+			}
+			q++;
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package net.obsearch.index.ghs;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check that the sketch set removes the same duplicates as a HashMap of
+ * CBitVectors.
+ */
+public class TestSketchHashSet {
+
+	private final int TOTAL = 50000;
+	private Random r = new Random();
+
+	@Test
+	public void testSet() {
+		testSetAux(64, 12);
+		testSetAux(100, 14);
+		testSetAux(256, 16);
+	}
+
+	/**
+	 * Only the first bits bits of each sketch are random so that there are
+	 * plenty of duplicates.
+	 */
+	private void testSetAux(int m, int bits) {
+		SketchMatrix matrix = new SketchMatrix(m, 1);
+		SketchHashSet set = new SketchHashSet(matrix, 1);
+		HashMap<CBitVector, Integer> expected = new HashMap<CBitVector, Integer>();
+		int i = 0;
+		while (i < TOTAL) {
+			CBitVector v = new CBitVector(m);
+			int cx = 0;
+			while (cx < bits) {
+				if (r.nextBoolean()) {
+					v.set(r.nextInt(m));
+				}
+				cx++;
+			}
+			boolean added = set.add(v.elements());
+			assertEquals(!expected.containsKey(v), added);
+			if (added) {
+				expected.put(v, matrix.size() - 1);
+			}
+			assertEquals(expected.get(v).intValue(), set.indexOf(v.elements()));
+			i++;
+		}
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected.size(), matrix.size());
+		for (CBitVector v : expected.keySet()) {
+			assertEquals(v, matrix.getSketch(set.indexOf(v.elements())));
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package net.obsearch.index.ghs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check that the flat sketch matrix behaves exactly like a list of CBitVectors.
+ */
+public class TestSketchMatrix {
+
+	private final int TOTAL = 10000;
+	private final int QUERIES = 100;
+	private Random r = new Random();
+
+	private CBitVector generate(int m) {
+		CBitVector v = new CBitVector(m);
+		int i = 0;
+		while (i < m) {
+			if (r.nextBoolean()) {
+				v.set(i);
+			}
+			i++;
+		}
+		return v;
+	}
+
+	@Test
+	public void testMatrix() throws IOException {
+		testMatrixAux(64);
+		testMatrixAux(256);
+		testMatrixAux(100);
+	}
+
+	private void testMatrixAux(int m) throws IOException {
+		SketchMatrix matrix = new SketchMatrix(m, 10);
+		List<CBitVector> sketches = new ArrayList<CBitVector>(TOTAL);
+		int i = 0;
+		while (i < TOTAL) {
+			CBitVector v = generate(m);
+			assertEquals(i, matrix.add(v));
+			sketches.add(v);
+			i++;
+		}
+		matrix.trim();
+		assertEquals(TOTAL, matrix.size());
+		i = 0;
+		while (i < TOTAL) {
+			CBitVector v = sketches.get(i);
+			assertEquals(v, matrix.getSketch(i));
+			assertTrue(Arrays.equals(v.store(), matrix.getAddress(i)));
+			i++;
+		}
+		int q = 0;
+		while (q < QUERIES) {
+			CBitVector query = generate(m);
+			i = 0;
+			while (i < TOTAL) {
+				assertEquals(query.hamming(sketches.get(i)), matrix.hamming(
+						query.elements(), i));
+				i++;
+			}
+			q++;
+		}
+		testMapAux(matrix, sketches);
+	}
+
+	/**
+	 * Write the matrix, map it back and append a sketch to the mapped copy.
+	 */
+	private void testMapAux(SketchMatrix matrix, List<CBitVector> sketches)
+			throws IOException {
+		File file = File.createTempFile("sketches", ".bin");
+		file.deleteOnExit();
+		matrix.write(file, 77);
+		assertNull(SketchMatrix.map(file, matrix.getM(), 78));
+		assertNull(SketchMatrix.map(file, matrix.getM() + 1, 77));
+		SketchMatrix mapped = SketchMatrix.map(file, matrix.getM(), 77);
+		assertTrue(mapped.isMapped());
+		assertEquals(matrix.size(), mapped.size());
+		CBitVector query = generate(matrix.getM());
+		int i = 0;
+		while (i < sketches.size()) {
+			assertEquals(sketches.get(i), mapped.getSketch(i));
+			assertTrue(Arrays.equals(matrix.getAddress(i), mapped.getAddress(i)));
+			assertEquals(matrix.hamming(query.elements(), i), mapped.hamming(
+					query.elements(), i));
+			i++;
+		}
+		// tiny segments so that sketches cross segment boundaries.
+		SketchMatrix segmented = SketchMatrix.map(file, matrix.getM(), 77, 3);
+		assertEquals(matrix.size(), segmented.size());
+		i = 0;
+		while (i < sketches.size()) {
+			assertEquals(sketches.get(i), segmented.getSketch(i));
+			assertTrue(Arrays.equals(matrix.getAddress(i), segmented
+					.getAddress(i)));
+			assertEquals(matrix.hamming(query.elements(), i), segmented
+					.hamming(query.elements(), i));
+			i++;
+		}
+		// rewriting the file does not change the matrices mapped from it.
+		SketchMatrix empty = new SketchMatrix(matrix.getM(), 1);
+		empty.write(file, 79);
+		assertNull(SketchMatrix.map(file, matrix.getM(), 77));
+		assertEquals(0, SketchMatrix.map(file, matrix.getM(), 79).size());
+		assertEquals(sketches.get(sketches.size() - 1), segmented
+				.getSketch(sketches.size() - 1));
+		for (String name : file.getAbsoluteFile().getParentFile().list()) {
+			assertFalse(name.startsWith(file.getName()) && name.endsWith(".tmp"));
+		}
+		CBitVector more = generate(matrix.getM());
+		assertEquals(sketches.size(), segmented.add(more));
+		assertEquals(more, segmented.getSketch(sketches.size()));
+		assertEquals(sketches.get(sketches.size() - 1), segmented
+				.getSketch(sketches.size() - 1));
+		CBitVector extra = generate(matrix.getM());
+		assertEquals(sketches.size(), mapped.add(extra));
+		assertFalse(mapped.isMapped());
+		assertEquals(extra, mapped.getSketch(sketches.size()));
+		assertEquals(sketches.get(0), mapped.getSketch(0));
+	}
+
+}
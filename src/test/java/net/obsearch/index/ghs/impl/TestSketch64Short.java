@@ -0,0 +1,488 @@
+package net.obsearch.index.ghs.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.obsearch.OperationStatus;
+import net.obsearch.Status;
+import net.obsearch.ambient.mmap.AmbientMMap;
+import net.obsearch.cache.ByteArrayKey;
+import net.obsearch.example.l1.L1;
+import net.obsearch.index.bucket.sleek.SleekBucketShort;
+import net.obsearch.pivots.AcceptAll;
+import net.obsearch.pivots.rf03.RF03PivotSelectorShort;
+import net.obsearch.query.OBQueryShort;
+import net.obsearch.result.OBPriorityQueueShort;
+import net.obsearch.storage.CloseIterator;
+import net.obsearch.storage.TupleBytes;
+import net.obsearch.storage.bdb.Utils;
+
+import org.junit.Test;
+
+/**
+ * Test the bucket management of Sketch64Short: the freeze pipeline, the
+ * inserts after freeze and the split buckets.
+ */
+public class TestSketch64Short {
+
+	private final int TOTAL_DIMS = 8;
+	private final int MAX_DIM_VALUE = 100;
+	private Random r = new Random();
+
+	private L1 generateObject() {
+		short[] data = new short[TOTAL_DIMS];
+		int i = 0;
+		while (i < data.length) {
+			data[i] = (short) r.nextInt(MAX_DIM_VALUE);
+			i++;
+		}
+		return new L1(data);
+	}
+
+	private List<L1> generateObjects(int total) {
+		List<L1> res = new ArrayList<L1>(total);
+		int i = 0;
+		while (i < total) {
+			res.add(generateObject());
+			i++;
+		}
+		return res;
+	}
+
+	private Sketch64Short<L1> createIndex(int m) throws Exception {
+		return createIndex(m, 0);
+	}
+
+	private Sketch64Short<L1> createIndex(int m, int bucketPivots)
+			throws Exception {
+		RF03PivotSelectorShort<L1> sel = new RF03PivotSelectorShort<L1>(
+				new AcceptAll<L1>());
+		sel.setDataSample(100);
+		sel.setRepetitions(20);
+		Sketch64Short<L1> index = new Sketch64Short<L1>(L1.class, sel, m,
+				bucketPivots);
+		index.setSampleSize(20);
+		index.setMaxK(new int[] { 1 });
+		return index;
+	}
+
+	private void insert(Sketch64Short<L1> index, List<L1> data)
+			throws Exception {
+		for (L1 o : data) {
+			OperationStatus res = index.insert(o);
+			assertTrue(res.getStatus() == Status.OK);
+		}
+	}
+
+	/**
+	 * Every object is found with its id.
+	 */
+	private void checkExists(Sketch64Short<L1> index, List<L1> data)
+			throws Exception {
+		int i = 0;
+		while (i < data.size()) {
+			OperationStatus res = index.exists(data.get(i));
+			assertTrue(res.getStatus() == Status.EXISTS);
+			assertEquals((long) i, res.getId());
+			i++;
+		}
+	}
+
+	/**
+	 * Every object is its own nearest neighbor.
+	 */
+	private void checkSearch(Sketch64Short<L1> index, List<L1> data)
+			throws Exception {
+		int i = 0;
+		while (i < data.size()) {
+			OBPriorityQueueShort<L1> result = new OBPriorityQueueShort<L1>(1);
+			index.searchOB(data.get(i), (short) 0, result);
+			assertEquals(1, result.getSize());
+			assertEquals((long) i, result.getSortedElements().get(0).getId());
+			i++;
+		}
+	}
+
+	/**
+	 * @return number of objects in the stored buckets, the deltas are not
+	 *         included.
+	 */
+	private int storedObjects(Sketch64Short<L1> index) throws Exception {
+		int total = 0;
+		CloseIterator<TupleBytes> it = index.getBuckets().processAll();
+		while (it.hasNext()) {
+			total += new SleekBucketShort<L1>(L1.class, 0, it.next().getValue())
+					.size();
+		}
+		it.closeCursor();
+		return total;
+	}
+
+	/**
+	 * The freeze pipeline (several spilled runs) creates the same buckets as
+	 * inserting the objects one by one in the bucket of their address.
+	 */
+	@Test
+	public void testFreeze() throws Exception {
+		Sketch64Short<L1> index = createIndex(12);
+		index.setFreezeRunMemory(1);
+		index.init(Utils.getFactoryMMap());
+		List<L1> data = generateObjects(10000);
+		insert(index, data);
+		index.freeze();
+		Map<ByteArrayKey, Integer> expected = new HashMap<ByteArrayKey, Integer>();
+		for (L1 o : data) {
+			ByteArrayKey k = new ByteArrayKey(index.getAddress(index
+					.getBucket(o)));
+			Integer c = expected.get(k);
+			expected.put(k, c == null ? 1 : c + 1);
+		}
+		List<Integer> expectedSizes = new ArrayList<Integer>(expected.values());
+		List<Integer> sizes = new ArrayList<Integer>();
+		Iterator<SleekBucketShort<L1>> it = index.iterateBuckets();
+		while (it.hasNext()) {
+			sizes.add(it.next().size());
+		}
+		Collections.sort(expectedSizes);
+		Collections.sort(sizes);
+		assertEquals(expectedSizes, sizes);
+		checkExists(index, data);
+		index.close();
+	}
+
+	/**
+	 * The pivots of the buckets are objects of the database too: the k-nn
+	 * graphs and the split buckets must not lose them.
+	 */
+	@Test
+	public void testBucketPivots() throws Exception {
+		Sketch64Short<L1> index = createIndex(4, 4);
+		index.setMaxBucketSize(300);
+		index.init(Utils.getFactoryMMap());
+		List<L1> data = generateObjects(2000);
+		insert(index, data);
+		index.freeze();
+		assertEquals(4, index.getBucketPivotCount());
+		checkExists(index, data);
+		int queries = 0;
+		Iterator<List<OBQueryShort<L1>>> it = index.knnGraph(1,
+				Short.MAX_VALUE);
+		while (it.hasNext()) {
+			queries += it.next().size();
+		}
+		assertEquals(data.size(), queries);
+		File out = File.createTempFile("knn", ".bin");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertEquals(data.size(), index.knnGraph(1, Short.MAX_VALUE, out,
+					executor, 2));
+			// every object has its edge.
+			boolean[] found = new boolean[data.size()];
+			DataInputStream in = new DataInputStream(new FileInputStream(out));
+			int i = 0;
+			while (i < data.size()) {
+				found[(int) in.readLong()] = true;
+				in.readLong();
+				in.readShort();
+				i++;
+			}
+			in.close();
+			for (boolean f : found) {
+				assertTrue(f);
+			}
+		} finally {
+			executor.shutdown();
+			out.delete();
+		}
+		index.close();
+	}
+
+	/**
+	 * Queries with the adaptive budget still find their own object.
+	 */
+	@Test
+	public void testAdaptiveBudget() throws Exception {
+		Sketch64Short<L1> index = createIndex(16);
+		index.setAdaptiveBudget(true);
+		index.init(Utils.getFactoryMMap());
+		List<L1> data = generateObjects(2000);
+		insert(index, data);
+		index.freeze();
+		checkSearch(index, data);
+		index.close();
+	}
+
+	/**
+	 * Oversized buckets are split in parts: objects are routed to the part of
+	 * their closest center and the searches skip the parts that cannot hold
+	 * a result.
+	 */
+	@Test
+	public void testSplit() throws Exception {
+		Sketch64Short<L1> index = createIndex(4);
+		index.setMaxBucketSize(100);
+		index.init(Utils.getFactoryMMap());
+		List<L1> data = generateObjects(4000);
+		List<L1> frozen = data.subList(0, 3000);
+		insert(index, frozen);
+		index.freeze();
+		Set<ByteArrayKey> addresses = new HashSet<ByteArrayKey>();
+		for (L1 o : frozen) {
+			addresses.add(new ByteArrayKey(index.getAddress(index.getBucket(o))));
+		}
+		int parts = 0;
+		int total = 0;
+		Iterator<SleekBucketShort<L1>> it = index.iterateBuckets();
+		while (it.hasNext()) {
+			int size = it.next().size();
+			assertTrue(size <= index.getMaxBucketSize());
+			total += size;
+			parts++;
+		}
+		assertEquals(frozen.size(), total);
+		assertTrue(parts > addresses.size());
+		checkExists(index, frozen);
+		index.resetStats();
+		checkSearch(index, frozen);
+		int skipped = index.getStats().getExtra("Parts_skipped");
+		assertTrue(skipped > 0);
+		// routing objects does not change the parts.
+		for (L1 o : data.subList(frozen.size(), data.size())) {
+			assertEquals(Status.NOT_EXISTS, index.exists(o).getStatus());
+		}
+		index.resetStats();
+		checkSearch(index, frozen);
+		assertEquals(skipped, index.getStats().getExtra("Parts_skipped"));
+		// inserted objects grow the radius of their part.
+		insert(index, data.subList(frozen.size(), data.size()));
+		checkExists(index, data);
+		checkSearch(index, data);
+		index.close();
+	}
+
+	/**
+	 * Copies of the same object cannot be separated by the centers of a
+	 * split, they are stored in several parts that are all checked by exists
+	 * and delete.
+	 */
+	@Test
+	public void testSplitDuplicates() throws Exception {
+		Sketch64Short<L1> index = createIndex(4);
+		index.setMaxBucketSize(100);
+		index.init(Utils.getFactoryMMap());
+		List<L1> distinct = generateObjects(5);
+		int copies = 300;
+		for (L1 o : distinct) {
+			int i = 0;
+			while (i < copies) {
+				assertEquals(Status.OK, index.insertBulk(o).getStatus());
+				i++;
+			}
+		}
+		index.freeze();
+		int total = 0;
+		Iterator<SleekBucketShort<L1>> it = index.iterateBuckets();
+		while (it.hasNext()) {
+			int size = it.next().size();
+			assertTrue(size <= index.getMaxBucketSize());
+			total += size;
+		}
+		assertEquals(distinct.size() * copies, total);
+		for (L1 o : distinct) {
+			OBPriorityQueueShort<L1> result = new OBPriorityQueueShort<L1>(1);
+			index.searchOB(o, (short) 0, result);
+			assertEquals(1, result.getSize());
+			int i = 0;
+			while (i < copies) {
+				assertEquals(Status.EXISTS, index.exists(o).getStatus());
+				assertEquals(Status.OK, index.delete(o).getStatus());
+				i++;
+			}
+			assertEquals(Status.NOT_EXISTS, index.exists(o).getStatus());
+		}
+		index.close();
+	}
+
+	/**
+	 * Objects inserted after the freeze go to the delta logs and to the
+	 * cached buckets; buckets read again merge their deltas.
+	 */
+	@Test
+	public void testDeltas() throws Exception {
+		File dir = Utils.getTestDirectory();
+		Sketch64Short<L1> index = createIndex(8);
+		index.setDeltaCompaction(Integer.MAX_VALUE);
+		AmbientMMap<L1, Sketch64Short<L1>> a = new AmbientMMap<L1, Sketch64Short<L1>>(
+				index, dir);
+		List<L1> data = generateObjects(3000);
+		insert(index, data.subList(0, 2000));
+		a.freeze();
+		// load the buckets in the cache before the deltas are appended.
+		checkExists(index, data.subList(0, 2000));
+		insert(index, data.subList(2000, data.size()));
+		checkExists(index, data);
+		checkSearch(index, data);
+		assertEquals(2000, storedObjects(index));
+		a.close();
+
+		a = new AmbientMMap<L1, Sketch64Short<L1>>(dir);
+		index = a.getIndex();
+		assertEquals(2000, storedObjects(index));
+		checkExists(index, data);
+		checkSearch(index, data);
+		index.compactBuckets();
+		assertEquals(data.size(), storedObjects(index));
+		checkExists(index, data);
+		a.close();
+	}
+
+	/**
+	 * Deletes are appended to the delta logs as tombstones: the deleted
+	 * objects stay deleted after the index is reopened and after the deltas
+	 * are compacted.
+	 */
+	@Test
+	public void testDelete() throws Exception {
+		File dir = Utils.getTestDirectory();
+		Sketch64Short<L1> index = createIndex(8);
+		index.setDeltaCompaction(Integer.MAX_VALUE);
+		AmbientMMap<L1, Sketch64Short<L1>> a = new AmbientMMap<L1, Sketch64Short<L1>>(
+				index, dir);
+		List<L1> data = generateObjects(2000);
+		List<L1> live = data.subList(0, 1800);
+		List<L1> deleted = data.subList(live.size(), data.size());
+		insert(index, data);
+		a.freeze();
+		// some of the buckets are cached before the delete.
+		for (L1 o : deleted.subList(0, 100)) {
+			assertEquals(Status.EXISTS, index.exists(o).getStatus());
+		}
+		for (L1 o : deleted) {
+			assertEquals(Status.OK, index.delete(o).getStatus());
+		}
+		checkDeleted(index, deleted);
+		checkExists(index, live);
+		a.close();
+
+		a = new AmbientMMap<L1, Sketch64Short<L1>>(dir);
+		index = a.getIndex();
+		checkDeleted(index, deleted);
+		checkExists(index, live);
+		checkSearch(index, live);
+		index.compactBuckets();
+		assertEquals(live.size(), storedObjects(index));
+		checkDeleted(index, deleted);
+		checkSearch(index, live);
+		a.close();
+	}
+
+	/**
+	 * The given objects are not found.
+	 */
+	private void checkDeleted(Sketch64Short<L1> index, List<L1> data)
+			throws Exception {
+		for (L1 o : data) {
+			assertEquals(Status.NOT_EXISTS, index.exists(o).getStatus());
+			assertEquals(Status.NOT_EXISTS, index.delete(o).getStatus());
+			OBPriorityQueueShort<L1> result = new OBPriorityQueueShort<L1>(1);
+			index.searchOB(o, (short) 0, result);
+			assertEquals(0, result.getSize());
+		}
+	}
+
+	/**
+	 * Searches running while objects are inserted into cached buckets find
+	 * the frozen objects, and no object is added twice to its bucket.
+	 */
+	@Test
+	public void testSearchWhileInserting() throws Exception {
+		File dir = Utils.getTestDirectory();
+		final Sketch64Short<L1> index = createIndex(4);
+		index.setDeltaCompaction(Integer.MAX_VALUE);
+		index.setMaxK(new int[] { 1, 2 });
+		AmbientMMap<L1, Sketch64Short<L1>> a = new AmbientMMap<L1, Sketch64Short<L1>>(
+				index, dir);
+		final List<L1> data = generateObjects(3000);
+		insert(index, data.subList(0, 1000));
+		a.freeze();
+		final Throwable[] error = new Throwable[1];
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		int i = 0;
+		while (i < threads.length) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							checkSearch(index, data.subList(0, 1000));
+						}
+					} catch (Throwable e) {
+						error[0] = e;
+					}
+				}
+			};
+			threads[i].start();
+			i++;
+		}
+		insert(index, data.subList(1000, data.size()));
+		done.set(true);
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertNull(error[0]);
+		checkExists(index, data);
+		checkSearch(index, data);
+		// the cached buckets hold each object once.
+		for (L1 o : data) {
+			OBPriorityQueueShort<L1> result = new OBPriorityQueueShort<L1>(2);
+			index.searchOB(o, (short) 0, result);
+			assertEquals(1, result.getSize());
+		}
+		a.close();
+	}
+
+	/**
+	 * Buckets with enough deltas are compacted in the background, the
+	 * remaining deltas are merged by compactBuckets.
+	 */
+	@Test
+	public void testBackgroundCompaction() throws Exception {
+		File dir = Utils.getTestDirectory();
+		Sketch64Short<L1> index = createIndex(4);
+		index.setDeltaCompaction(2);
+		AmbientMMap<L1, Sketch64Short<L1>> a = new AmbientMMap<L1, Sketch64Short<L1>>(
+				index, dir);
+		List<L1> data = generateObjects(2000);
+		insert(index, data.subList(0, 1000));
+		a.freeze();
+		insert(index, data.subList(1000, data.size()));
+		checkExists(index, data);
+		// waits for the compactions.
+		a.close();
+
+		a = new AmbientMMap<L1, Sketch64Short<L1>>(dir);
+		index = a.getIndex();
+		assertTrue(storedObjects(index) > 1000);
+		checkExists(index, data);
+		index.compactBuckets();
+		assertEquals(data.size(), storedObjects(index));
+		checkSearch(index, data);
+		a.close();
+	}
+
+}
@@ -0,0 +1,105 @@
+package net.obsearch.index.sorter;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check that the runs of the freeze return their records in order, whether
+ * they are kept in memory, spilled or merged in several passes.
+ */
+public class TestSortedRun {
+
+	private final int TOTAL = 20000;
+	private Random r = new Random();
+
+	private List<SortedRun.Record> generate(int total) {
+		List<SortedRun.Record> res = new ArrayList<SortedRun.Record>(total);
+		int i = 0;
+		while (i < total) {
+			// few addresses so that many records share a bucket.
+			byte[] address = new byte[] { (byte) r.nextInt(16),
+					(byte) r.nextInt(16) };
+			byte[] object = new byte[1 + r.nextInt(8)];
+			r.nextBytes(object);
+			res.add(new SortedRun.Record(address, i, object));
+			i++;
+		}
+		Collections.shuffle(res, r);
+		return res;
+	}
+
+	private File createDirectory() throws IOException {
+		File dir = File.createTempFile("runs", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	@Test
+	public void testMerge() throws IOException {
+		testMergeAux(1, 2);
+		testMergeAux(10, 3);
+		testMergeAux(37, 4);
+		testMergeAux(5, 64);
+	}
+
+	/**
+	 * Split the records in the given number of runs, the last one in memory,
+	 * reduce them to fanIn runs and merge them.
+	 */
+	private void testMergeAux(int runCount, int fanIn) throws IOException {
+		File dir = createDirectory();
+		List<SortedRun.Record> records = generate(TOTAL);
+		byte[][] objects = new byte[TOTAL][];
+		for (SortedRun.Record m : records) {
+			objects[(int) m.id] = m.object;
+		}
+		List<SortedRun> runs = new ArrayList<SortedRun>();
+		int size = TOTAL / runCount;
+		int i = 0;
+		while (i < runCount) {
+			List<SortedRun.Record> part = new ArrayList<SortedRun.Record>(
+					records.subList(i * size, i == runCount - 1 ? TOTAL
+							: (i + 1) * size));
+			runs.add(i == runCount - 1 ? SortedRun.memory(part) : SortedRun
+					.spill(part, dir));
+			i++;
+		}
+		SortedRun.reduce(runs, fanIn, dir);
+		assertTrue(runs.size() <= fanIn);
+		assertTrue(dir.list().length <= runs.size());
+		SortedRun merged = SortedRun.merge(runs);
+		boolean[] found = new boolean[TOTAL];
+		SortedRun.Record previous = null;
+		int count = 0;
+		while (merged.advance()) {
+			SortedRun.Record m = merged.current();
+			if (previous != null) {
+				assertTrue(SortedRun.RECORD_ORDER.compare(previous, m) < 0);
+			}
+			assertFalse(found[(int) m.id]);
+			assertTrue(Arrays.equals(objects[(int) m.id], m.object));
+			found[(int) m.id] = true;
+			previous = m;
+			count++;
+		}
+		assertEquals(TOTAL, count);
+		for (SortedRun run : runs) {
+			run.close();
+		}
+		// the temporary files are removed.
+		assertEquals(0, dir.list().length);
+		assertTrue(dir.delete());
+	}
+
+}
@@ -0,0 +1,158 @@
+package net.obsearch.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import net.obsearch.OperationStatus;
+import net.obsearch.Status;
+import net.obsearch.exception.OBException;
+import net.obsearch.storage.OBStorageConfig.IndexType;
+import net.obsearch.storage.bdb.Utils;
+import net.obsearch.storage.mmap.MMapFactory;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestMMapStorage {
+
+	private static final transient Logger logger = Logger
+			.getLogger(TestMMapStorage.class.getCanonicalName());
+
+	private static int DB_SIZE = 10000;
+
+	@Test
+	public void testByteArrayStorage() throws Exception {
+		OBStorageConfig config = new OBStorageConfig();
+		config.setRecordSize(8);
+		for (IndexType i : IndexType.values()) {
+			config.setIndexType(i);
+			validateStorageWithConfig(config);
+		}
+	}
+
+	/**
+	 * Long keys on a FIXED_RECORD device are stored in an array.
+	 */
+	@Test
+	public void testLongStorage() throws Exception {
+		MMapFactory fact = Utils.getFactoryMMap();
+		OBStorageConfig config = new OBStorageConfig();
+		config.setIndexType(IndexType.FIXED_RECORD);
+		config.setRecordSize(8);
+		OBStoreLong st = fact.createOBStoreLong("A", config);
+		for (long i = 0; i < DB_SIZE; i++) {
+			assertTrue(st.nextId() == i);
+			st.put(i, fact.serializeLong(i * 2));
+		}
+		assertTrue(st.delete(7).getStatus() == Status.OK);
+		assertTrue(st.delete(7).getStatus() == Status.NOT_EXISTS);
+		assertTrue(st.size() == DB_SIZE - 1);
+		st.close();
+		st = fact.createOBStoreLong("A", config);
+		assertTrue(st.size() == DB_SIZE - 1);
+		assertTrue(st.nextId() == DB_SIZE);
+		assertTrue(st.getValue(7) == null);
+		assertTrue(st.getValue(DB_SIZE * 2) == null);
+		// values can be read in place.
+		assertTrue(st.getValueBuffer(7) == null);
+		assertTrue(st.getValueBuffer(3).isReadOnly());
+		assertTrue(st.getValueBuffer(3).getLong() == 6);
+		int count = 0;
+		CloseIterator<TupleLong> it = st.processAll();
+		while (it.hasNext()) {
+			TupleLong t = it.next();
+			assertTrue(fact.deSerializeLong(t.getValue()) == t.getKey() * 2);
+			count++;
+		}
+		it.closeCursor();
+		assertTrue(count == DB_SIZE - 1);
+		st.close();
+	}
+
+	private void addObjects(OBStore<TupleBytes> st, HashMap<Long, Double> data,
+			MMapFactory fact) throws OBException {
+		for (Map.Entry<Long, Double> e : data.entrySet()) {
+			OperationStatus res = st.put(fact.serializeLong(e.getKey()), fact
+					.serializeDouble(e.getValue()));
+			assertTrue(res.getStatus() == Status.OK);
+			res = st.put(fact.serializeLong(e.getKey()), fact
+					.serializeDouble(e.getValue()));
+			assertTrue(res.getStatus() == Status.OK);
+		}
+		assertTrue(data.size() == st.size());
+	}
+
+	private void checkObjects(OBStore<TupleBytes> st,
+			HashMap<Long, Double> data, MMapFactory fact) throws OBException {
+		for (Map.Entry<Long, Double> e : data.entrySet()) {
+			byte[] val = st.getValue(fact.serializeLong(e.getKey()));
+			assertTrue(fact.deSerializeDouble(val) == e.getValue());
+		}
+	}
+
+	protected void validateStorageWithConfig(OBStorageConfig config)
+			throws Exception {
+		logger.info("Doing index: " + config.getIndexType());
+		MMapFactory fact = Utils.getFactoryMMap();
+		OBStore<TupleBytes> st = fact.createOBStore("test", config);
+		HashMap<Long, Double> data = new HashMap<Long, Double>();
+		Random r = new Random();
+		int i = 0;
+		while (i < DB_SIZE) {
+			data.put((long) r.nextInt(DB_SIZE * 1000), r.nextDouble());
+			i++;
+		}
+
+		addObjects(st, data, fact);
+		checkObjects(st, data, fact);
+
+		// the index is saved when the store is closed.
+		st.close();
+		st = fact.createOBStore("test", config);
+		assertTrue(data.size() == st.size());
+		checkObjects(st, data, fact);
+
+		for (Map.Entry<Long, Double> e : data.entrySet()) {
+			OperationStatus res = st.delete(fact.serializeLong(e.getKey()));
+			assertTrue(res.getStatus() == Status.OK);
+			assertTrue(st.getValue(fact.serializeLong(e.getKey())) == null);
+			res = st.delete(fact.serializeLong(e.getKey()));
+			assertTrue(res.getStatus() == Status.NOT_EXISTS);
+		}
+		assertTrue(st.size() == 0);
+
+		addObjects(st, data, fact);
+		// compact the log and make sure nothing is lost.
+		st.optimize();
+		assertTrue(data.size() == st.size());
+		checkObjects(st, data, fact);
+
+		CloseIterator<TupleBytes> itk = st.processAll();
+		HashSet<Long> keySet = new HashSet<Long>();
+		while (itk.hasNext()) {
+			TupleBytes k = itk.next();
+			long key = fact.deSerializeLong(k.getKey());
+			assertTrue(data.containsKey(key));
+			assertTrue(keySet.add(key));
+		}
+		itk.closeCursor();
+		assertTrue(data.size() == keySet.size());
+
+		CloseIterator<TupleBytes> it = st.processAll();
+		while (it.hasNext()) {
+			TupleBytes t = it.next();
+			assertTrue(data.remove(fact.deSerializeLong(t.getKey())) == fact
+					.deSerializeDouble(t.getValue()));
+		}
+		it.closeCursor();
+		assertTrue(data.size() == 0);
+		st.deleteAll();
+		assertTrue(st.size() == 0);
+		st.close();
+	}
+
+}